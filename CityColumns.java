@@ -0,0 +1,309 @@
+package cmsc420.meeshquest.part1;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Nathanael Brian
+// Compact columnar export of tree contents
+
+/*
+ * Cities are written in the order they are given, which for the trees is
+ * tree order, so neighbors in the stream are usually neighbors on the map.
+ * After a 5 byte header ("CCOL" and a version byte) come blocks of up to
+ * BLOCK cities, each one
+ *
+ * varint count, varint length in bytes of the rest of the block
+ * x column - zigzag varint differences from the previous x (0 for the first)
+ * y column - zigzag varint differences from the previous y
+ * radius column - zigzag varints
+ * new colors - varint count, then each as varint length and UTF-8 bytes
+ * color column - varint indexes into the colors seen so far in the stream
+ * name column - varint lengths, then all the names as one UTF-8 block
+ *
+ * and a count of 0 ends the stream. Coordinates are ints, as in the XML
+ * input and output; callers holding float coordinates must check that they
+ * are whole before adding them (see CityExport.write). Both the Writer and
+ * the Reader hold one block at a time, so a stream of any length takes
+ * constant memory on either side.
+ */
+
+public class CityColumns {
+	public static final int BLOCK = 4096; // cities per block
+	private static final byte[] MAGIC = { 'C', 'C', 'O', 'L', 1 };
+
+	// -----------------------------------------------------------------
+	// Writer
+	// -----------------------------------------------------------------
+
+	public static class Writer implements Closeable {
+		private final OutputStream out;
+		private final int[] x = new int[BLOCK], y = new int[BLOCK], r = new int[BLOCK], color = new int[BLOCK];
+		private final String[] name = new String[BLOCK];
+		private final HashMap<String, Integer> colors = new HashMap<String, Integer>(); // dictionary so far
+		private final ArrayList<String> newColors = new ArrayList<String>(); // added in this block
+		private byte[] block = new byte[16 * BLOCK]; // the block being encoded
+		private int length; // bytes used in block
+		private byte[] names = new byte[16 * BLOCK]; // its names, UTF-8
+		private int namesLength;
+		private int count; // cities in this block
+
+		public Writer(OutputStream out) throws IOException {
+			this.out = out;
+			out.write(MAGIC);
+		}
+
+		public void add(String name, int x, int y, int r, String color) throws IOException {
+			Integer index = colors.get(color);
+			if (index == null) {
+				index = colors.size();
+				colors.put(color, index);
+				newColors.add(color);
+			}
+			this.name[count] = name;
+			this.x[count] = x;
+			this.y[count] = y;
+			this.r[count] = r;
+			this.color[count] = index;
+			if (++count == BLOCK)
+				flushBlock();
+		}
+
+		private void flushBlock() throws IOException {
+			length = namesLength = 0;
+			int px = 0, py = 0;
+			for (int i = 0; i < count; i++) {
+				put(zigzag(x[i] - px));
+				px = x[i];
+			}
+			for (int i = 0; i < count; i++) {
+				put(zigzag(y[i] - py));
+				py = y[i];
+			}
+			for (int i = 0; i < count; i++)
+				put(zigzag(r[i]));
+			put(newColors.size());
+			for (String c : newColors) {
+				byte[] bytes = c.getBytes(StandardCharsets.UTF_8);
+				put(bytes.length);
+				put(bytes, bytes.length);
+			}
+			newColors.clear();
+			for (int i = 0; i < count; i++)
+				put(color[i]);
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = name[i].getBytes(StandardCharsets.UTF_8);
+				put(bytes.length);
+				if (names.length - namesLength < bytes.length)
+					names = Arrays.copyOf(names, Math.max(2 * names.length, namesLength + bytes.length));
+				System.arraycopy(bytes, 0, names, namesLength, bytes.length);
+				namesLength += bytes.length;
+				name[i] = null;
+			}
+			put(names, namesLength);
+
+			writeVarint(out, count);
+			writeVarint(out, length);
+			out.write(block, 0, length);
+			count = 0;
+		}
+
+		// append v as a varint to block
+		private void put(int v) {
+			if (block.length - length < 5)
+				block = Arrays.copyOf(block, 2 * block.length);
+			while ((v & ~0x7f) != 0) {
+				block[length++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			block[length++] = (byte) v;
+		}
+
+		private void put(byte[] bytes, int n) {
+			if (block.length - length < n)
+				block = Arrays.copyOf(block, Math.max(2 * block.length, length + n));
+			System.arraycopy(bytes, 0, block, length, n);
+			length += n;
+		}
+
+		// write the last block and the end marker, then close the stream
+		public void close() throws IOException {
+			if (count > 0)
+				flushBlock();
+			writeVarint(out, 0);
+			out.close();
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Reader
+	// -----------------------------------------------------------------
+
+	// A cursor over the cities of a stream: next() moves to the following
+	// city, and the getters describe the current one.
+	public static class Reader implements Closeable {
+		private final InputStream in;
+		private final int[] x = new int[BLOCK], y = new int[BLOCK], r = new int[BLOCK];
+		private final int[] nameLength = new int[BLOCK];
+		private final String[] name = new String[BLOCK], color = new String[BLOCK];
+		private final ArrayList<String> colors = new ArrayList<String>(); // dictionary so far
+		private byte[] block = new byte[0];
+		private int length; // bytes of the current block (block may be longer)
+		private int pos; // read position in block
+		private int count, next; // cities in the block, index of the next one
+		private boolean ended;
+
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			for (byte b : MAGIC) {
+				if (in.read() != (b & 0xff))
+					throw new IOException("not a city column stream");
+			}
+		}
+
+		public boolean next() throws IOException {
+			if (next == count) {
+				if (ended || !readBlock())
+					return false;
+			}
+			next++;
+			return true;
+		}
+
+		public String getName() {
+			return name[next - 1];
+		}
+
+		public int getX() {
+			return x[next - 1];
+		}
+
+		public int getY() {
+			return y[next - 1];
+		}
+
+		public int getR() {
+			return r[next - 1];
+		}
+
+		public String getColor() {
+			return color[next - 1];
+		}
+
+		private boolean readBlock() throws IOException {
+			count = next = 0;
+			int n = CityColumns.readVarint(in);
+			if (n == 0) {
+				ended = true;
+				return false;
+			}
+			if (n > BLOCK)
+				throw new IOException("block of " + n + " cities");
+			length = CityColumns.readVarint(in);
+			if (length < 0)
+				throw new IOException("block of " + length + " bytes");
+			if (block.length < length)
+				block = new byte[length];
+			for (int off = 0; off < length;) {
+				int got = in.read(block, off, length - off);
+				if (got < 0)
+					throw new EOFException("truncated block");
+				off += got;
+			}
+			pos = 0;
+
+			int px = 0, py = 0;
+			for (int i = 0; i < n; i++)
+				x[i] = px += unzigzag(readVarint());
+			for (int i = 0; i < n; i++)
+				y[i] = py += unzigzag(readVarint());
+			for (int i = 0; i < n; i++)
+				r[i] = unzigzag(readVarint());
+			for (int added = readVarint(); added > 0; added--) {
+				int len = readVarint();
+				check(len);
+				colors.add(new String(block, pos, len, StandardCharsets.UTF_8));
+				pos += len;
+			}
+			for (int i = 0; i < n; i++) {
+				int index = readVarint();
+				if (index >= colors.size())
+					throw new IOException("unknown color " + index);
+				color[i] = colors.get(index);
+			}
+			for (int i = 0; i < n; i++)
+				nameLength[i] = readVarint();
+			for (int i = 0; i < n; i++) {
+				check(nameLength[i]);
+				name[i] = new String(block, pos, nameLength[i], StandardCharsets.UTF_8);
+				pos += nameLength[i];
+			}
+			if (pos != length)
+				throw new IOException("corrupt block");
+			count = n;
+			return true;
+		}
+
+		private int readVarint() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				if (pos >= length)
+					throw new EOFException("truncated block");
+				int b = block[pos++];
+				v |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new IOException("varint too long");
+		}
+
+		// n more bytes must be left in the current block
+		private void check(int n) throws IOException {
+			if (n < 0 || n > length - pos)
+				throw new EOFException("truncated block");
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Encoding
+	// -----------------------------------------------------------------
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarint(OutputStream out, int v) throws IOException {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("truncated stream");
+			v |= (b & 0x7f) << shift;
+			if (b < 0x80)
+				return v;
+		}
+		throw new IOException("varint too long");
+	}
+}
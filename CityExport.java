@@ -0,0 +1,52 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Spliterators;
+
+import cmsc420.meeshquest.part1.CityColumns;
+
+// Nathanael Brian
+// CityColumns export and import of an SG KD-Tree of cities
+
+/*
+ * The tree itself only knows its points as NamedPoint2D, which has no color or
+ * radius, so the City-specific columns are filled in here. Cities are written
+ * in tree order (see SGKDTree.stream), which keeps the coordinate differences
+ * small, straight from the tree without copying it; on the way back the whole
+ * stream is handed to SGKDTree.bulkLoad.
+ *
+ * CityColumns stores coordinates as ints, as createCity gives them. A city
+ * with a fractional coordinate (or one outside the int range) cannot be
+ * written and is rejected rather than silently truncated.
+ */
+
+public class CityExport {
+	// write the live cities of tree in tree order and close out; throws
+	// IllegalArgumentException on a city whose coordinates are not ints
+	public static void write(SGKDTree<City> tree, OutputStream out) throws IOException {
+		CityColumns.Writer writer = new CityColumns.Writer(out);
+		Iterator<City> it = Spliterators.iterator(tree.spliterator());
+		while (it.hasNext()) {
+			City c = it.next();
+			int x = (int) c.getX(), y = (int) c.getY();
+			if (x != c.getX() || y != c.getY())
+				throw new IllegalArgumentException("city " + c.getName() + " has coordinates that are not ints");
+			writer.add(c.getName(), x, y, c.getR(), c.getColor());
+		}
+		writer.close();
+	}
+
+	// replace the contents of tree with the cities of in and close in
+	public static void read(InputStream in, SGKDTree<City> tree) throws IOException {
+		CityColumns.Reader reader = new CityColumns.Reader(in);
+		ArrayList<City> cities = new ArrayList<City>();
+		while (reader.next())
+			cities.add(new City(reader.getX(), reader.getY(), reader.getName(), reader.getColor(), reader.getR()));
+		reader.close();
+		tree.bulkLoad(cities);
+	}
+}
@@ -0,0 +1,436 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Pipelined MeeshQuest command processor
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.CommandPipeline input.xml [output.xml]
+ *
+ * Runs a MeeshQuest command file in three stages, each on its own thread:
+ *
+ * parse - reads the commands with StAX and groups them into batches
+ * apply - executes the batches in order against the SG KD-Tree (and, if
+ * enabled, the part 1 SG tree); all tree work happens on this thread
+ * write - serializes the results with a StAX writer as they arrive
+ *
+ * The stages are connected by bounded queues of batches, so parsing, tree work
+ * and output overlap, and memory stays bounded no matter how long the input
+ * is. Unlike the DOM results document, nothing is kept once it is written.
+ *
+ * Tree prints are serialized by the trees themselves from cached fragments
+ * (see SGKDTree.printXML) and copied to the output as bytes. Query results
+ * (nearestCity, rangeCities) are handed to the write stage as the cities
+ * found, and only the write stage turns them into XML, so no DOM is shared
+ * between threads.
+ */
+
+public class CommandPipeline {
+	private final boolean DEBUG = false; // produce extra debugging output
+
+	// one command of the input, later filled in with its result
+	static class Command {
+		final String name; // element name, e.g. createCity
+		final String id; // optional id attribute, echoed in the result
+		final Map<String, String> parameters = new LinkedHashMap<String, String>(); // other attributes
+		String error; // error type, or null on success
+		List<City> cities; // cities found by a query, written inside <output>, may be null
+		boolean cityList; // write cities wrapped in a <cityList>
+		byte[] rawOutput; // already serialized output (tree prints), written as is
+
+		Command(String name, String id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		String get(String key) throws Exception {
+			String value = parameters.get(key);
+			if (value == null)
+				throw new Exception("missing attribute " + key + " on " + name);
+			return value;
+		}
+	}
+
+	private static final List<Command> END = Collections.emptyList(); // marks the end of a queue
+
+	private final int batchSize; // commands per batch
+	private final BlockingQueue<List<Command>> parsed; // parse -> apply
+	private final BlockingQueue<List<Command>> applied; // apply -> write
+	private final boolean mirrorSGTree; // also mirror the cities into the part 1 SG tree
+	private volatile Throwable failure; // first exception thrown by any stage
+
+	private OutputStream sink; // buffered output under the writer, for raw fragments
+	private SGKDTree<City> kdTree;
+	private SGTree sgTree; // only if mirrorSGTree
+	private final HashMap<String, City> citiesByName = new HashMap<String, City>();
+	private int spatialWidth, spatialHeight;
+
+	public CommandPipeline(int batchSize, int queueCapacity, boolean mirrorSGTree) {
+		this.batchSize = batchSize;
+		this.parsed = new ArrayBlockingQueue<List<Command>>(queueCapacity);
+		this.applied = new ArrayBlockingQueue<List<Command>>(queueCapacity);
+		this.mirrorSGTree = mirrorSGTree;
+	}
+
+	public CommandPipeline() {
+		this(256, 64, false);
+	}
+
+	// the kd-tree after run() returns, for inspection
+	public SGKDTree<City> getKdTree() {
+		return kdTree;
+	}
+
+	// process all commands of in and write the results to out
+	public void run(InputStream in, OutputStream out) throws Exception {
+		Thread parser = new Thread(() -> stage(() -> parse(in), parsed), "meeshquest-parse");
+		Thread applier = new Thread(() -> stage(() -> apply(), applied), "meeshquest-apply");
+		parser.start();
+		applier.start();
+		try {
+			write(out); // the calling thread is the write stage
+		} catch (Throwable t) {
+			fail(t);
+		}
+		parser.join();
+		applier.join();
+
+		if (failure instanceof Exception)
+			throw (Exception) failure;
+		else if (failure != null)
+			throw new Exception(failure);
+	}
+
+	// -----------------------------------------------------------------
+	// Stages
+	// -----------------------------------------------------------------
+
+	private interface Body {
+		void run() throws Exception;
+	}
+
+	// run body and always pass END downstream, even after a failure
+	private void stage(Body body, BlockingQueue<List<Command>> downstream) {
+		try {
+			body.run();
+		} catch (Throwable t) {
+			fail(t);
+		} finally {
+			try {
+				if (failure == null) {
+					downstream.put(END);
+				} else {
+					downstream.clear(); // the consumer may be gone, make room for END
+					downstream.offer(END);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void fail(Throwable t) {
+		if (failure == null)
+			failure = t;
+	}
+
+	// put that gives up once another stage has failed, so no stage blocks forever
+	private void put(BlockingQueue<List<Command>> queue, List<Command> batch) throws Exception {
+		while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+			if (failure != null)
+				throw new Exception("pipeline stopped", failure);
+		}
+	}
+
+	private List<Command> take(BlockingQueue<List<Command>> queue) throws Exception {
+		List<Command> batch;
+		while ((batch = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+			if (failure != null)
+				throw new Exception("pipeline stopped", failure);
+		}
+		return batch;
+	}
+
+	private void parse(InputStream in) throws Exception {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(new BufferedInputStream(in, 1 << 16));
+
+		ArrayList<Command> batch = new ArrayList<Command>(batchSize);
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				if (depth == 1) { // <commands spatialWidth=".." spatialHeight="..">
+					Command header = new Command("commands", null);
+					readAttributes(reader, header);
+					batch.add(header);
+				} else if (depth == 2) {
+					Command command = new Command(reader.getLocalName(), reader.getAttributeValue(null, "id"));
+					readAttributes(reader, command);
+					batch.add(command);
+					if (batch.size() == batchSize) {
+						put(parsed, batch);
+						batch = new ArrayList<Command>(batchSize);
+					}
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		reader.close();
+		if (!batch.isEmpty())
+			put(parsed, batch);
+	}
+
+	private void readAttributes(XMLStreamReader reader, Command command) {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String key = reader.getAttributeLocalName(i);
+			String prefix = reader.getAttributePrefix(i);
+			if (!key.equals("id") && (prefix == null || prefix.isEmpty()))
+				command.parameters.put(key, reader.getAttributeValue(i));
+		}
+	}
+
+	private void apply() throws Exception {
+		List<Command> batch;
+		while ((batch = take(parsed)) != END) {
+			for (Command command : batch) {
+				apply(command);
+			}
+			put(applied, batch);
+		}
+	}
+
+	private void write(OutputStream out) throws Exception {
+		sink = new BufferedOutputStream(out, 1 << 16);
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(sink, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement("results");
+
+		List<Command> batch;
+		while ((batch = take(applied)) != END) {
+			for (Command command : batch) {
+				if (command.name.equals("commands"))
+					continue; // the header has no result
+				write(writer, command);
+			}
+		}
+
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.close();
+		sink.flush();
+	}
+
+	// -----------------------------------------------------------------
+	// Commands (apply stage only)
+	// -----------------------------------------------------------------
+
+	private void apply(Command command) throws Exception {
+		if (DEBUG)
+			System.out.println("apply " + command.name + " " + command.parameters);
+
+		switch (command.name) {
+		case "commands":
+			spatialWidth = Integer.parseInt(command.parameters.getOrDefault("spatialWidth", "1024"));
+			spatialHeight = Integer.parseInt(command.parameters.getOrDefault("spatialHeight", "1024"));
+			clearAll();
+			break;
+		case "createCity":
+			createCity(command);
+			break;
+		case "deleteCity":
+			deleteCity(command);
+			break;
+		case "clearAll":
+			clearAll();
+			break;
+		case "printKdTree":
+			if (kdTree.size() == 0) {
+				command.error = "mapIsEmpty";
+			} else {
+				command.rawOutput = kdTree.printXML(); // mostly cached fragments
+			}
+			break;
+		case "printSGTree":
+			if (sgTree == null || sgTree.size() == 0) {
+				command.error = "mapIsEmpty";
+			} else {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				out.write("<SGTree>".getBytes(StandardCharsets.US_ASCII));
+				out.write(sgTree.printXML());
+				out.write("</SGTree>".getBytes(StandardCharsets.US_ASCII));
+				command.rawOutput = out.toByteArray();
+			}
+			break;
+		case "nearestCity":
+			nearestCity(command);
+			break;
+		case "rangeCities":
+			rangeCities(command);
+			break;
+		default:
+			command.error = "undefinedError";
+		}
+	}
+
+	private void clearAll() {
+		kdTree = new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(), new CompareYX<City>(),
+				spatialWidth, spatialHeight);
+		if (mirrorSGTree)
+			sgTree = new SGTree();
+		citiesByName.clear();
+	}
+
+	private void createCity(Command command) throws Exception {
+		String name = command.get("name");
+		int x = Integer.parseInt(command.get("x"));
+		int y = Integer.parseInt(command.get("y"));
+		int radius = Integer.parseInt(command.get("radius"));
+		String color = command.get("color");
+		City city = new City(x, y, name, color, radius);
+
+		if (citiesByName.containsKey(name)) {
+			command.error = "duplicateCityName";
+		} else if (kdTree.find(city) != null) {
+			command.error = "duplicateCityCoordinates";
+		} else {
+			kdTree.insert(city);
+			if (mirrorSGTree)
+				sgTree.insert(new cmsc420.meeshquest.part1.City(name, x, y, radius, color));
+			citiesByName.put(name, city);
+		}
+	}
+
+	private void deleteCity(Command command) throws Exception {
+		City city = citiesByName.remove(command.get("name"));
+		if (city == null) {
+			command.error = "cityDoesNotExist";
+		} else {
+			kdTree.delete(city);
+			if (mirrorSGTree)
+				sgTree.delete(new cmsc420.meeshquest.part1.City(city.getName(), (int) city.getX(),
+						(int) city.getY(), city.getR(), city.getColor()));
+		}
+	}
+
+	private void nearestCity(Command command) throws Exception {
+		City q = new City(Integer.parseInt(command.get("x")), Integer.parseInt(command.get("y")), "", "", 0);
+		City nearest = kdTree.nearestNeighbor(q);
+		if (nearest == null) {
+			command.error = "cityNotFound";
+		} else {
+			command.cities = Collections.singletonList(nearest);
+		}
+	}
+
+	private void rangeCities(Command command) throws Exception {
+		City center = new City(Integer.parseInt(command.get("x")), Integer.parseInt(command.get("y")), "", "", 0);
+		List<City> cities = kdTree.rangeSearch(center, Integer.parseInt(command.get("radius")));
+		if (cities.isEmpty()) {
+			command.error = "noCitiesExistInRange";
+		} else {
+			command.cities = cities;
+			command.cityList = true;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Serialization (write stage only)
+	// -----------------------------------------------------------------
+
+	// <success> or <error type=".."> with the command, its parameters and output
+	private void write(XMLStreamWriter writer, Command command) throws Exception {
+		if (command.error == null) {
+			writer.writeStartElement("success");
+		} else {
+			writer.writeStartElement("error");
+			writer.writeAttribute("type", command.error);
+		}
+
+		writer.writeEmptyElement("command");
+		writer.writeAttribute("name", command.name);
+		if (command.id != null)
+			writer.writeAttribute("id", command.id);
+
+		writer.writeStartElement("parameters");
+		for (Map.Entry<String, String> parameter : command.parameters.entrySet()) {
+			writer.writeEmptyElement(parameter.getKey());
+			writer.writeAttribute("value", parameter.getValue());
+		}
+		writer.writeEndElement();
+
+		if (command.error == null) {
+			writer.writeStartElement("output");
+			if (command.cities != null) {
+				if (command.cityList)
+					writer.writeStartElement("cityList");
+				for (City city : command.cities)
+					write(writer, city);
+				if (command.cityList)
+					writer.writeEndElement();
+			}
+			if (command.rawOutput != null) {
+				writer.writeCharacters(""); // close the <output> start tag
+				writer.flush();
+				sink.write(command.rawOutput);
+			}
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+		command.cities = null; // let the results go
+		command.rawOutput = null;
+	}
+
+	private void write(XMLStreamWriter writer, City city) throws Exception {
+		writer.writeEmptyElement("city");
+		writer.writeAttribute("color", city.getColor()); // alphabetical, as the DOM output had them
+		writer.writeAttribute("name", city.getName());
+		writer.writeAttribute("radius", Integer.toString(city.getR()));
+		writer.writeAttribute("x", Integer.toString((int) city.getX()));
+		writer.writeAttribute("y", Integer.toString((int) city.getY()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: CommandPipeline input.xml [output.xml]");
+			return;
+		}
+		InputStream in = new FileInputStream(args[0]);
+		OutputStream out = (args.length > 1) ? new FileOutputStream(args[1]) : System.out;
+		long start = System.nanoTime();
+		new CommandPipeline().run(in, out);
+		in.close();
+		if (args.length > 1) {
+			out.close();
+			System.out.printf("%s: %.1f ms%n", args[0], (System.nanoTime() - start) / 1e6);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import cmsc420.meeshquest.part1.CityColumns;
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Size and speed of the CityColumns export against the XML prints
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.ExportBenchmark [points] [seed]
+ *
+ * For both trees, writes the contents as XML (printXML, with the print cache
+ * off so that every run serializes the whole tree) and as CityColumns
+ * (CityExport, SGTree.exportColumns), and reads each back into a new tree:
+ * parse is the XML read with StAX, as CommandPipeline reads its input, or the
+ * columns read with CityColumns.Reader, and load is the bulk load of the
+ * cities read, the same for both formats. Times are the best of ROUNDS runs
+ * after a warm-up.
+ *
+ * The XML holds only names and coordinates, the columns also hold colors and
+ * radii, so the comparison favors the XML. Every tree read back from the
+ * columns must hold exactly the cities written, colors and radii included.
+ */
+
+public class ExportBenchmark {
+	private static final int MAP_SIZE = 1 << 20;
+	private static final int ROUNDS = 5;
+	private static final String[] COLORS = { "black", "white", "red", "green", "blue", "orange", "yellow",
+			"purple" };
+
+	public static void main(String[] args) throws Exception {
+		int points = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		long seed = (args.length > 1) ? Long.parseLong(args[1]) : 420;
+
+		List<City> cities = generate(new Random(seed), points);
+		SGKDTree<City> kdTree = newKdTree();
+		SGTree sgTree = new SGTree();
+		for (City c : cities) {
+			kdTree.insert(c);
+			sgTree.insert(new cmsc420.meeshquest.part1.City(c.getName(), (int) c.getX(), (int) c.getY(), c.getR(),
+					c.getColor()));
+		}
+		kdTree.setPrintCacheLimit(0);
+		sgTree.setPrintCacheLimit(0);
+
+		System.out.printf("%d cities%n", points);
+		System.out.printf("  %-12s %-8s %12s %10s %10s %10s %10s%n", "tree", "format", "bytes", "bytes/city",
+				"write ms", "parse ms", "load ms");
+		long[] xml = kdXML(kdTree), columns = kdColumns(kdTree, cities);
+		row("SG KD-Tree", "xml", xml, points);
+		row("SG KD-Tree", "columns", columns, points);
+		ratio(xml, columns);
+		xml = sgXML(sgTree);
+		columns = sgColumns(sgTree);
+		row("SG Tree", "xml", xml, points);
+		row("SG Tree", "columns", columns, points);
+		ratio(xml, columns);
+	}
+
+	// -----------------------------------------------------------------
+	// Runs, each returning bytes and the best write, parse and load ns
+	// -----------------------------------------------------------------
+
+	private static long[] kdXML(SGKDTree<City> tree) throws Exception {
+		long[] result = { 0, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			byte[] bytes = tree.printXML();
+			long write = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			ArrayList<City> cities = new ArrayList<City>();
+			XMLStreamReader reader = parse(bytes);
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("external"))
+					cities.add(new City(Integer.parseInt(reader.getAttributeValue(null, "x")),
+							Integer.parseInt(reader.getAttributeValue(null, "y")),
+							reader.getAttributeValue(null, "name"), "black", 0));
+			}
+			long parse = System.nanoTime() - start;
+			start = System.nanoTime();
+			SGKDTree<City> copy = newKdTree();
+			copy.bulkLoad(cities);
+			long load = System.nanoTime() - start;
+
+			if (copy.size() != tree.size())
+				throw new Exception("XML read back " + copy.size() + " cities instead of " + tree.size());
+			record(result, round, bytes.length, write, parse, load);
+		}
+		return result;
+	}
+
+	private static long[] kdColumns(SGKDTree<City> tree, List<City> cities) throws Exception {
+		long[] result = { 0, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CityExport.write(tree, out);
+			long write = System.nanoTime() - start;
+			byte[] bytes = out.toByteArray();
+
+			start = System.nanoTime();
+			ArrayList<City> back = new ArrayList<City>();
+			CityColumns.Reader reader = new CityColumns.Reader(new ByteArrayInputStream(bytes));
+			while (reader.next())
+				back.add(new City(reader.getX(), reader.getY(), reader.getName(), reader.getColor(), reader.getR()));
+			long parse = System.nanoTime() - start;
+			start = System.nanoTime();
+			SGKDTree<City> copy = newKdTree();
+			copy.bulkLoad(back);
+			long load = System.nanoTime() - start;
+
+			if (copy.size() != cities.size())
+				throw new Exception("columns read back " + copy.size() + " cities instead of " + cities.size());
+			for (City c : cities) {
+				City found = copy.find(c);
+				if (found == null || !found.getName().equals(c.getName()) || !found.getColor().equals(c.getColor())
+						|| found.getR() != c.getR())
+					throw new Exception("columns read back " + found + " for " + c);
+			}
+			record(result, round, bytes.length, write, parse, load);
+		}
+		return result;
+	}
+
+	private static long[] sgXML(SGTree tree) throws Exception {
+		long[] result = { 0, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			byte[] bytes = tree.printXML();
+			long write = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			ArrayList<cmsc420.meeshquest.part1.City> cities = new ArrayList<cmsc420.meeshquest.part1.City>();
+			XMLStreamReader reader = parse(bytes);
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("external"))
+					cities.add(new cmsc420.meeshquest.part1.City(reader.getAttributeValue(null, "name"),
+							Integer.parseInt(reader.getAttributeValue(null, "x")),
+							Integer.parseInt(reader.getAttributeValue(null, "y")), 0, "black"));
+			}
+			long parse = System.nanoTime() - start;
+			start = System.nanoTime();
+			SGTree copy = new SGTree();
+			copy.bulkLoad(cities);
+			long load = System.nanoTime() - start;
+
+			if (copy.size() != tree.size())
+				throw new Exception("XML read back " + copy.size() + " cities instead of " + tree.size());
+			record(result, round, bytes.length, write, parse, load);
+		}
+		return result;
+	}
+
+	private static long[] sgColumns(SGTree tree) throws Exception {
+		List<cmsc420.meeshquest.part1.City> cities = tree.entryList();
+		long[] result = { 0, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round <= ROUNDS; round++) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			tree.exportColumns(out);
+			long write = System.nanoTime() - start;
+			byte[] bytes = out.toByteArray();
+
+			start = System.nanoTime();
+			ArrayList<cmsc420.meeshquest.part1.City> parsed = new ArrayList<cmsc420.meeshquest.part1.City>();
+			CityColumns.Reader reader = new CityColumns.Reader(new ByteArrayInputStream(bytes));
+			while (reader.next())
+				parsed.add(new cmsc420.meeshquest.part1.City(reader.getName(), reader.getX(), reader.getY(),
+						reader.getR(), reader.getColor()));
+			long parse = System.nanoTime() - start;
+			start = System.nanoTime();
+			SGTree copy = new SGTree();
+			copy.bulkLoad(parsed);
+			long load = System.nanoTime() - start;
+
+			List<cmsc420.meeshquest.part1.City> back = copy.entryList();
+			if (back.size() != cities.size() || copy.getHeight() > tree.getHeight())
+				throw new Exception("columns read back " + back.size() + " cities instead of " + cities.size());
+			for (int i = 0; i < back.size(); i++) {
+				cmsc420.meeshquest.part1.City a = cities.get(i), b = back.get(i);
+				if (a.getX() != b.getX() || a.getY() != b.getY() || !a.getName().equals(b.getName())
+						|| !a.getColor().equals(b.getColor()) || a.getR() != b.getR())
+					throw new Exception("columns read back " + b.getName() + " for " + a.getName());
+			}
+			record(result, round, bytes.length, write, parse, load);
+		}
+		return result;
+	}
+
+	// -----------------------------------------------------------------
+	// Helpers
+	// -----------------------------------------------------------------
+
+	private static SGKDTree<City> newKdTree() {
+		return new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(), new CompareYX<City>(),
+				MAP_SIZE, MAP_SIZE);
+	}
+
+	private static XMLStreamReader parse(byte[] bytes) throws Exception {
+		return XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(bytes), "UTF-8");
+	}
+
+	// round 0 only warms up
+	private static void record(long[] result, int round, long bytes, long write, long parse, long load) {
+		if (round == 0)
+			return;
+		result[0] = bytes;
+		result[1] = Math.min(result[1], write);
+		result[2] = Math.min(result[2], parse);
+		result[3] = Math.min(result[3], load);
+	}
+
+	private static void row(String tree, String format, long[] r, int points) {
+		System.out.printf("  %-12s %-8s %12d %10.1f %10.2f %10.2f %10.2f%n", tree, format, r[0],
+				(double) r[0] / points, r[1] / 1e6, r[2] / 1e6, r[3] / 1e6);
+	}
+
+	private static void ratio(long[] xml, long[] columns) {
+		System.out.printf("  %-12s %-8s %11.1fx %10s %9.1fx %9.1fx %9.1fx%n", "", "xml/col",
+				(double) xml[0] / columns[0], "", (double) xml[1] / columns[1], (double) xml[2] / columns[2],
+				(double) xml[3] / columns[3]);
+	}
+
+	// uniform cities at distinct coordinates, with names, colors and radii as
+	// a createCity command would give them
+	private static List<City> generate(Random random, int n) {
+		ArrayList<City> list = new ArrayList<City>(n);
+		HashSet<Long> used = new HashSet<Long>();
+		while (list.size() < n) {
+			int x = random.nextInt(MAP_SIZE);
+			int y = random.nextInt(MAP_SIZE);
+			if (!used.add(((long) x << 32) | y))
+				continue;
+			list.add(new City(x, y, "city" + list.size(), COLORS[random.nextInt(COLORS.length)],
+					random.nextInt(1000)));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,142 @@
+package cmsc420.meeshquest.part1;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Nathanael Brian
+// Lock-free log-bucketed histogram of latencies in nanoseconds
+
+/*
+ * Buckets are laid out as in HdrHistogram: values below 64 get a bucket each,
+ * and every power of two above that is split into 32 equal buckets, so any
+ * recorded value is known to within 1/32 (about 3%). That is 1888 buckets in
+ * all, enough for any positive long.
+ *
+ * record() is one atomic increment plus a read of the maximum (and a compare
+ * and set on a new maximum), so any number of threads can record at once
+ * without locks. snapshot() copies the counts; snapshotAndReset() also clears
+ * them, bucket by bucket, so a value recorded at the same time lands in
+ * exactly one of two successive intervals. The snapshot of a busy histogram
+ * is therefore not an atomic cut, only a consistent count of what it saw.
+ */
+
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5; // 32 buckets per power of two
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (62 - SUB_BITS) * SUB + 2 * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	// add one value; negative values (a clock that went back) count as 0
+	public void record(long nanos) {
+		long v = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(v));
+		long m;
+		while (v > (m = max.get()) && !max.compareAndSet(m, v))
+			;
+	}
+
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++)
+			c[b] = counts.get(b);
+		return new Snapshot(c, max.get());
+	}
+
+	// the counts since the last reset, then start a new interval
+	public Snapshot snapshotAndReset() {
+		long m = max.getAndSet(0);
+		long[] c = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++)
+			c[b] = counts.getAndSet(b, 0);
+		return new Snapshot(c, m);
+	}
+
+	public void reset() {
+		snapshotAndReset();
+	}
+
+	static int bucket(long v) {
+		if (v < 2 * SUB)
+			return (int) v; // exact
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return shift * SUB + (int) (v >>> shift);
+	}
+
+	// largest value that falls in bucket b
+	static long highest(int b) {
+		if (b < 2 * SUB)
+			return b;
+		int shift = b / SUB - 1;
+		long mantissa = b - shift * SUB; // SUB .. 2 * SUB - 1
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	// -----------------------------------------------------------------
+	// Snapshot
+	// -----------------------------------------------------------------
+
+	// Immutable counts of one histogram at one time. Percentiles are the
+	// highest value of the bucket they fall in, but never above the maximum.
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count, max;
+
+		private Snapshot(long[] counts, long max) {
+			this.counts = counts;
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			this.count = total;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMax() { // exact, in nanoseconds
+			return max;
+		}
+
+		// smallest recorded value v with at least percentile % of the values <= v
+		public long getValueAtPercentile(double percentile) {
+			long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if (seen >= rank)
+					return Math.min(highest(b), max);
+			}
+			return max;
+		}
+
+		public long getP50() {
+			return getValueAtPercentile(50);
+		}
+
+		public long getP99() {
+			return getValueAtPercentile(99);
+		}
+
+		public long getP999() {
+			return getValueAtPercentile(99.9);
+		}
+
+		// number of values below nanos (to bucket precision)
+		public long getCountBelow(long nanos) {
+			long c = 0;
+			for (int b = 0; b < counts.length && highest(b) < nanos; b++)
+				c += counts[b];
+			return c;
+		}
+
+		public String toString() {
+			if (count == 0)
+				return "count 0";
+			return String.format("count %d, p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns", count, getP50(), getP99(),
+					getP999(), max);
+		}
+	}
+}
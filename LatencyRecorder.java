@@ -0,0 +1,85 @@
+package cmsc420.meeshquest.part1;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+// Nathanael Brian
+// Per-operation latency histograms for SGTree and SGKDTree
+
+/*
+ * Opt in with setLatencyRecorder(new LatencyRecorder()) on either tree (one
+ * recorder may be shared by several trees); with no recorder set, each
+ * operation only tests a field for null. A recorded operation costs two
+ * System.nanoTime() calls and one LatencyHistogram.record().
+ *
+ * An operation is timed from its call to its return; one that throws is not
+ * recorded. Rebuilds are timed on their own as well as inside the insert or
+ * delete that does them: inline scapegoat and whole-tree rebuilds, and
+ * background builds on the executor's thread. Incremental rebuild steps are
+ * only part of the writes that do them.
+ *
+ * Typical use is to call snapshotAndReset() once per reporting interval.
+ */
+
+public class LatencyRecorder {
+	public enum Operation {
+		INSERT, DELETE, FIND, RANGE_SEARCH, NEAREST_NEIGHBOR, REBUILD, PRINT
+	}
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+
+	public LatencyRecorder() {
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new LatencyHistogram();
+	}
+
+	// record the time since start, a System.nanoTime() value
+	public void record(Operation op, long start) {
+		histograms[op.ordinal()].record(System.nanoTime() - start);
+	}
+
+	public LatencyHistogram getHistogram(Operation op) {
+		return histograms[op.ordinal()];
+	}
+
+	public Map<Operation, LatencyHistogram.Snapshot> snapshot() {
+		Map<Operation, LatencyHistogram.Snapshot> map = new EnumMap<Operation, LatencyHistogram.Snapshot>(
+				Operation.class);
+		for (Operation op : Operation.values())
+			map.put(op, histograms[op.ordinal()].snapshot());
+		return map;
+	}
+
+	// the snapshots since the last reset, then start a new interval
+	public Map<Operation, LatencyHistogram.Snapshot> snapshotAndReset() {
+		Map<Operation, LatencyHistogram.Snapshot> map = new EnumMap<Operation, LatencyHistogram.Snapshot>(
+				Operation.class);
+		for (Operation op : Operation.values())
+			map.put(op, histograms[op.ordinal()].snapshotAndReset());
+		return map;
+	}
+
+	public void reset() {
+		for (LatencyHistogram h : histograms)
+			h.reset();
+	}
+
+	// one line per operation that was recorded
+	public static String format(Map<Operation, LatencyHistogram.Snapshot> snapshots) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("  %-16s %10s %10s %10s %10s %12s%n", "operation", "count", "p50 ns", "p99 ns",
+				"p99.9 ns", "max ns"));
+		for (Map.Entry<Operation, LatencyHistogram.Snapshot> e : snapshots.entrySet()) {
+			LatencyHistogram.Snapshot s = e.getValue();
+			if (s.getCount() == 0)
+				continue;
+			sb.append(String.format("  %-16s %10d %10d %10d %10d %12d%n", e.getKey().name().toLowerCase(),
+					s.getCount(), s.getP50(), s.getP99(), s.getP999(), s.getMax()));
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return format(snapshot());
+	}
+}
@@ -0,0 +1,107 @@
+package cmsc420.meeshquest.part1;
+
+// Nathanael Brian
+// Estimated memory held by a tree, by category
+
+/*
+ * Built by SGTree.memoryReport() and SGKDTree.memoryReport() in a single
+ * traversal that allocates nothing per node, so it is cheap enough to call
+ * periodically and track over time.
+ *
+ * Byte counts are estimates for a 64-bit HotSpot JVM with compressed
+ * references (12 byte object headers, 4 byte references, 8 byte alignment)
+ * and compact (Latin-1) strings. Points are counted once, from the external
+ * node that stores them, including their name string; strings shared with
+ * other objects are counted anyway. Wasted bytes are included in the other
+ * categories; they are storage that holds nothing useful (tombstones, link
+ * slots that external nodes never use, and so on; each tree says which).
+ */
+
+public class MemoryReport {
+	public static final int HEADER = 12; // object header
+	public static final int REFERENCE = 4; // compressed reference
+	public static final int ARRAY_HEADER = 16; // header and length
+
+	private final String tree;
+	private final long internalNodes, externalNodes;
+	private final long nodeBytes, pointBytes, tagBytes, geometryBytes, cacheBytes, wastedBytes;
+
+	public MemoryReport(String tree, long internalNodes, long externalNodes, long nodeBytes, long pointBytes,
+			long tagBytes, long geometryBytes, long cacheBytes, long wastedBytes) {
+		this.tree = tree;
+		this.internalNodes = internalNodes;
+		this.externalNodes = externalNodes;
+		this.nodeBytes = nodeBytes;
+		this.pointBytes = pointBytes;
+		this.tagBytes = tagBytes;
+		this.geometryBytes = geometryBytes;
+		this.cacheBytes = cacheBytes;
+		this.wastedBytes = wastedBytes;
+	}
+
+	// size of an object of the given unaligned size
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	// a String and its byte[] of Latin-1 characters
+	public static long stringBytes(String s) {
+		if (s == null)
+			return 0;
+		return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + s.length());
+	}
+
+	public long getInternalNodes() {
+		return internalNodes;
+	}
+
+	public long getExternalNodes() {
+		return externalNodes;
+	}
+
+	public long getNodeBytes() { // the node objects themselves
+		return nodeBytes;
+	}
+
+	public long getPointBytes() { // point objects and their names
+		return pointBytes;
+	}
+
+	public long getTagBytes() { // node tags
+		return tagBytes;
+	}
+
+	public long getGeometryBytes() { // bounding rectangles, corner points and similar fixed geometry
+		return geometryBytes;
+	}
+
+	public long getCacheBytes() { // print fragments, query caches, subscriptions
+		return cacheBytes;
+	}
+
+	public long getWastedBytes() { // part of the above that holds nothing useful
+		return wastedBytes;
+	}
+
+	public long getTotalBytes() {
+		return nodeBytes + pointBytes + tagBytes + geometryBytes + cacheBytes;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(tree).append(": ").append(internalNodes).append(" internal and ").append(externalNodes)
+				.append(" external nodes, ~").append(getTotalBytes()).append(" bytes").append(System.lineSeparator());
+		line(sb, "nodes", nodeBytes);
+		line(sb, "points", pointBytes);
+		line(sb, "tags", tagBytes);
+		line(sb, "geometry", geometryBytes);
+		line(sb, "caches", cacheBytes);
+		line(sb, "wasted", wastedBytes);
+		return sb.toString();
+	}
+
+	private void line(StringBuilder sb, String name, long bytes) {
+		long total = getTotalBytes();
+		sb.append(String.format("  %-9s %12d bytes %5.1f%%%n", name, bytes, (total == 0) ? 0.0 : 100.0 * bytes / total));
+	}
+}
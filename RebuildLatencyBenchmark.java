@@ -0,0 +1,184 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cmsc420.meeshquest.part1.LatencyHistogram;
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Per-operation latency of inline, background and incremental rebuilds
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.RebuildLatencyBenchmark [points] [work] [threshold] [seed]
+ *
+ * Times every single operation and prints latency percentiles and a histogram
+ * for each rebuild mode. The SG KD-Tree inserts the points and then deletes
+ * 60% of them, which triggers the whole-tree rebuild after deletions; the SG
+ * Tree only inserts (its delete still does whole-tree passes). Three data sets:
+ * uniform cities, cities drifting east (x grows with time), which keeps
+ * unbalancing the right side and so triggers large scapegoat rebuilds, and
+ * cities sorted by x, where every write during a rebuild lands in the same
+ * corner, so a pending rebuild that falls behind shows up in the height.
+ *
+ * Every mode of a tree must end up with the same points. Garbage collection
+ * pauses land in every mode's tail alike; run with a fixed heap (-Xms = -Xmx)
+ * to keep them rare.
+ */
+
+public class RebuildLatencyBenchmark {
+	private static final int MAP_SIZE = 1 << 20;
+	private static final long[] BANDS = { 1000, 4000, 16000, 64000, 256000, 1000000, 4000000, 16000000 }; // ns
+
+	public static void main(String[] args) throws Exception {
+		int points = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int work = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+		int threshold = (args.length > 2) ? Integer.parseInt(args[2]) : 1024;
+		long seed = (args.length > 3) ? Long.parseLong(args[3]) : 420;
+
+		for (int round = 0; round < 2; round++) { // the first round only warms up
+			boolean print = round == 1;
+			int n = print ? points : points / 10;
+			for (String dist : new String[] { "uniform", "drift", "sorted" }) {
+				List<City> cities = generate(new Random(seed), dist, n);
+				List<City> deletes = new ArrayList<City>(cities.subList(0, 3 * n / 5));
+				Collections.shuffle(deletes, new Random(seed + 1));
+				if (print) {
+					System.out.printf("SG KD-Tree, %s: %d inserts, then %d deletes (work %d, threshold %d)%n", dist,
+							n, deletes.size(), work, threshold);
+					header();
+				}
+				int[] reference = null;
+				for (String mode : new String[] { "inline", "background", "incremental" }) {
+					LatencyHistogram h = new LatencyHistogram();
+					int[] result = runKD(mode, cities, deletes, work, threshold, h);
+					if (reference == null) {
+						reference = result;
+					} else if (result[0] != reference[0]) {
+						throw new Exception(mode + " ends with " + result[0] + " points instead of " + reference[0]);
+					}
+					if (print)
+						row(mode, h, result[1]);
+				}
+
+				if (print) {
+					System.out.printf("SG Tree, %s: %d inserts (work %d, threshold %d)%n", dist, n, work, threshold);
+					header();
+				}
+				for (String mode : new String[] { "inline", "incremental" }) {
+					LatencyHistogram h = new LatencyHistogram();
+					int height = runSG(mode, cities, work, threshold, h);
+					if (print)
+						row(mode, h, height);
+				}
+				if (print)
+					System.out.println();
+			}
+		}
+	}
+
+	// returns the final size and the largest height seen
+	private static int[] runKD(String mode, List<City> cities, List<City> deletes, int work, int threshold,
+			LatencyHistogram h) throws Exception {
+		SGKDTree<City> tree = new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(),
+				new CompareYX<City>(), MAP_SIZE, MAP_SIZE);
+		ExecutorService executor = null;
+		if (mode.equals("background")) {
+			executor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "rebuild");
+				t.setDaemon(true);
+				return t;
+			});
+			tree.setBackgroundRebuild(executor, threshold);
+		} else if (mode.equals("incremental")) {
+			tree.setIncrementalRebuild(work, threshold);
+		}
+
+		int maxHeight = 0;
+		for (City c : cities) {
+			long start = System.nanoTime();
+			tree.insert(c);
+			h.record(System.nanoTime() - start);
+			maxHeight = Math.max(maxHeight, tree.getHeight());
+		}
+		for (City c : deletes) {
+			long start = System.nanoTime();
+			tree.delete(c);
+			h.record(System.nanoTime() - start);
+			maxHeight = Math.max(maxHeight, tree.getHeight());
+		}
+		tree.awaitRebuild();
+		if (executor != null)
+			executor.shutdown();
+		return new int[] { tree.entryList().size(), maxHeight };
+	}
+
+	// returns the largest height seen
+	private static int runSG(String mode, List<City> cities, int work, int threshold, LatencyHistogram h) {
+		SGTree tree = new SGTree();
+		if (mode.equals("incremental")) {
+			tree.setIncrementalRebuild(work, threshold);
+		}
+		int maxHeight = 0;
+		for (City c : cities) {
+			cmsc420.meeshquest.part1.City city = new cmsc420.meeshquest.part1.City(c.getName(), (int) c.getX(),
+					(int) c.getY(), 0, "Black");
+			long start = System.nanoTime();
+			tree.insert(city);
+			h.record(System.nanoTime() - start);
+			maxHeight = Math.max(maxHeight, tree.getHeight());
+		}
+		tree.finishRebuild();
+		if (tree.size() != cities.size())
+			throw new IllegalStateException("SG Tree lost points");
+		return maxHeight;
+	}
+
+	private static List<City> generate(Random random, String dist, int n) {
+		ArrayList<City> list = new ArrayList<City>(n);
+		HashSet<Long> used = new HashSet<Long>();
+		while (list.size() < n) {
+			int x, y;
+			if (dist.equals("uniform")) {
+				x = random.nextInt(MAP_SIZE);
+				y = random.nextInt(MAP_SIZE);
+			} else if (dist.equals("drift")) { // a narrow band moving east
+				x = (int) ((long) list.size() * (MAP_SIZE - 4096) / n) + random.nextInt(4096);
+				y = random.nextInt(MAP_SIZE);
+			} else { // strictly increasing x in a thin strip
+				x = list.size();
+				y = random.nextInt(16);
+			}
+			if (!used.add(((long) x << 32) | y))
+				continue;
+			list.add(new City(x, y, "c" + list.size(), "Black", 0));
+		}
+		return list;
+	}
+
+	private static void header() {
+		System.out.printf("  %-12s %8s %8s %9s %10s %11s %8s", "mode", "ops", "p50 ns", "p99 ns", "p99.9 ns",
+				"p99.99 ns", "max ms");
+		for (long band : BANDS)
+			System.out.printf(" %7s", "<" + ((band < 1000000) ? band / 1000 + "us" : band / 1000000 + "ms"));
+		System.out.printf(" %7s %6s%n", ">=16ms", "height");
+	}
+
+	private static void row(String mode, LatencyHistogram h, int height) {
+		LatencyHistogram.Snapshot s = h.snapshot();
+		System.out.printf("  %-12s %8d %8d %9d %10d %11d %8.2f", mode, s.getCount(), s.getP50(), s.getP99(),
+				s.getP999(), s.getValueAtPercentile(99.99), s.getMax() / 1e6);
+		long below = 0;
+		for (long band : BANDS) {
+			long c = s.getCountBelow(band);
+			System.out.printf(" %7d", c - below);
+			below = c;
+		}
+		System.out.printf(" %7d %6d%n", s.getCount() - below, height);
+	}
+}
@@ -0,0 +1,299 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Replays a command file directly against the trees and reports latencies
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.ReplayHarness commands.xml [-tree kd|sg|both] [-runs r]
+ *
+ * The command file (e.g. from WorkloadGenerator) is loaded into memory once,
+ * then replayed r times against a fresh tree, calling the tree methods
+ * directly with no XML output. Each tree call is timed on its own; the name
+ * dictionary and duplicate checks are kept outside the timed region. Per
+ * command type the harness prints the count, throughput and the 50th, 90th,
+ * 99th and 99.9th percentile and maximum latency. Earlier runs warm up the JIT,
+ * so the last run is usually the one to read.
+ *
+ * The part 1 SG tree has no nearest or range search, so those commands are
+ * skipped for it.
+ */
+
+public class ReplayHarness {
+	private static final String[] COMMANDS = { "createCity", "deleteCity", "nearestCity", "rangeCities",
+			"printKdTree", "printSGTree", "clearAll" };
+	private static final int CREATE = 0, DELETE = 1, NEAREST = 2, RANGE = 3, PRINT_KD = 4, PRINT_SG = 5, CLEAR = 6;
+
+	// the command file in columns
+	private byte[] type = new byte[1024];
+	private int[] x = new int[1024], y = new int[1024], radius = new int[1024];
+	private String[] name = new String[1024];
+	private int count;
+	private int current; // command being replayed
+	private int width = 1024, height = 1024;
+
+	// latencies of the current run, per command type
+	private long[][] latency = new long[COMMANDS.length][];
+	private int[] latencyCount = new int[COMMANDS.length];
+
+	public void load(InputStream in) throws Exception {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XMLStreamReader reader = factory.createXMLStreamReader(new BufferedInputStream(in, 1 << 16));
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				if (depth == 1) {
+					String w = reader.getAttributeValue(null, "spatialWidth");
+					String h = reader.getAttributeValue(null, "spatialHeight");
+					if (w != null)
+						width = Integer.parseInt(w);
+					if (h != null)
+						height = Integer.parseInt(h);
+				} else if (depth == 2) {
+					int t = Arrays.asList(COMMANDS).indexOf(reader.getLocalName());
+					if (t >= 0)
+						add(t, reader);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		reader.close();
+	}
+
+	private void add(int t, XMLStreamReader reader) {
+		if (count == type.length) {
+			int n = 2 * count;
+			type = Arrays.copyOf(type, n);
+			x = Arrays.copyOf(x, n);
+			y = Arrays.copyOf(y, n);
+			radius = Arrays.copyOf(radius, n);
+			name = Arrays.copyOf(name, n);
+		}
+		type[count] = (byte) t;
+		name[count] = reader.getAttributeValue(null, "name");
+		x[count] = parse(reader.getAttributeValue(null, "x"));
+		y[count] = parse(reader.getAttributeValue(null, "y"));
+		radius[count] = parse(reader.getAttributeValue(null, "radius"));
+		count++;
+	}
+
+	private static int parse(String value) {
+		return (value == null) ? 0 : Integer.parseInt(value);
+	}
+
+	private void record(int t, long nanos) {
+		if (latency[t] == null) {
+			latency[t] = new long[1024];
+		} else if (latencyCount[t] == latency[t].length) {
+			latency[t] = Arrays.copyOf(latency[t], 2 * latencyCount[t]);
+		}
+		latency[t][latencyCount[t]++] = nanos;
+	}
+
+	// -----------------------------------------------------------------
+	// Replays
+	// -----------------------------------------------------------------
+
+	public long replayKdTree(Document doc) throws Exception {
+		Arrays.fill(latencyCount, 0);
+		SGKDTree<City> tree = new SGKDTree<City>(new CompareXY<City>(), doc, new CompareXY<City>(),
+				new CompareYX<City>(), width, height);
+		HashMap<String, City> byName = new HashMap<String, City>();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			current = i;
+			long t0;
+			switch (type[i]) {
+			case CREATE:
+				City city = new City(x[i], y[i], name[i], "black", radius[i]);
+				if (byName.containsKey(name[i]))
+					continue;
+				t0 = System.nanoTime();
+				boolean duplicate = tree.find(city) != null;
+				if (!duplicate)
+					tree.insert(city);
+				record(CREATE, System.nanoTime() - t0);
+				if (!duplicate)
+					byName.put(name[i], city);
+				break;
+			case DELETE:
+				City victim = byName.remove(name[i]);
+				if (victim == null)
+					continue;
+				t0 = System.nanoTime();
+				tree.delete(victim);
+				record(DELETE, System.nanoTime() - t0);
+				break;
+			case NEAREST:
+				City q = new City(x[i], y[i], "", "", 0);
+				t0 = System.nanoTime();
+				tree.nearestNeighbor(q);
+				record(NEAREST, System.nanoTime() - t0);
+				break;
+			case RANGE:
+				City center = new City(x[i], y[i], "", "", 0);
+				t0 = System.nanoTime();
+				tree.rangeSearch(center, radius[i]);
+				record(RANGE, System.nanoTime() - t0);
+				break;
+			case PRINT_KD:
+				t0 = System.nanoTime();
+				tree.printXML();
+				record(PRINT_KD, System.nanoTime() - t0);
+				break;
+			case CLEAR:
+				t0 = System.nanoTime();
+				tree.clear();
+				record(CLEAR, System.nanoTime() - t0);
+				byName.clear();
+				break;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	public long replaySGTree() throws Exception {
+		Arrays.fill(latencyCount, 0);
+		SGTree tree = new SGTree();
+		HashMap<String, cmsc420.meeshquest.part1.City> byName = new HashMap<String, cmsc420.meeshquest.part1.City>();
+		HashSet<Long> coordinates = new HashSet<Long>();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			current = i;
+			long t0;
+			switch (type[i]) {
+			case CREATE:
+				long c = ((long) x[i] << 32) | y[i];
+				if (byName.containsKey(name[i]) || !coordinates.add(c))
+					continue;
+				cmsc420.meeshquest.part1.City city = new cmsc420.meeshquest.part1.City(name[i], x[i], y[i],
+						radius[i], "black");
+				t0 = System.nanoTime();
+				tree.insert(city);
+				record(CREATE, System.nanoTime() - t0);
+				byName.put(name[i], city);
+				break;
+			case DELETE:
+				cmsc420.meeshquest.part1.City victim = byName.remove(name[i]);
+				if (victim == null)
+					continue;
+				coordinates.remove(((long) victim.getX() << 32) | victim.getY());
+				t0 = System.nanoTime();
+				tree.delete(victim);
+				record(DELETE, System.nanoTime() - t0);
+				break;
+			case PRINT_SG:
+				t0 = System.nanoTime();
+				tree.printXML();
+				record(PRINT_SG, System.nanoTime() - t0);
+				break;
+			case CLEAR:
+				t0 = System.nanoTime();
+				tree = new SGTree();
+				record(CLEAR, System.nanoTime() - t0);
+				byName.clear();
+				coordinates.clear();
+				break;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	// -----------------------------------------------------------------
+	// Report
+	// -----------------------------------------------------------------
+
+	public void report(String title, long elapsed) {
+		int total = 0;
+		for (int t = 0; t < COMMANDS.length; t++)
+			total += latencyCount[t];
+		System.out.printf("%s: %d commands in %.1f ms (%.0f ops/s)%n", title, total, elapsed / 1e6,
+				total / (elapsed / 1e9));
+		System.out.printf("  %-12s %10s %12s %10s %10s %10s %10s %10s%n", "command", "count", "ops/s", "p50 us",
+				"p90 us", "p99 us", "p99.9 us", "max us");
+		for (int t = 0; t < COMMANDS.length; t++) {
+			int n = latencyCount[t];
+			if (n == 0)
+				continue;
+			long[] sorted = Arrays.copyOf(latency[t], n);
+			Arrays.sort(sorted);
+			long sum = 0;
+			for (long v : sorted)
+				sum += v;
+			System.out.printf("  %-12s %10d %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n", COMMANDS[t], n,
+					n / (sum / 1e9), percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), sorted[n - 1] / 1e3);
+		}
+	}
+
+	// nearest-rank percentile of a sorted array, in microseconds
+	private static double percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, rank - 1)] / 1e3;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: ReplayHarness commands.xml [-tree kd|sg|both] [-runs r]");
+			return;
+		}
+		String trees = "kd";
+		int runs = 3;
+		for (int i = 1; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-tree"))
+				trees = args[i + 1];
+			else if (args[i].equals("-runs"))
+				runs = Integer.parseInt(args[i + 1]);
+			else
+				throw new Exception("unknown option " + args[i]);
+		}
+
+		ReplayHarness harness = new ReplayHarness();
+		InputStream in = new FileInputStream(args[0]);
+		harness.load(in);
+		in.close();
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+
+		ArrayList<String> selected = new ArrayList<String>();
+		if (trees.equals("kd") || trees.equals("both"))
+			selected.add("kd");
+		if (trees.equals("sg") || trees.equals("both"))
+			selected.add("sg");
+		for (String tree : selected) {
+			String title = tree.equals("kd") ? "SGKDTree" : "SGTree";
+			for (int run = 1; run <= runs; run++) {
+				try {
+					long elapsed = tree.equals("kd") ? harness.replayKdTree(doc) : harness.replaySGTree();
+					harness.report(title + " run " + run, elapsed);
+				} catch (Exception e) {
+					// a tree bug, not a harness bug: report where it happened and move on
+					System.out.println(title + " run " + run + " failed at command " + harness.current + " ("
+							+ COMMANDS[harness.type[harness.current]] + " " + harness.name[harness.current] + "): " + e);
+					break;
+				}
+			}
+		}
+	}
+}
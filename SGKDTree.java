@@ -1,17 +1,32 @@
 package cmsc420.meeshquest.part2;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import cmsc420.meeshquest.part1.LatencyRecorder;
+import cmsc420.meeshquest.part1.MemoryReport;
+
 // Nathanael Brian
 // SG KD-Tree implementation
 
@@ -55,9 +70,11 @@ public class SGKDTree<P extends NamedPoint2D> {
 	private final boolean DEBUG = false; // produce extra debugging output
 	private final int BALANCE_NUM = 2; // numerator in balance ratio
 	private final int BALANCE_DENOM = 3; // denominator in balance ratio
+	private final int HEIGHT_SLACK = 8; // levels over the bound before a pending incremental rebuild is finished
 
 	private abstract class Node { // generic node type
 		final boolean isExternal; // is node external?
+		byte[] xml; // cached print fragment of the subtree (see printXML), null when stale
 
 		Node(boolean isExternal) { // constructor
 			this.isExternal = isExternal;
@@ -69,22 +86,53 @@ public class SGKDTree<P extends NamedPoint2D> {
 
 		abstract Node delete(P pt) throws Exception; // delete point from subtree
 
-		abstract Node rebalance(P pt); // find scapegoat and rebalance tree
+		abstract void markDead(P pt) throws Exception; // lazy delete: tombstone point in subtree
+
+		abstract Node rebalance(P pt, int depth); // find scapegoat and rebalance tree
 
 		abstract void entryList(List<P> list); // return list of entries in subtree
 
 		abstract void print(Element result); // print subtree to result
 
+		abstract void writeXML(ByteArrayOutputStream out); // print subtree as bytes, no caching
+
 		abstract String debugPrint(String prefix); // print for debugging
 
 		abstract boolean check(P low, P high); // integrity check
 
 		abstract public String toString(); // for debugging
 
-		abstract public P nearestNeighbor(P q, Node p, Rectangle cell, float bestDist, P bestPoint) throws Exception; // nearest
-																														// neighbor
-		// to
-		// point q
+		abstract void nearestNeighbor(NearestSearch search); // nearest neighbor to search.q
+
+		abstract void nearestNeighbors(KnnSearch search); // k nearest neighbors of search.q
+
+		abstract void rangeSearch(double lowX, double lowY, double highX, double highY, List<P> list); // points in rectangle
+
+		abstract void rangeSearch(double x, double y, double radius2, List<P> list); // points in circle
+
+		abstract Node deleteRange(double lowX, double lowY, double highX, double highY, List<P> removed); // drop points in rectangle
+
+		abstract double minX(); // bounding box of the points in the subtree
+
+		abstract double minY();
+
+		abstract double maxX();
+
+		abstract double maxY();
+
+		// squared distance from (x, y) to the bounding box of this subtree
+		double boxDistance2(double x, double y) {
+			double dx = Math.max(0, Math.max(minX() - x, x - maxX()));
+			double dy = Math.max(0, Math.max(minY() - y, y - maxY()));
+			return dx * dx + dy * dy;
+		}
+
+		// squared distance from (x, y) to the farthest corner of the bounding box
+		double boxFarDistance2(double x, double y) {
+			double dx = Math.max(x - minX(), maxX() - x);
+			double dy = Math.max(y - minY(), maxY() - y);
+			return dx * dx + dy * dy;
+		}
 	}
 
 	// -----------------------------------------------------------------
@@ -95,22 +143,19 @@ public class SGKDTree<P extends NamedPoint2D> {
 
 		final P splitter; // point object used for splitting
 		int size; // node size (number of external descendants)
+		int live; // number of external descendants that are not tombstones
 		int height; // node height (max number of edges to external)
 		Node left; // children
 		Node right;
 		int cutDim;
+		double minX, minY, maxX, maxY; // tight bounding box of the points in the subtree
 
-		InternalNode(P splitter, Node left, Node right) {
+		InternalNode(P splitter, Node left, Node right, int cutDim) {
 			super(false);
 			this.splitter = splitter;
 			this.left = left;
 			this.right = right;
-
-			if (high.getX() - low.getX() >= high.getY() - low.getY()) {
-				cutDim = 0; // split along x-coordinate (vertically)
-			} else {
-				cutDim = 1; // split along y-coordinate (horizontally)
-			}
+			this.cutDim = cutDim;
 
 			updateSizeAndHeight();
 		}
@@ -131,293 +176,50 @@ public class SGKDTree<P extends NamedPoint2D> {
 			}
 		}
 
-		// cutDim is the minimum bounding box that includes pt and splitter
-		Node insert(P pt) throws Exception {
-			// rect is minimumRectangle listPoint2d pt splitter
+		// compare pt against the splitter in this node's lexicographic order
+		int compareToSplitter(P pt) {
 			if (cutDim == 0) { // x-splitter
-				if (compareXY.compare(pt, splitter) <= 0) { // pt is less or equal
-					List<Point2D> listPoint2D = new ArrayList<Point2D>();
-					listPoint2D.add(pt.getPoint2D());
-					listPoint2D.add(splitter.getPoint2D());
-					rect = rect.minimumRectangle(listPoint2D);
-
-					if (DEBUG)
-						System.out.println("pt " + pt.toString() + "splitter " + splitter.toString() + "Rectangle low "
-								+ rect.getLow().toString() + " high " + rect.getHigh().toString());
-
-					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-						if (DEBUG) {
-							System.out.println(
-									"splitter " + splitter.toString() + " pt " + pt.toString() + " go left" + " x");
-							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-						}
-					} else {
-						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go left"
-								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-					}
-
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (DEBUG) {
-						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-					}
-
-					left = left.insert(pt);
-					updateSizeAndHeight(); // update this node's information
-				} else { // pt is larger
-					List<Point2D> listPoint2D = new ArrayList<Point2D>();
-					listPoint2D.add(pt.getPoint2D());
-					listPoint2D.add(splitter.getPoint2D());
-					rect = rect.minimumRectangle(listPoint2D);
-
-					if (DEBUG)
-						System.out.println("pt " + pt.toString() + "splitter " + splitter.toString() + "Rectangle low "
-								+ rect.getLow().toString() + " high " + rect.getHigh().toString());
-
-					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-						if (DEBUG) {
-							System.out.println(
-									"splitter " + splitter.toString() + " pt " + pt.toString() + " go right" + " x");
-							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-						}
-					} else {
-						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go right"
-								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-					}
-
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (DEBUG) {
-						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-					}
-
-					right = right.insert(pt);
-					updateSizeAndHeight(); // update this node's information
-				}
+				return compareXY.compare(pt, splitter); // (px, py) vs (sx, sy)
 			} else { // y-splitter
-				if (compareYX.compare(pt, splitter) <= 0) { // pt is less or equal
-					List<Point2D> listPoint2D = new ArrayList<Point2D>();
-					listPoint2D.add(pt.getPoint2D());
-					listPoint2D.add(splitter.getPoint2D());
-					rect = rect.minimumRectangle(listPoint2D);
-
-					if (DEBUG)
-						System.out.println("pt " + pt.toString() + "splitter " + splitter.toString() + "Rectangle low "
-								+ rect.getLow().toString() + " high " + rect.getHigh().toString());
-
-					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-						if (DEBUG) {
-							System.out.println(
-									"splitter " + splitter.toString() + " pt " + pt.toString() + " go left" + " x");
-							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-						}
-					} else {
-						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go left"
-								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-					}
-
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (DEBUG) {
-						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-					}
-
-					left = left.insert(pt);
-					updateSizeAndHeight(); // update this node's information
-				} else { // pt is larger
-					List<Point2D> listPoint2D = new ArrayList<Point2D>();
-					listPoint2D.add(pt.getPoint2D());
-					listPoint2D.add(splitter.getPoint2D());
-					rect = rect.minimumRectangle(listPoint2D);
-
-					if (DEBUG)
-						System.out.println("pt " + pt.toString() + "splitter " + splitter.toString() + "Rectangle low "
-								+ rect.getLow().toString() + " high " + rect.getHigh().toString());
-
-					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-						if (DEBUG) {
-							System.out.println(
-									"splitter " + splitter.toString() + " pt " + pt.toString() + " go right" + " x");
-							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-						}
-					} else {
-						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go right"
-								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-					}
+				return compareYX.compare(pt, splitter); // (py, px) vs (sy, sx)
+			}
+		}
 
-					low = rect.getLow();
-					high = rect.getHigh();
+		// descend by the splitter only; no geometry is needed to route a point
+		Node insert(P pt) throws Exception {
+			if (compareToSplitter(pt) <= 0) { // pt is less or equal
+				if (DEBUG)
+					System.out.println("splitter " + splitter.toString() + " pt " + pt.toString() + " go left");
 
-					if (DEBUG) {
-						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-					}
+				left = left.insert(pt);
+			} else { // pt is larger
+				if (DEBUG)
+					System.out.println("splitter " + splitter.toString() + " pt " + pt.toString() + " go right");
 
-					right = right.insert(pt);
-					updateSizeAndHeight(); // update this node's information
-				}
+				right = right.insert(pt);
 			}
-
-			// rect is leftPart rightPart approach
-//			if (cutDim == 0) { // x-splitter
-//				if (compareXY.compare(pt, splitter) <= 0) { // pt is less or equal
-//					rect = rect.leftPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-//
-//					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-//							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-//						if (DEBUG) {
-//							System.out.println(
-//									"splitter " + splitter.toString() + " pt " + pt.toString() + " go left" + " x");
-//							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-//									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-//						}
-//					} else {
-//						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go left"
-//								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-//								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-//					}
-//
-//					low = rect.getLow();
-//					high = rect.getHigh();
-//
-//					if (DEBUG) {
-//						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-//								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-//					}
-//
-//					left = left.insert(pt);
-//					updateSizeAndHeight(); // update this node's information
-//				} else { // pt is larger
-//					rect = rect.rightPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-//
-//					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-//							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-//						if (DEBUG) {
-//							System.out.println(
-//									"splitter " + splitter.toString() + " pt " + pt.toString() + " go right" + " x");
-//							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-//									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-//						}
-//					} else {
-//						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go right"
-//								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-//								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-//					}
-//
-//					low = rect.getLow();
-//					high = rect.getHigh();
-//
-//					if (DEBUG) {
-//						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-//								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-//					}
-//
-//					right = right.insert(pt);
-//					updateSizeAndHeight(); // update this node's information
-//				}
-//			} else { // y-splitter
-//				if (compareYX.compare(pt, splitter) <= 0) { // pt is less or equal
-//					rect = rect.leftPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-//
-//					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-//							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-//						if (DEBUG) {
-//							System.out.println(
-//									"splitter " + splitter.toString() + " pt " + pt.toString() + " go left" + " x");
-//							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-//									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-//						}
-//					} else {
-//						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go left"
-//								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-//								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-//					}
-//
-//					low = rect.getLow();
-//					high = rect.getHigh();
-//
-//					if (DEBUG) {
-//						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-//								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-//					}
-//
-//					left = left.insert(pt);
-//					updateSizeAndHeight(); // update this node's information
-//				} else { // pt is larger
-//					rect = rect.rightPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-//
-//					if (rect.contains(new Point2D(splitter.getX(), splitter.getY()))
-//							&& rect.contains(new Point2D(pt.getX(), pt.getY()))) {
-//						if (DEBUG) {
-//							System.out.println(
-//									"splitter " + splitter.toString() + " pt " + pt.toString() + " go right" + " x");
-//							System.out.println("contain splitter " + splitter.toString() + " pt " + pt.toString()
-//									+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString());
-//						}
-//					} else {
-//						throw new Exception(("splitter " + splitter.toString() + " pt " + pt.toString() + " go right"
-//								+ " x\n" + "NOT contain splitter " + splitter.toString() + " pt " + pt.toString()
-//								+ " low " + rect.getLow().toString() + " high " + rect.getHigh().toString()));
-//					}
-//
-//					low = rect.getLow();
-//					high = rect.getHigh();
-//
-//					if (DEBUG) {
-//						System.out.printf("inserting internal %s low: %d %d high: %d %d \n", pt.toString(),
-//								(int) low.getX(), (int) low.getY(), (int) high.getX(), (int) high.getY());
-//					}
-//
-//					right = right.insert(pt);
-//					updateSizeAndHeight(); // update this node's information
-//				}
-//			}
+			updateSizeAndHeight(); // update this node's information
 			return this;
 		}
 
-		Node rebalance(P pt) {
+		Node rebalance(P pt, int depth) {
+			rebalancePath.add(this); // path from the root, for background rebuilds
 			if (cutDim == 0) { // x-splitter
 				if (compareXY.compare(pt, splitter) <= 0) { // pt is less or equal
 
-					rect = rect.leftPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (2 * getSize(this) < 3 * getSize(left)) { // too unbalanced?
+					if (2 * getSize(this) < 3 * getSize(left) && !deferScapegoat(this, depth)) { // too unbalanced?
 						return rebuild(this); // this is the scapegoat
-					} else { // balance is okay
-						left = left.rebalance(pt); // continue the search
+					} else { // balance is okay (or being fixed in the background)
+						left = left.rebalance(pt, depth + 1); // continue the search
 						updateSizeAndHeight(); // update this node's information
 						return this;
 					}
 				} else { // pt is larger
 
-					rect = rect.rightPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (2 * getSize(this) < 3 * getSize(right)) { // too unbalanced?
+					if (2 * getSize(this) < 3 * getSize(right) && !deferScapegoat(this, depth)) { // too unbalanced?
 						return rebuild(this); // this is the scapegoat
-					} else { // balance is okay
-						right = right.rebalance(pt); // continue the search
+					} else { // balance is okay (or being fixed in the background)
+						right = right.rebalance(pt, depth + 1); // continue the search
 						updateSizeAndHeight(); // update this node's information
 						return this;
 					}
@@ -425,27 +227,19 @@ public class SGKDTree<P extends NamedPoint2D> {
 			} else { // y-splitter
 				if (compareYX.compare(pt, splitter) <= 0) { // pt is less or equal
 
-					rect = rect.leftPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (2 * getSize(this) < 3 * getSize(left)) { // too unbalanced?
+					if (2 * getSize(this) < 3 * getSize(left) && !deferScapegoat(this, depth)) { // too unbalanced?
 						return rebuild(this); // this is the scapegoat
-					} else { // balance is okay
-						left = left.rebalance(pt); // continue the search
+					} else { // balance is okay (or being fixed in the background)
+						left = left.rebalance(pt, depth + 1); // continue the search
 						updateSizeAndHeight(); // update this node's information
 						return this;
 					}
 				} else { // pt is larger
 
-					rect = rect.rightPart(cutDim, new Point2D(splitter.getX(), splitter.getY()));
-					low = rect.getLow();
-					high = rect.getHigh();
-
-					if (2 * getSize(this) < 3 * getSize(right)) { // too unbalanced?
+					if (2 * getSize(this) < 3 * getSize(right) && !deferScapegoat(this, depth)) { // too unbalanced?
 						return rebuild(this); // this is the scapegoat
-					} else { // balance is okay
-						right = right.rebalance(pt); // continue the search
+					} else { // balance is okay (or being fixed in the background)
+						right = right.rebalance(pt, depth + 1); // continue the search
 						updateSizeAndHeight(); // update this node's information
 						return this;
 					}
@@ -493,9 +287,27 @@ public class SGKDTree<P extends NamedPoint2D> {
 			}
 		}
 
+		// only the live count changes; the structure is left for compaction
+		void markDead(P pt) throws Exception {
+			if (compareToSplitter(pt) <= 0) {
+				left.markDead(pt);
+			} else {
+				right.markDead(pt);
+			}
+			live--;
+			xml = null;
+		}
+
+		// also refreshes the bounding box, which is the union of the children's boxes
 		void updateSizeAndHeight() {
+			xml = null; // every change to a subtree passes through here
 			size = getSize(left) + getSize(right);
+			live = getLive(left) + getLive(right);
 			height = 1 + Math.max(getHeight(left), getHeight(right));
+			minX = Math.min(left.minX(), right.minX());
+			minY = Math.min(left.minY(), right.minY());
+			maxX = Math.max(left.maxX(), right.maxX());
+			maxY = Math.max(left.maxY(), right.maxY());
 		}
 
 		// add subtree to list
@@ -504,8 +316,16 @@ public class SGKDTree<P extends NamedPoint2D> {
 			right.entryList(list);
 		}
 
-		// print XML
+		// print XML; tombstones are left out, and a node with no live points on
+		// one side is left out too, as a real delete would have removed it
 		void print(Element element) {
+			if (getLive(left) == 0) {
+				right.print(element);
+				return;
+			} else if (getLive(right) == 0) {
+				left.print(element);
+				return;
+			}
 			// print this item
 			Element out = resultsDoc.createElement("internal");
 			out.setAttribute("splitDim", Integer.toString(cutDim));
@@ -517,6 +337,31 @@ public class SGKDTree<P extends NamedPoint2D> {
 			right.print(out);
 		}
 
+		// same output as print, with attributes in the order the DOM serializes them
+		void writeXML(ByteArrayOutputStream out) {
+			left.xml = null; // covered by this fragment now
+			right.xml = null;
+			if (getLive(left) == 0) {
+				right.writeXML(out);
+				return;
+			} else if (getLive(right) == 0) {
+				left.writeXML(out);
+				return;
+			}
+			writeStartTag(out);
+			left.writeXML(out);
+			right.writeXML(out);
+			writeASCII(out, "</internal>");
+		}
+
+		void writeStartTag(ByteArrayOutputStream out) {
+			writeASCII(out, "<internal");
+			writeAttribute(out, "splitDim", Integer.toString(cutDim));
+			writeAttribute(out, "x", Integer.toString((int) splitter.getX()));
+			writeAttribute(out, "y", Integer.toString((int) splitter.getY()));
+			writeASCII(out, ">");
+		}
+
 		boolean check(P low, P high) {
 			boolean leftCheck = left.check(low, splitter); // check left side
 			boolean rightCheck = right.check(splitter, high); // check right side
@@ -540,11 +385,6 @@ public class SGKDTree<P extends NamedPoint2D> {
 			return cutDim + "- " + "(" + splitter.toString() + " ht:" + height + " sz:" + size + ")";
 		}
 
-		public float distanceTo(P q, P point) {
-			return (float) Math.sqrt((q.getX() - point.getX()) * (q.getX() - point.getX())
-					+ (q.getY() - point.getY()) * (q.getY() - point.getY()));
-		}
-
 		public P getSplitter() {
 			return splitter;
 		}
@@ -557,58 +397,109 @@ public class SGKDTree<P extends NamedPoint2D> {
 			return right;
 		}
 
-		public P nearestNeighbor(P q, Node p, Rectangle cell, float bestDist, P bestPoint) throws Exception {
-			if (p != null) {
-				int cd = cutDim;
-				P thisPoint;
+		double minX() {
+			return minX;
+		}
 
-				InternalNode pInternal;
-				if (!p.isExternal) {
-					pInternal = (InternalNode) p;
-				} else {
-					throw new Exception("nearestNeighbor p " + p.toString() + " not internal");
-				}
+		double minY() {
+			return minY;
+		}
 
-				Rectangle leftCell = cell.leftPart(cd,
-						new Point2D(pInternal.getSplitter().getX(), pInternal.getSplitter().getY())); // left child's
-																										// cell
-				Rectangle rightCell = cell.rightPart(cd,
-						new Point2D(pInternal.getSplitter().getX(), pInternal.getSplitter().getY())); // right child's
-																										// cell
-
-				if (q.get(cd) < pInternal.getSplitter().get(cd)) { // q is closer to left
-					if (DEBUG)
-						System.out.printf("nearest internal go left q:%s splitter:%s\n", q.toString(),
-								splitter.toString());
-
-					thisPoint = left.nearestNeighbor(q, pInternal.getLeft(), leftCell, bestDist, bestPoint);
-					if (distanceTo(q, thisPoint) < distanceTo(q, bestPoint)) {
-						bestPoint = thisPoint;
-					}
-					thisPoint = right.nearestNeighbor(q, pInternal.getRight(), rightCell, bestDist, bestPoint);
-					if (distanceTo(q, thisPoint) < distanceTo(q, bestPoint)) {
-						bestPoint = thisPoint;
-					}
-				} else { // q is closer to right
-					if (DEBUG)
-						System.out.printf("nearest internal go right q:%s splitter:%s\n", q.toString(),
-								splitter.toString());
-
-					thisPoint = right.nearestNeighbor(q, pInternal.getRight(), rightCell, bestDist, bestPoint);
-					if (distanceTo(q, thisPoint) < distanceTo(q, bestPoint)) {
-						bestPoint = thisPoint;
-					}
-					thisPoint = left.nearestNeighbor(q, pInternal.getLeft(), leftCell, bestDist, bestPoint);
-					if (distanceTo(q, thisPoint) < distanceTo(q, bestPoint)) {
-						bestPoint = thisPoint;
-					}
-				}
+		double maxX() {
+			return maxX;
+		}
+
+		double maxY() {
+			return maxY;
+		}
+
+		// visit the child whose box is closer first, and skip a child whose box is
+		// no closer than the best point found so far
+		void nearestNeighbor(NearestSearch search) {
+			search.visited++;
+			if (live == 0)
+				return; // only tombstones below
+			double leftDist = left.boxDistance2(search.x, search.y);
+			double rightDist = right.boxDistance2(search.x, search.y);
+
+			if (leftDist <= rightDist) {
+				if (leftDist < search.bestDist2)
+					left.nearestNeighbor(search);
+				if (rightDist < search.bestDist2)
+					right.nearestNeighbor(search);
+			} else {
+				if (rightDist < search.bestDist2)
+					right.nearestNeighbor(search);
+				if (leftDist < search.bestDist2)
+					left.nearestNeighbor(search);
+			}
+		}
+
+		// same order and pruning, against the k-th best distance
+		void nearestNeighbors(KnnSearch search) {
+			if (live == 0)
+				return; // only tombstones below
+			double leftDist = left.boxDistance2(search.x, search.y);
+			double rightDist = right.boxDistance2(search.x, search.y);
+
+			if (leftDist <= rightDist) {
+				if (leftDist < search.bound())
+					left.nearestNeighbors(search);
+				if (rightDist < search.bound())
+					right.nearestNeighbors(search);
+			} else {
+				if (rightDist < search.bound())
+					right.nearestNeighbors(search);
+				if (leftDist < search.bound())
+					left.nearestNeighbors(search);
+			}
+		}
+
+		void rangeSearch(double lowX, double lowY, double highX, double highY, List<P> list) {
+			if (live == 0 || maxX < lowX || minX > highX || maxY < lowY || minY > highY) {
+				return; // disjoint
+			} else if (minX >= lowX && maxX <= highX && minY >= lowY && maxY <= highY) {
+				entryList(list); // fully contained
+			} else {
+				left.rangeSearch(lowX, lowY, highX, highY, list);
+				right.rangeSearch(lowX, lowY, highX, highY, list);
+			}
+		}
+
+		// subtrees inside the rectangle are detached whole (tombstones included),
+		// so the cost is that of a range search
+		Node deleteRange(double lowX, double lowY, double highX, double highY, List<P> removed) {
+			if (maxX < lowX || minX > highX || maxY < lowY || minY > highY) {
+				return this; // disjoint
+			} else if (minX >= lowX && maxX <= highX && minY >= lowY && maxY <= highY) {
+				entryList(removed); // fully contained
+				return null;
+			}
+			left = left.deleteRange(lowX, lowY, highX, highY, removed);
+			right = right.deleteRange(lowX, lowY, highX, highY, removed);
+			if (left == null) {
+				return right; // subtree gone, return sibling (or null)
+			} else if (right == null) {
+				return left;
+			}
+			updateSizeAndHeight();
+			return this;
+		}
+
+		void rangeSearch(double x, double y, double radius2, List<P> list) {
+			if (live == 0 || boxDistance2(x, y) > radius2) {
+				return; // disjoint
+			} else if (boxFarDistance2(x, y) <= radius2) {
+				entryList(list); // fully contained
+			} else {
+				left.rangeSearch(x, y, radius2, list);
+				right.rangeSearch(x, y, radius2, list);
 			}
-			return bestPoint;
 		}
 
 		public void setCutDim(int cutDim) {
 			this.cutDim = cutDim;
+			xml = null;
 		}
 	}
 
@@ -618,7 +509,9 @@ public class SGKDTree<P extends NamedPoint2D> {
 
 	private class ExternalNode extends Node {
 
-		final P point; // the associated point object
+		P point; // the associated point object
+		boolean dead; // tombstone left by a lazy delete
+		int order; // index in tree order, set by allNearestNeighbors
 
 		ExternalNode(P point) {
 			super(true);
@@ -626,84 +519,77 @@ public class SGKDTree<P extends NamedPoint2D> {
 		}
 
 		P find(P pt) {
-			if (comparator.compare(pt, point) == 0)
+			if (!dead && comparator.compare(pt, point) == 0)
 				return point;
 			else
 				return null;
 		}
 
+		// replace this leaf by an internal node over this point and pt; the only
+		// allocations are the new external node and its parent
 		Node insert(P pt) throws Exception {
-			ArrayList<P> list = new ArrayList<P>(); // array list for points
-			list.add(pt); // add points to list
-			list.add(point);
-
-			List<Point2D> listPoint2D = new ArrayList<Point2D>();
-			listPoint2D.add(pt.getPoint2D());
-			listPoint2D.add(point.getPoint2D());
-			rect = rect.minimumRectangle(listPoint2D);
-			low = rect.getLow();
-			high = rect.getHigh();
-
-//			rect = new Rectangle(new Point2D(0, 0), new Point2D(getMapWidth(), getMapHeight()));
-
-			// sort list by appropriate splitting dimension
-			if (high.getX() - low.getX() >= high.getY() - low.getY()) {
-				// split along x-coordinate (vertically)
-
-				// additional comparison to assign the minimum rectangle containing pt and point
-//				if (compareXY.compare(pt, point) <= 0) { // pt is less or equal
-//					low = new Point2D(pt.getX(), pt.getY());
-//					high = new Point2D(point.getX(), point.getY());
-//				} else {
-//					low = new Point2D(point.getX(), point.getY());
-//					high = new Point2D(pt.getX(), pt.getY());
-//				}
-
-				Collections.sort(list, compareXY);
+			if (dead && comparator.compare(pt, point) == 0) { // reuse the tombstone
+				point = pt;
+				dead = false;
+				xml = null;
+				revived = true;
+				return this;
+			}
 
+			// split along the longer side of the minimum rectangle containing pt and
+			// point, ties broken in favor of x over y
+			int cutDim;
+			if (Math.abs(pt.getX() - point.getX()) >= Math.abs(pt.getY() - point.getY())) {
+				cutDim = 0; // split along x-coordinate (vertically)
 			} else {
-				// split along y-coordinate (horizontally)
-
-				// additional comparison to assign the minimum rectangle containing pt and point
-//				if (compareYX.compare(pt, point) <= 0) { // pt is less or equal
-//					low = new Point2D(pt.getX(), pt.getY());
-//					high = new Point2D(point.getX(), point.getY());
-//				} else {
-//					low = new Point2D(point.getX(), point.getY());
-//					high = new Point2D(pt.getX(), pt.getY());
-//				}
-
-				Collections.sort(list, compareYX);
+				cutDim = 1; // split along y-coordinate (horizontally)
 			}
+			Comparator<P> order = (cutDim == 0) ? compareXY : compareYX;
 
 			if (DEBUG) {
-				System.out.printf("Inserting External %s low: %d %d high: %d %d\n", pt.toString(), (int) low.getX(),
-						(int) low.getY(), (int) high.getX(), (int) high.getY());
+				System.out.printf("Inserting External %s next to %s cutDim: %d\n", pt.toString(), point.toString(),
+						cutDim);
 			}
 
-			rect = new Rectangle(new Point2D(0, 0), new Point2D(getMapWidth(), getMapHeight()));
-
-			return buildTree(list); // build a tree and return
+			if (order.compare(pt, point) <= 0) { // pt is less or equal, so it is the splitter
+				return new InternalNode(pt, new ExternalNode(pt), this, cutDim);
+			} else {
+				return new InternalNode(point, this, new ExternalNode(pt), cutDim);
+			}
 		}
 
-		Node rebalance(P pt) {
-			assert (false); // should never get here
-			return null;
+		Node rebalance(P pt, int depth) {
+			// only reachable when an earlier scapegoat was left to a background
+			// or incremental rebuild, so the height bound can be exceeded off this path
+			assert (rebuildsDeferred());
+			return this;
 		}
 
 		Node delete(P pt) throws Exception {
-			if (comparator.compare(pt, point) == 0) { // found it
+			if (!dead && comparator.compare(pt, point) == 0) { // found it
 				return null;
 			} else {
 				throw new Exception("cityDoesNotExist");
 			}
 		}
 
+		void markDead(P pt) throws Exception {
+			if (!dead && comparator.compare(pt, point) == 0) { // found it
+				dead = true;
+				xml = null;
+			} else {
+				throw new Exception("cityDoesNotExist");
+			}
+		}
+
 		void entryList(List<P> list) {
-			list.add(point);
+			if (!dead)
+				list.add(point);
 		}
 
 		void print(Element element) {
+			if (dead)
+				return; // tombstones are not printed, as in entryList
 			Element out = resultsDoc.createElement("external");
 			out.setAttribute("name", point.getName());
 			out.setAttribute("x", Integer.toString((int) point.getX()));
@@ -711,6 +597,16 @@ public class SGKDTree<P extends NamedPoint2D> {
 			element.appendChild(out);
 		}
 
+		void writeXML(ByteArrayOutputStream out) {
+			if (dead)
+				return;
+			writeASCII(out, "<external");
+			writeAttribute(out, "name", point.getName());
+			writeAttribute(out, "x", Integer.toString((int) point.getX()));
+			writeAttribute(out, "y", Integer.toString((int) point.getY()));
+			writeASCII(out, "/>");
+		}
+
 		boolean check(P low, P high) {
 			if (high.getX() - low.getX() >= high.getY() - low.getY()) {
 				// split along x-coordinate (vertically)
@@ -745,193 +641,1583 @@ public class SGKDTree<P extends NamedPoint2D> {
 			return point;
 		}
 
-		public float distanceToNode(P q, Node p) throws Exception {
-			if (p.isExternal) {
-				ExternalNode pExternal = (ExternalNode) p;
-				P pPoint = pExternal.getPoint();
+		double minX() {
+			return point.getX();
+		}
 
-				return (float) Math.sqrt((q.getX() - pPoint.getX()) * (q.getX() - pPoint.getX())
-						+ (q.getY() - pPoint.getY()) * (q.getY() - pPoint.getY()));
-			} else {
-				throw new Exception("distanceTo, Node p " + p.toString() + " is not external");
-			}
+		double minY() {
+			return point.getY();
 		}
 
-		public float distanceTo(P q, P p) {
-			return (float) Math.sqrt(
-					(q.getX() - p.getX()) * (q.getX() - p.getX()) + (q.getY() - p.getY()) * (q.getY() - p.getY()));
+		double maxX() {
+			return point.getX();
 		}
 
-		public P nearestNeighbor(P q, Node p, Rectangle cell, float bestDist, P bestPoint) throws Exception {
-			float thisDist = Float.MAX_VALUE;
-			try {
-				thisDist = distanceToNode(q, p);
-				bestDist = distanceTo(q, bestPoint);
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} // distance to p's point (external node)
+		double maxY() {
+			return point.getY();
+		}
+
+		void nearestNeighbor(NearestSearch search) {
+			search.visited++;
+			if (dead || point == search.exclude)
+				return;
+			double thisDist = boxDistance2(search.x, search.y); // distance to this point
 
 			if (DEBUG)
-				System.out.printf("nearest external q:%s point:%s thisDist:%d bestDist:%d\n", q.toString(),
-						point.toString(), (int) thisDist, (int) bestDist);
+				System.out.printf("nearest external q:%s point:%s thisDist:%f bestDist:%f\n", search.q.toString(),
+						point.toString(), Math.sqrt(thisDist), Math.sqrt(search.bestDist2));
 
-			ExternalNode pExternal;
-			if (p.isExternal) {
-				pExternal = (ExternalNode) p;
-			} else {
-				throw new Exception("nearestNeighbor p " + p.toString() + " not external");
+			if (thisDist < search.bestDist2) {
+				search.best = point;
+				search.bestDist2 = thisDist;
+				search.bestOrder = order;
 			}
+		}
 
-			P pPoint = pExternal.getPoint();
+		void nearestNeighbors(KnnSearch search) {
+			if (!dead)
+				search.offer(point, boxDistance2(search.x, search.y));
+		}
 
-			if (thisDist < bestDist)
-				return pPoint;
-			else
-				return bestPoint;
+		void rangeSearch(double lowX, double lowY, double highX, double highY, List<P> list) {
+			if (!dead && point.getX() >= lowX && point.getX() <= highX && point.getY() >= lowY && point.getY() <= highY)
+				list.add(point);
+		}
+
+		void rangeSearch(double x, double y, double radius2, List<P> list) {
+			if (!dead && boxDistance2(x, y) <= radius2)
+				list.add(point);
+		}
+
+		Node deleteRange(double lowX, double lowY, double highX, double highY, List<P> removed) {
+			if (point.getX() >= lowX && point.getX() <= highX && point.getY() >= lowY && point.getY() <= highY) {
+				if (!dead)
+					removed.add(point);
+				return null;
+			}
+			return this;
 		}
 	}
 
 	// -----------------------------------------------------------------
-	// Tree utilities
+	// Nearest neighbor search state
 	// -----------------------------------------------------------------
 
-	@SuppressWarnings("unchecked")
-	int getSize(Node p) {
-		if (p.isExternal)
-			return 1;
-		else
-			return ((InternalNode) p).size;
+	private class NearestSearch {
+		final P q; // query point
+		final double x, y; // query coordinates
+		P best; // closest point found so far
+		double bestDist2; // squared distance to best
+		int visited; // nodes visited (for JFR events)
+		P exclude; // point skipped by the search (the query itself, say)
+		int bestOrder = -1; // tree order index of best (for allNearestNeighbors)
+
+		NearestSearch(P q, P best) {
+			this.q = q;
+			this.x = q.getX();
+			this.y = q.getY();
+			this.best = best;
+			if (best == null) {
+				bestDist2 = Double.POSITIVE_INFINITY;
+			} else {
+				double dx = best.getX() - x, dy = best.getY() - y;
+				bestDist2 = dx * dx + dy * dy;
+			}
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	int getHeight(Node p) {
-		if (p.isExternal)
-			return 0;
-		else
-			return ((InternalNode) p).height;
-	}
+	// The k closest points found so far, in a max-heap on squared distance kept
+	// in parallel arrays. Until k points are found the pruning bound is infinite.
+	private class KnnSearch {
+		final double x, y; // query coordinates
+		final Object[] heap; // points, heap[0] is the farthest of the current k
+		final double[] dist2; // squared distances, in heap order
+		int count; // number of points in the heap
+
+		KnnSearch(P q, int k) {
+			this.x = q.getX();
+			this.y = q.getY();
+			heap = new Object[k];
+			dist2 = new double[k];
+		}
 
-	Node rebuild(Node p) {
-		if (DEBUG) {
-			System.out.println("KD tree: Rebuilding subtree rooted at " + p + ". Subtree before rebuild:"
-					+ System.lineSeparator() + p.debugPrint(".."));
+		double bound() {
+			return (count < heap.length) ? Double.POSITIVE_INFINITY : dist2[0];
 		}
-		if (p.isExternal) {
-			return p; // external - nothing to do
+
+		void offer(P p, double d) {
+			if (count < heap.length) { // sift up from the new slot
+				int i = count++;
+				while (i > 0 && dist2[(i - 1) / 2] < d) {
+					heap[i] = heap[(i - 1) / 2];
+					dist2[i] = dist2[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				heap[i] = p;
+				dist2[i] = d;
+			} else if (d < dist2[0]) { // replace the farthest
+				siftDown(p, d);
+			}
 		}
 
-		ArrayList<P> list = new ArrayList<P>(); // place to store points
-		p.entryList(list); // generate the list
+		// put (p, d) at the root and restore the heap order
+		void siftDown(Object p, double d) {
+			int i = 0;
+			while (2 * i + 1 < count) {
+				int c = 2 * i + 1;
+				if (c + 1 < count && dist2[c + 1] > dist2[c])
+					c++;
+				if (dist2[c] <= d)
+					break;
+				heap[i] = heap[c];
+				dist2[i] = dist2[c];
+				i = c;
+			}
+			heap[i] = p;
+			dist2[i] = d;
+		}
 
-		if (DEBUG) {
-			System.out.println("list before rebuild " + Arrays.toString(list.toArray()));
+		// points from closest to farthest; empties the heap
+		@SuppressWarnings("unchecked")
+		List<P> result() {
+			ArrayList<P> list = new ArrayList<P>(Collections.nCopies(count, (P) null));
+			while (count > 0) {
+				list.set(count - 1, (P) heap[0]); // farthest goes last
+				count--;
+				if (count > 0)
+					siftDown(heap[count], dist2[count]);
+				heap[count] = null;
+			}
+			return list;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Approximate nearest neighbor
+	// -----------------------------------------------------------------
+
+	// Answer of an approximate search: the point found, its distance, and a
+	// lower bound on the distance to the true nearest point. The true nearest
+	// point is at least getDistance() / (1 + getErrorBound()) away.
+	public static class ApproximateNeighbor<P> {
+		final P point; // candidate found, null if the tree is empty
+		final double distance; // distance from the query to point
+		final double lowerBound; // no stored point is closer than this
+		final int nodesVisited; // nodes taken off the queue
+
+		ApproximateNeighbor(P point, double distance, double lowerBound, int nodesVisited) {
+			this.point = point;
+			this.distance = distance;
+			this.lowerBound = lowerBound;
+			this.nodesVisited = nodesVisited;
 		}
 
-		// sort list by appropriate splitting dimension
-		if (high.getX() - low.getX() >= high.getY() - low.getY()) {
-			// split along x-coordinate (vertically)
-			Collections.sort(list, compareXY);
-		} else {
-			// split along y-coordinate (horizontally)
-			Collections.sort(list, compareYX);
+		public P getPoint() {
+			return point;
 		}
 
-		if (DEBUG) {
-			System.out.println("list in rebuild " + Arrays.toString(list.toArray()));
+		public double getDistance() {
+			return distance;
 		}
 
-		Node t = buildTreeRebalance(list); // build new subtree from list
+		public double getLowerBound() {
+			return lowerBound;
+		}
 
-		rect = new Rectangle(new Point2D(0, 0), new Point2D(getMapWidth(), getMapHeight()));
+		// relative error guaranteed for the answer: 0 if it is exact, infinite if
+		// the search stopped before it could rule out a point at distance 0
+		public double getErrorBound() {
+			if (distance <= lowerBound)
+				return 0;
+			return (lowerBound == 0) ? Double.POSITIVE_INFINITY : distance / lowerBound - 1;
+		}
 
-		if (DEBUG) {
-			System.out.println("KD tree: Subtree after rebuild:" + System.lineSeparator() + t.debugPrint(".."));
+		public boolean isExact() {
+			return distance <= lowerBound;
 		}
 
-		return t;
+		public int getNodesVisited() {
+			return nodesVisited;
+		}
 	}
 
-	// Balance the tree
-	Node buildTreeRebalance(List<P> list) {
-		if (DEBUG)
-			System.out.println("buildTree list " + Arrays.toString(list.toArray()));
+	// Best-first search state: a min-heap of internal nodes on the squared
+	// distance from the query to their bounding boxes. Points are checked as
+	// soon as their parent is expanded, so best improves early and the
+	// (1 + epsilon) rule can cut the search short.
+	private class ApproximateSearch {
+		final double x, y; // query coordinates
+		final double shrink; // (1 + epsilon)^2: cells at least best2 / shrink away are pruned
+		final int maxNodes; // node budget
+		Object[] node = new Object[64]; // heap of internal nodes
+		double[] dist2 = new double[64]; // squared box distances, in heap order
+		int count;
+		P best; // closest point found so far
+		double best2 = Double.POSITIVE_INFINITY; // squared distance to best
+		double pruned2 = Double.POSITIVE_INFINITY; // closest cell dropped without a visit
+		int visited; // nodes visited, internal and external
+
+		ApproximateSearch(P q, double epsilon, int maxNodes) {
+			this.x = q.getX();
+			this.y = q.getY();
+			this.shrink = (1 + epsilon) * (1 + epsilon);
+			this.maxNodes = maxNodes;
+		}
 
-		int k = list.size();
-		if (k == 0) { // no points at all
-			return null;
-		} else if (k == 1) { // a single point
-			if (DEBUG)
-				System.out.println("External Node " + list.get(0).toString());
-			return new ExternalNode(list.get(0));
-		} else {
-			List<Point2D> listPoint2D = new ArrayList<Point2D>();
+		// check p if it is a point, otherwise queue it unless it can be pruned
+		void reach(Node p) {
+			if (getLive(p) == 0)
+				return;
+			double d = p.boxDistance2(x, y);
+			if (p.isExternal && visited < maxNodes) {
+				visited++;
+				if (d < best2) {
+					best = ((ExternalNode) p).point;
+					best2 = d;
+				}
+			} else if (!p.isExternal && d < best2 / shrink) {
+				push(p, d);
+			} else {
+				pruned2 = Math.min(pruned2, d);
+			}
+		}
 
-			for (int i = 0; i < list.size(); i++) {
-				listPoint2D.add(list.get(i).getPoint2D());
+		void push(Node p, double d) {
+			if (count == node.length) {
+				node = Arrays.copyOf(node, 2 * count);
+				dist2 = Arrays.copyOf(dist2, 2 * count);
+			}
+			int i = count++;
+			while (i > 0 && dist2[(i - 1) / 2] > d) {
+				node[i] = node[(i - 1) / 2];
+				dist2[i] = dist2[(i - 1) / 2];
+				i = (i - 1) / 2;
 			}
+			node[i] = p;
+			dist2[i] = d;
+		}
 
-			rect = rect.minimumRectangle(listPoint2D);
+		@SuppressWarnings("unchecked")
+		InternalNode pop() {
+			InternalNode top = (InternalNode) node[0];
+			count--;
+			Object p = node[count];
+			double d = dist2[count];
+			node[count] = null;
+			int i = 0;
+			while (2 * i + 1 < count) {
+				int c = 2 * i + 1;
+				if (c + 1 < count && dist2[c + 1] < dist2[c])
+					c++;
+				if (dist2[c] >= d)
+					break;
+				node[i] = node[c];
+				dist2[i] = dist2[c];
+				i = c;
+			}
+			if (count > 0) {
+				node[i] = p;
+				dist2[i] = d;
+			}
+			return top;
+		}
 
-			int cutDim;
-			low = rect.getLow();
-			high = rect.getHigh();
+		// nothing is closer than the nearest queued or pruned cell, or than best
+		ApproximateNeighbor<P> result() {
+			double lower2 = Math.min(best2, pruned2);
+			if (count > 0)
+				lower2 = Math.min(lower2, dist2[0]);
+			return new ApproximateNeighbor<P>(best, Math.sqrt(best2), Math.sqrt(lower2), visited);
+		}
+	}
 
-			if (DEBUG)
-				System.out.println("rebalance rectangle low " + low.toString() + " high " + high.toString());
+	// -----------------------------------------------------------------
+	// Nearest neighbor result cache
+	// -----------------------------------------------------------------
 
-			if (high.getX() - low.getX() >= high.getY() - low.getY()) {// split along x-coordinate (vertically)
-				cutDim = 0;
-				if (DEBUG)
-					System.out.println("list for left " + Arrays.toString(list.toArray()));
-				Collections.sort(list, compareXY);
-			} else {// split along y-coordinate (horizontally)
-				cutDim = 1;
-				if (DEBUG)
-					System.out.println("list for left " + Arrays.toString(list.toArray()));
-				Collections.sort(list, compareYX);
-			}
+	private static class QueryKey {
+		final double x, y; // query coordinates
 
-			int m = (int) Math.ceil((float) k / 2); // size of left subtree
-			P splitter = list.get(m - 1); // splitter value
+		QueryKey(double x, double y) {
+			this.x = x;
+			this.y = y;
+		}
 
-			if (DEBUG)
-				System.out.println("splitter " + splitter.toString() + " cutdim " + cutDim);
+		public boolean equals(Object o) {
+			return (o instanceof QueryKey) && ((QueryKey) o).x == x && ((QueryKey) o).y == y;
+		}
 
-			// recursively build left and right subtrees
-			Node left = buildTreeRebalance(list.subList(0, m));
-			Node right = buildTreeRebalance(list.subList(m, k));
+		public int hashCode() {
+			return 31 * Double.hashCode(x) + Double.hashCode(y);
+		}
+	}
 
-			// combine the lists under median (median goes into left subtree)
-			InternalNode p = new InternalNode(splitter, left, right);
-			p.setCutDim(cutDim);
+	private class CachedAnswer {
+		final double x, y; // query coordinates
+		final P answer; // nearest point to (x, y)
+		final double dist2; // squared distance to answer
+		final long id; // unique key, so equal circles are distinct index points
+
+		CachedAnswer(double x, double y, P answer, double dist2, long id) {
+			this.x = x;
+			this.y = y;
+			this.answer = answer;
+			this.dist2 = dist2;
+			this.id = id;
+		}
+
+		// (minX, minY, maxX, maxY, id) of the answer circle, widened by an ulp
+		// on every side so that rounding never leaves a point of the circle out
+		double[] key() {
+			double r = Math.nextUp(Math.sqrt(dist2));
+			return new double[] { Math.nextDown(x - r), Math.nextDown(y - r), Math.nextUp(x + r), Math.nextUp(y + r),
+					id };
+		}
+	}
+
+	// Bounded LRU map from query coordinates to answers. An insert or delete of
+	// pt can only change the answers whose circle (centered at the query, through
+	// the answer) contains pt, so only those entries are dropped. The circles are
+	// indexed by their bounding boxes in a 5-d tree, as Subscriptions indexes
+	// regions, so a write tests only the entries whose box contains pt instead
+	// of scanning the whole cache under the monitor.
+	private class NearestCache {
+		final LinkedHashMap<QueryKey, CachedAnswer> map;
+		final SGKDTreeND<CachedAnswer> index = new SGKDTreeND<CachedAnswer>(5); // the entries of map
+		final double[] low = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0,
+				Double.NEGATIVE_INFINITY };
+		final double[] high = { 0, 0, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.POSITIVE_INFINITY };
+		long nextId;
+		long hits, misses, invalidations;
+
+		NearestCache(final int capacity) {
+			map = new LinkedHashMap<QueryKey, CachedAnswer>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedAnswer> eldest) {
+					if (size() <= capacity)
+						return false;
+					unindex(eldest.getValue());
+					return true;
+				}
+			};
+		}
+
+		synchronized CachedAnswer get(double x, double y) {
+			CachedAnswer a = map.get(new QueryKey(x, y));
+			if (a == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+			return a;
+		}
+
+		synchronized CachedAnswer put(double x, double y, P answer, double dist2) {
+			CachedAnswer a = new CachedAnswer(x, y, answer, dist2, nextId++);
+			CachedAnswer old = map.put(new QueryKey(x, y), a);
+			if (old != null)
+				unindex(old);
+			index.insert(a.key(), a);
+			return a;
+		}
+
+		synchronized void invalidate(P pt) {
+			double x = pt.getX(), y = pt.getY();
+			low[2] = high[0] = x;
+			low[3] = high[1] = y;
+			for (CachedAnswer a : index.rangeSearch(low, high)) {
+				double dx = x - a.x, dy = y - a.y;
+				if (dx * dx + dy * dy <= a.dist2) { // pt is inside the answer circle
+					map.remove(new QueryKey(a.x, a.y));
+					unindex(a);
+					invalidations++;
+				}
+			}
+		}
+
+		synchronized void clear() {
+			map.clear();
+			index.clear();
+		}
+
+		// drop a from the index; map and index always hold the same entries
+		void unindex(CachedAnswer a) {
+			try {
+				index.delete(a.key());
+			} catch (Exception e) {
+				throw new IllegalStateException("nearest cache index out of step", e);
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Region subscriptions
+	// -----------------------------------------------------------------
+
+	public interface RegionListener<P> {
+		void regionChanged(P pt, boolean inserted); // pt entered (inserted) or left the region
+	}
+
+	// A region registered with subscribe. Circles are indexed by their bounding
+	// box and checked exactly on dispatch.
+	public static class Subscription<P> {
+		final int id; // unique key, so equal regions are distinct index points
+		final double minX, minY, maxX, maxY; // closed bounding box
+		final double cx, cy, radius; // circle, if radius >= 0
+		final RegionListener<? super P> listener;
+
+		Subscription(int id, double minX, double minY, double maxX, double maxY, double cx, double cy,
+				double radius, RegionListener<? super P> listener) {
+			this.id = id;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.cx = cx;
+			this.cy = cy;
+			this.radius = radius;
+			this.listener = listener;
+		}
+
+		boolean contains(double x, double y) {
+			if (radius >= 0) {
+				double dx = x - cx, dy = y - cy;
+				return dx * dx + dy * dy <= radius * radius;
+			}
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+
+		double[] key() { // (minX, minY, maxX, maxY, id)
+			return new double[] { minX, minY, maxX, maxY, id };
+		}
+	}
+
+	// Regions indexed as points (minX, minY, maxX, maxY, id) of a 5-d tree. A
+	// region contains (x, y) exactly when minX <= x, minY <= y, maxX >= x and
+	// maxY >= y, which is one box query (a 4-d dominance query; the id is not
+	// constrained). That is not logarithmic: in the worst case a k-d tree visits
+	// O(s^(3/4) + h) nodes for it, h the regions reported, and splits on the id
+	// prune nothing. Clustered regions usually do far better, but a write is
+	// only guaranteed to look at fewer than all s regions, not O(log s) of them.
+	private class Subscriptions {
+		final SGKDTreeND<Subscription<P>> index = new SGKDTreeND<Subscription<P>>(5);
+		final double[] low = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0,
+				Double.NEGATIVE_INFINITY };
+		final double[] high = { 0, 0, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.POSITIVE_INFINITY };
+		int nextId;
+
+		void dispatch(P pt, boolean insert) {
+			double x = pt.getX(), y = pt.getY();
+			low[2] = high[0] = x;
+			low[3] = high[1] = y;
+			for (Subscription<P> s : index.rangeSearch(low, high)) {
+				if (s.contains(x, y))
+					s.listener.regionChanged(pt, insert);
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Background rebuild state
+	// -----------------------------------------------------------------
+
+	private class LoggedWrite {
+		final P pt; // point inserted or deleted
+		final boolean insert; // insert or delete?
+
+		LoggedWrite(P pt, boolean insert) {
+			this.pt = pt;
+			this.insert = insert;
+		}
+	}
+
+	private class PendingRebuild {
+		final ArrayList<InternalNode> path; // root ... parent of target, checked before the swap
+		final Node target; // subtree being rebuilt
+		final boolean wholeTree; // triggered by the delete rule (maxItems is reset after the swap)
+		final ArrayList<LoggedWrite> writes = new ArrayList<LoggedWrite>(); // writes since the snapshot
+		Future<Node> result; // the rebuilt subtree (background rebuilds)
+		IncrementalBuild build; // the builder (incremental rebuilds)
+		int replayed; // writes already replayed into the copy
+
+		PendingRebuild(List<InternalNode> path, Node target, boolean wholeTree) {
+			this.path = new ArrayList<InternalNode>(path);
+			this.target = target;
+			this.wholeTree = wholeTree;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Incremental rebuild state
+	// -----------------------------------------------------------------
+
+	/*
+	 * An incremental rebuild produces the same subtree as buildTreeRebalance,
+	 * a bounded number of steps per write, on the writer's thread. A step
+	 * visits one node of the old subtree, moves one point or creates one node.
+	 * The old subtree keeps serving and taking writes throughout; those are
+	 * logged as for a background rebuild and replayed into the copy before the
+	 * swap. The phases:
+	 *
+	 * COLLECT - walk the live target with an explicit stack. The walk races
+	 * with the writes, so it may see a point twice or a point that
+	 * is already deleted; the replayed log straightens that out.
+	 * SORT_X - bottom-up merge sort by (x, y)
+	 * DEDUPE - drop repeated coordinates, copying into the (y, x) array
+	 * SORT_Y - bottom-up merge sort by (y, x)
+	 * BUILD - one task per subtree. The box comes from the ends of its
+	 * two sorted ranges, the split from leftSize, and the range
+	 * sorted the other way is partitioned stably around the splitter,
+	 * so both ranges stay sorted for the children.
+	 * REPLAY - the logged writes that landed in the target, rebalancing the
+	 * copy as insert does
+	 */
+	private enum BuildPhase {
+		COLLECT, SORT_X, DEDUPE, SORT_Y, BUILD, REPLAY, DONE
+	}
+
+	private class BuildTask { // one subtree of an incremental build
+		final int lo, hi; // its points are byX[lo..hi) and byY[lo..hi)
+		int stage; // 0 start, 1 coordinates, 2 partition, 3 copy back, 4 children built
+		int pos; // progress through the range
+		int left, right; // points partitioned to each side so far
+		int cutDim; // splitting dimension
+		int m; // size of the left subtree
+		double otherSide; // extent of the box along the other dimension
+		P splitter;
+		double[] coords; // coordinates along cutDim (split policies other than the median)
+
+		BuildTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+	}
+
+	// An array of points allocated CHUNK slots at a time as it is written, so
+	// that no step of an incremental build clears or copies more than that.
+	// Only the index of chunks grows by doubling, at 1/CHUNK of the size.
+	private static class Chunks {
+		static final int SHIFT = 10;
+		static final int CHUNK = 1 << SHIFT;
+		Object[][] chunks = new Object[1][];
+		int allocated; // chunks allocated so far
+
+		Object get(int i) {
+			return chunks[i >>> SHIFT][i & (CHUNK - 1)];
+		}
+
+		void set(int i, Object pt) {
+			int c = i >>> SHIFT;
+			if (c >= chunks.length)
+				chunks = Arrays.copyOf(chunks, Math.max(2 * chunks.length, c + 1));
+			if (chunks[c] == null) {
+				chunks[c] = new Object[CHUNK];
+				allocated++;
+			}
+			chunks[c][i & (CHUNK - 1)] = pt;
+		}
+
+		long bytes() { // the index and the chunks
+			return MemoryReport.align(MemoryReport.ARRAY_HEADER + chunks.length * MemoryReport.REFERENCE)
+					+ allocated * MemoryReport.align(MemoryReport.ARRAY_HEADER + CHUNK * MemoryReport.REFERENCE);
+		}
+	}
+
+	private class IncrementalBuild {
+		final PendingRebuild r;
+		final int levels; // about log2 of the target's size
+		BuildPhase phase = BuildPhase.COLLECT;
+		final ArrayList<Node> stack = new ArrayList<Node>(); // nodes left to visit
+		Chunks byX = new Chunks(), byY = new Chunks(); // the points sorted both ways
+		Chunks scratch = new Chunks(); // working space
+		int k; // number of points
+
+		Chunks src, dst; // merge sort state
+		int width, lo, mid, hi, i, j, out;
+
+		final ArrayList<BuildTask> tasks = new ArrayList<BuildTask>(); // subtrees being built
+		final ArrayList<Node> subtrees = new ArrayList<Node>(); // finished subtrees, awaiting their parent
+		Node built; // the copy
+
+		IncrementalBuild(PendingRebuild r) {
+			this.r = r;
+			int size = getSize(r.target);
+			levels = 32 - Integer.numberOfLeadingZeros(size);
+			stack.add(r.target);
+		}
+
+		// do about the given number of steps; true once the copy is complete
+		boolean advance(long steps) {
+			while (steps > 0) {
+				switch (phase) {
+				case COLLECT:
+					collectStep();
+					break;
+				case SORT_X:
+					if (!mergeStep(compareXY)) {
+						byX = src;
+						byY = dst; // free again
+						i = j = 0;
+						phase = BuildPhase.DEDUPE;
+					}
+					break;
+				case DEDUPE:
+					if (i < k) {
+						Object pt = byX.get(i++);
+						if (j == 0 || compareXY.compare(point(byX, j - 1), point(pt)) != 0) {
+							byX.set(j, pt);
+							byY.set(j++, pt);
+						}
+					} else {
+						k = j;
+						startSort(byY, scratch);
+						phase = BuildPhase.SORT_Y;
+					}
+					break;
+				case SORT_Y:
+					if (!mergeStep(compareYX)) {
+						byY = src;
+						scratch = dst;
+						if (k > 0)
+							tasks.add(new BuildTask(0, k));
+						phase = BuildPhase.BUILD;
+					}
+					break;
+				case BUILD:
+					if (!tasks.isEmpty()) {
+						buildStep(tasks.get(tasks.size() - 1));
+					} else {
+						built = subtrees.isEmpty() ? null : subtrees.get(0);
+						byX = byY = scratch = src = dst = null;
+						phase = BuildPhase.REPLAY;
+					}
+					break;
+				case REPLAY: // a replayed write walks a path, so it costs a step per level
+					if (r.replayed < r.writes.size()) {
+						// rebalanced as they go in, or inserts in sorted order would
+						// hang off the copy as one long path
+						built = replay(r, built, r.writes.get(r.replayed++), true);
+						steps -= levels - 1;
+					} else {
+						phase = BuildPhase.DONE;
+					}
+					break;
+				case DONE:
+					return true;
+				}
+				steps--;
+			}
+			return phase == BuildPhase.DONE;
+		}
+
+		// visit one node of the target, keeping the live points of external nodes
+		void collectStep() {
+			if (stack.isEmpty()) {
+				startSort(byX, byY);
+				phase = BuildPhase.SORT_X;
+				return;
+			}
+			Node p = stack.remove(stack.size() - 1);
+			if (p.isExternal) {
+				ExternalNode e = (ExternalNode) p;
+				if (!e.dead)
+					byX.set(k++, e.point);
+			} else {
+				InternalNode q = (InternalNode) p;
+				if (q.right != null) // a concurrent delete may have cut a child off
+					stack.add(q.right);
+				if (q.left != null)
+					stack.add(q.left);
+			}
+		}
+
+		void startSort(Chunks from, Chunks buffer) {
+			src = from;
+			dst = buffer;
+			width = 1;
+			lo = mid = hi = out = 0;
+		}
+
+		// merge one element of the current pass; false once src[0..k) is sorted
+		boolean mergeStep(Comparator<P> order) {
+			if (width >= k)
+				return false;
+			if (out == hi) { // on to the next pair of runs
+				if (hi == k) { // end of a pass
+					Chunks t = src;
+					src = dst;
+					dst = t;
+					width *= 2;
+					hi = 0;
+					if (width >= k)
+						return false;
+				}
+				lo = hi;
+				mid = (int) Math.min((long) lo + width, k);
+				hi = (int) Math.min((long) lo + 2L * width, k);
+				i = lo;
+				j = mid;
+				out = lo;
+			}
+			if (j >= hi || (i < mid && order.compare(point(src, i), point(src, j)) <= 0)) {
+				dst.set(out++, src.get(i++));
+			} else {
+				dst.set(out++, src.get(j++));
+			}
+			return true;
+		}
+
+		// one step of the subtree t, the task on top of the stack
+		void buildStep(BuildTask t) {
+			int n = t.hi - t.lo;
+			Chunks sorted = (t.cutDim == 0) ? byX : byY; // by cutDim, once chosen
+			switch (t.stage) {
+			case 0: // choose the split
+				if (n == 1) {
+					subtrees.add(new ExternalNode(point(byX, t.lo)));
+					tasks.remove(tasks.size() - 1);
+					return;
+				}
+				double minX = point(byX, t.lo).getX(), maxX = point(byX, t.hi - 1).getX();
+				double minY = point(byY, t.lo).getY(), maxY = point(byY, t.hi - 1).getY();
+				t.cutDim = (maxX - minX >= maxY - minY) ? 0 : 1;
+				t.otherSide = (t.cutDim == 0) ? maxY - minY : maxX - minX;
+				t.pos = t.lo;
+				if (splitPolicy == SplitPolicy.MEDIAN) {
+					t.m = (n + 1) / 2;
+					t.splitter = point((t.cutDim == 0) ? byX : byY, t.lo + t.m - 1);
+					t.stage = 2;
+				} else {
+					t.coords = new double[n];
+					t.stage = 1;
+				}
+				return;
+			case 1: // coordinates for the split policy
+				if (t.pos < t.hi) {
+					P pt = point(sorted, t.pos);
+					t.coords[t.pos++ - t.lo] = (t.cutDim == 0) ? pt.getX() : pt.getY();
+				} else {
+					t.m = leftSize(t.coords, t.otherSide);
+					t.coords = null;
+					t.splitter = point(sorted, t.lo + t.m - 1);
+					t.pos = t.lo;
+					t.stage = 2;
+				}
+				return;
+			case 2: // partition the other order around the splitter
+				Chunks other = (t.cutDim == 0) ? byY : byX;
+				Comparator<P> order = (t.cutDim == 0) ? compareXY : compareYX;
+				if (t.pos < t.hi) {
+					Object pt = other.get(t.pos++);
+					if (order.compare(point(pt), t.splitter) <= 0) {
+						scratch.set(t.lo + t.left++, pt);
+					} else {
+						scratch.set(t.lo + t.m + t.right++, pt);
+					}
+				} else {
+					t.pos = t.lo;
+					t.stage = 3;
+				}
+				return;
+			case 3: // copy the partition back
+				if (t.pos < t.hi) {
+					((t.cutDim == 0) ? byY : byX).set(t.pos, scratch.get(t.pos));
+					t.pos++;
+				} else {
+					t.stage = 4;
+					tasks.add(new BuildTask(t.lo + t.m, t.hi)); // the left one is built first
+					tasks.add(new BuildTask(t.lo, t.lo + t.m));
+				}
+				return;
+			default: // both children are done
+				Node right = subtrees.remove(subtrees.size() - 1);
+				Node left = subtrees.remove(subtrees.size() - 1);
+				subtrees.add(new InternalNode(t.splitter, left, right, t.cutDim));
+				tasks.remove(tasks.size() - 1);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private P point(Object pt) {
+			return (P) pt;
+		}
+
+		private P point(Chunks a, int i) {
+			return point(a.get(i));
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Point spliterator
+	// -----------------------------------------------------------------
+
+	/*
+	 * Walks the live points in the same order as entryList, without copying
+	 * them. The unvisited part is a stack of subtrees whose live counts are
+	 * known, so the size is always exact. trySplit hands off the subtrees
+	 * that come first: all but the last one on the stack, or the left child if
+	 * only one subtree is left. Halves are as even as the scapegoat balance
+	 * makes the tree, so a parallel stream gets work of similar size on every
+	 * core. The tree must not be written while a spliterator is in use.
+	 */
+	private class PointSpliterator implements Spliterator<P> {
+		private final ArrayList<Node> stack = new ArrayList<Node>(); // unvisited subtrees, next on top
+		private long remaining; // live points in them
+
+		private PointSpliterator(Node p) {
+			push(p);
+		}
+
+		private void push(Node p) {
+			if (p != null && getLive(p) > 0) { // nothing to visit below tombstones
+				stack.add(p);
+				remaining += getLive(p);
+			}
+		}
+
+		public boolean tryAdvance(Consumer<? super P> action) {
+			while (!stack.isEmpty()) {
+				Node p = stack.remove(stack.size() - 1);
+				if (p.isExternal) {
+					remaining--;
+					action.accept(((ExternalNode) p).point);
+					return true;
+				}
+				InternalNode q = (InternalNode) p;
+				remaining -= q.live;
+				push(q.right);
+				push(q.left);
+			}
+			return false;
+		}
+
+		public Spliterator<P> trySplit() {
+			if (stack.size() == 1 && !stack.get(0).isExternal) {
+				InternalNode q = (InternalNode) stack.remove(0);
+				remaining = 0;
+				push(q.right);
+				if (stack.isEmpty()) { // all of it is on the left
+					push(q.left);
+					return trySplit();
+				}
+				PointSpliterator prefix = new PointSpliterator(q.left);
+				return (prefix.remaining == 0) ? null : prefix;
+			} else if (stack.size() > 1) {
+				PointSpliterator prefix = new PointSpliterator(null);
+				for (int i = 1; i < stack.size(); i++)
+					prefix.push(stack.get(i));
+				Node last = stack.get(0);
+				stack.clear();
+				remaining = 0;
+				push(last);
+				return prefix;
+			}
+			return null;
+		}
+
+		public long estimateSize() {
+			return remaining;
+		}
+
+		public int characteristics() {
+			return ORDERED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Frozen layout
+	// -----------------------------------------------------------------
+
+	/*
+	 * A read-only copy of the tree without node objects. Nodes are stored in
+	 * preorder in parallel primitive arrays: the left child of node i is i + 1
+	 * and its right child is right[i] (-1 marks an external node). A descent
+	 * therefore mostly walks forward through adjacent memory instead of chasing
+	 * references across the heap. Tombstones are dropped when freezing.
+	 */
+	public class Frozen {
+		private final int[] right; // right child of each node, -1 if external
+		private final byte[] cutDim; // splitting dimension of internal nodes
+		private final double[] minX, minY, maxX, maxY; // bounding box of each node
+		private final Object[] points; // splitter (internal) or point (external)
+		private final int size; // number of points
+		private int next; // next free slot while copying
+
+		private Frozen(Node p) {
+			size = (p == null) ? 0 : getLive(p);
+			int n = (size == 0) ? 0 : 2 * size - 1;
+			right = new int[n];
+			cutDim = new byte[n];
+			minX = new double[n];
+			minY = new double[n];
+			maxX = new double[n];
+			maxY = new double[n];
+			points = new Object[n];
+			if (size > 0) {
+				copy(p);
+			}
+		}
+
+		// copy the live part of subtree p to the arrays, returning its slot
+		private int copy(Node p) {
+			if (!p.isExternal) {
+				InternalNode q = (InternalNode) p;
+				if (getLive(q.left) == 0)
+					return copy(q.right); // only tombstones on the left
+				if (getLive(q.right) == 0)
+					return copy(q.left);
+			}
+
+			int i = next++;
+			minX[i] = p.minX();
+			minY[i] = p.minY();
+			maxX[i] = p.maxX();
+			maxY[i] = p.maxY();
+			if (p.isExternal) {
+				right[i] = -1;
+				points[i] = ((ExternalNode) p).point;
+			} else {
+				InternalNode q = (InternalNode) p;
+				cutDim[i] = (byte) q.cutDim;
+				points[i] = q.splitter;
+				copy(q.left); // lands in slot i + 1
+				right[i] = copy(q.right);
+			}
+			return i;
+		}
+
+		@SuppressWarnings("unchecked")
+		private P point(int i) {
+			return (P) points[i];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public P find(P pt) {
+			if (size == 0)
+				return null;
+			int i = 0;
+			while (right[i] >= 0) {
+				Comparator<P> order = (cutDim[i] == 0) ? compareXY : compareYX;
+				i = (order.compare(pt, point(i)) <= 0) ? i + 1 : right[i];
+			}
+			return (comparator.compare(pt, point(i)) == 0) ? point(i) : null;
+		}
+
+		public P nearestNeighbor(P q) {
+			if (size == 0)
+				return null;
+			NearestSearch search = new NearestSearch(q, null);
+			nearestNeighbor(0, search);
+			return search.best;
+		}
+
+		private void nearestNeighbor(int i, NearestSearch search) {
+			search.visited++;
+			if (right[i] < 0) {
+				double thisDist = boxDistance2(i, search.x, search.y);
+				if (thisDist < search.bestDist2) {
+					search.best = point(i);
+					search.bestDist2 = thisDist;
+				}
+				return;
+			}
+
+			int l = i + 1, r = right[i];
+			double leftDist = boxDistance2(l, search.x, search.y);
+			double rightDist = boxDistance2(r, search.x, search.y);
+			if (leftDist <= rightDist) {
+				if (leftDist < search.bestDist2)
+					nearestNeighbor(l, search);
+				if (rightDist < search.bestDist2)
+					nearestNeighbor(r, search);
+			} else {
+				if (rightDist < search.bestDist2)
+					nearestNeighbor(r, search);
+				if (leftDist < search.bestDist2)
+					nearestNeighbor(l, search);
+			}
+		}
+
+		private double boxDistance2(int i, double x, double y) {
+			double dx = Math.max(0, Math.max(minX[i] - x, x - maxX[i]));
+			double dy = Math.max(0, Math.max(minY[i] - y, y - maxY[i]));
+			return dx * dx + dy * dy;
+		}
+
+		public List<P> rangeSearch(Rectangle region) {
+			ArrayList<P> list = new ArrayList<P>();
+			if (size > 0) {
+				rangeSearch(0, region.getLow().getX(), region.getLow().getY(), region.getHigh().getX(),
+						region.getHigh().getY(), list);
+			}
+			return list;
+		}
+
+		private void rangeSearch(int i, double lowX, double lowY, double highX, double highY, List<P> list) {
+			if (maxX[i] < lowX || minX[i] > highX || maxY[i] < lowY || minY[i] > highY) {
+				return; // disjoint
+			} else if (minX[i] >= lowX && maxX[i] <= highX && minY[i] >= lowY && maxY[i] <= highY) {
+				entryList(i, list); // fully contained
+			} else if (right[i] >= 0) {
+				rangeSearch(i + 1, lowX, lowY, highX, highY, list);
+				rangeSearch(right[i], lowX, lowY, highX, highY, list);
+			}
+		}
+
+		public List<P> rangeSearch(P center, double radius) {
+			ArrayList<P> list = new ArrayList<P>();
+			if (size > 0) {
+				rangeSearch(0, center.getX(), center.getY(), radius * radius, list);
+			}
+			return list;
+		}
+
+		private void rangeSearch(int i, double x, double y, double radius2, List<P> list) {
+			if (boxDistance2(i, x, y) > radius2) {
+				return; // disjoint
+			}
+			double dx = Math.max(x - minX[i], maxX[i] - x);
+			double dy = Math.max(y - minY[i], maxY[i] - y);
+			if (dx * dx + dy * dy <= radius2) {
+				entryList(i, list); // fully contained
+			} else if (right[i] >= 0) {
+				rangeSearch(i + 1, x, y, radius2, list);
+				rangeSearch(right[i], x, y, radius2, list);
+			}
+		}
+
+		public List<P> entryList() {
+			ArrayList<P> list = new ArrayList<P>();
+			if (size > 0) {
+				entryList(0, list);
+			}
+			return list;
+		}
+
+		private void entryList(int i, List<P> list) {
+			if (right[i] < 0) {
+				list.add(point(i));
+			} else {
+				entryList(i + 1, list);
+				entryList(right[i], list);
+			}
+		}
+
+		// a new mutable tree with the same configuration and the same shape
+		public SGKDTree<P> thaw() {
+			SGKDTree<P> tree = new SGKDTree<P>(comparator, resultsDoc, compareXY, compareYX, mapWidth, mapHeight,
+					splitPolicy);
+			if (size > 0) {
+				tree.root = tree.thaw(this, 0);
+			}
+			tree.nItems = tree.maxItems = size;
+			return tree;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Tree utilities
+	// -----------------------------------------------------------------
+
+	@SuppressWarnings("unchecked")
+	int getSize(Node p) {
+		if (p.isExternal)
+			return 1;
+		else
+			return ((InternalNode) p).size;
+	}
+
+	@SuppressWarnings("unchecked")
+	int getHeight(Node p) {
+		if (p.isExternal)
+			return 0;
+		else
+			return ((InternalNode) p).height;
+	}
+
+	// log_{3/2} m, the height bound for a tree of m items
+	int maxAllowedHeight(int m) {
+		return (int) (Math.log(m) / Math.log((double) BALANCE_DENOM / (double) BALANCE_NUM));
+	}
+
+	int getLive(Node p) {
+		if (p.isExternal)
+			return ((ExternalNode) p).dead ? 0 : 1;
+		else
+			return ((InternalNode) p).live;
+	}
+
+	// rebuild drops any tombstones in p, so the result may be null
+	Node rebuild(Node p) {
+		if (DEBUG) {
+			System.out.println("KD tree: Rebuilding subtree rooted at " + p + ". Subtree before rebuild:"
+					+ System.lineSeparator() + p.debugPrint(".."));
+		}
+		if (p.isExternal) {
+			return p; // external - nothing to do
+		}
+
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		SGKDTreeEvents.Rebuild event = new SGKDTreeEvents.Rebuild();
+		event.begin();
+		int heightBefore = getHeight(p);
+		deadItems -= getSize(p) - getLive(p); // tombstones are not carried over
+
+		ArrayList<P> list = new ArrayList<P>(); // place to store points
+		p.entryList(list); // generate the list
+
+		if (DEBUG) {
+			System.out.println("list before rebuild " + Arrays.toString(list.toArray()));
+		}
+
+		SGKDTreeEvents.Build buildEvent = new SGKDTreeEvents.Build();
+		buildEvent.begin();
+		Node t = buildTreeRebalance(list); // build new subtree from list
+		if (buildEvent.shouldCommit()) {
+			buildEvent.points = list.size();
+			buildEvent.height = (t == null) ? 0 : getHeight(t);
+			buildEvent.commit();
+		}
+
+		if (DEBUG && t != null) {
+			System.out.println("KD tree: Subtree after rebuild:" + System.lineSeparator() + t.debugPrint(".."));
+		}
+
+		if (event.shouldCommit()) {
+			event.subtreeSize = list.size();
+			event.heightBefore = heightBefore;
+			event.heightAfter = (t == null) ? 0 : getHeight(t);
+			event.commit();
+		}
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.REBUILD, start);
+
+		return t;
+	}
+
+	// q is the scapegoat found by rebalance at the given depth. Large scapegoats
+	// are handed to the background (if enabled) and the search continues below
+	// them, so smaller scapegoats on the path are still rebuilt inline.
+	boolean deferScapegoat(InternalNode q, int depth) {
+		scapegoatDepth = depth; // remember for the rebalance event
+		scapegoatSize = q.size;
+		if (rebuildsDeferred() && !replaying && q.size >= backgroundThreshold) {
+			if (pending != null || startBackgroundRebuild(rebalancePath.subList(0, depth), q, false)) {
+				return true; // keep serving from the old subtree until the swap
+			}
+		}
+		return false; // rebuilt inline
+	}
+
+	// are large rebuilds left to the executor or to incremental steps?
+	boolean rebuildsDeferred() {
+		return rebuildExecutor != null || rebuildWork > 0;
+	}
+
+	// Snapshot the points of target and build the replacement on the executor.
+	// Only the point list is shared with the background thread, so the live
+	// tree can keep changing; writes are logged and replayed at the swap. In
+	// incremental mode nothing is copied yet; the writes do it step by step.
+	// Returns false if the executor rejects the task (it was shut down, say);
+	// then nothing is pending and the caller rebuilds target inline.
+	boolean startBackgroundRebuild(List<InternalNode> path, Node target, boolean wholeTree) {
+		if (rebuildExecutor == null) {
+			pending = new PendingRebuild(path, target, wholeTree);
+			pending.build = new IncrementalBuild(pending);
+			return true;
+		}
+		final ArrayList<P> list = new ArrayList<P>(); // frozen copy of the subtree
+		target.entryList(list);
+
+		if (DEBUG) {
+			System.out.println("KD tree: Background rebuild of " + list.size() + " points at " + target);
+		}
+
+		PendingRebuild r = new PendingRebuild(path, target, wholeTree);
+		final LatencyRecorder recorder = latency;
+		try {
+			r.result = rebuildExecutor.submit(() -> {
+				long start = (recorder == null) ? 0 : System.nanoTime();
+				SGKDTreeEvents.Build buildEvent = new SGKDTreeEvents.Build();
+				buildEvent.begin();
+				Node t = buildTreeRebalance(list);
+				if (buildEvent.shouldCommit()) {
+					buildEvent.points = list.size();
+					buildEvent.height = (t == null) ? 0 : getHeight(t);
+					buildEvent.commit();
+				}
+				if (recorder != null)
+					recorder.record(LatencyRecorder.Operation.REBUILD, start);
+				return t;
+			});
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		pending = r; // published only once the executor has taken the task
+		return true;
+	}
+
+	// called after every completed insert or delete of pt
+	void afterWrite(P pt, boolean insert) {
+		if (pending != null) { // replayed into the pending rebuild at the swap
+			pending.writes.add(new LoggedWrite(pt, insert));
+		}
+		if (nearestCache != null) {
+			nearestCache.invalidate(pt);
+		}
+		if (subscriptions != null) {
+			subscriptions.dispatch(pt, insert);
+		}
+	}
+
+	// does pt route through the whole path down to the pending target?
+	boolean routesToTarget(PendingRebuild r, P pt) {
+		for (int i = 0; i < r.path.size(); i++) {
+			InternalNode q = r.path.get(i);
+			Node next = (i + 1 < r.path.size()) ? r.path.get(i + 1) : r.target;
+			Node child = (q.compareToSplitter(pt) <= 0) ? q.left : q.right;
+			if (child != next)
+				return false;
+		}
+		return true;
+	}
+
+	// is the target still where we left it?
+	boolean targetInPlace(PendingRebuild r) {
+		Node node = root;
+		for (int i = 0; i < r.path.size(); i++) {
+			InternalNode q = r.path.get(i);
+			Node next = (i + 1 < r.path.size()) ? r.path.get(i + 1) : r.target;
+			if (node != q || (q.left != next && q.right != next))
+				return false;
+			node = next;
+		}
+		return node == r.target;
+	}
+
+	// apply a logged write to the copy built, if it landed in the target
+	Node replay(PendingRebuild r, Node built, LoggedWrite w, boolean rebalance) {
+		if (!routesToTarget(r, w.pt))
+			return built;
+		try {
+			if (w.insert) {
+				if (built == null) {
+					built = new ExternalNode(w.pt);
+				} else if (built.find(w.pt) != w.pt) { // not already in the copy
+					built = built.insert(w.pt);
+					if (rebalance && getHeight(built) > maxAllowedHeight(getSize(built))) {
+						replaying = true; // keep the copy balanced with inline rebuilds
+						built = built.rebalance(w.pt, 0);
+						replaying = false;
+					}
+				}
+			} else if (built != null) {
+				built = built.delete(w.pt);
+			}
+		} catch (Exception e) {
+			if (!"cityDoesNotExist".equals(e.getMessage()))
+				throw new IllegalStateException("replay of a logged write failed", e);
+			// point was not in the copy; nothing to undo
+		}
+		return built;
+	}
+
+	// Install the rebuilt subtree if it is ready (or if wait is set). The result
+	// is discarded if the path to the target was restructured in the meantime;
+	// the live subtree is still correct, it is just not rebalanced yet. An
+	// incremental rebuild first gets its steps for this write; it is dropped
+	// as soon as its target moves, so no more work goes into it. While it is
+	// pending, scapegoats as large as the threshold are not rebuilt, so if the
+	// writes outpace it (inserts in sorted order, a small work) and the tree
+	// grows HEIGHT_SLACK levels past its bound, it is finished at once. A
+	// rebuild that failed is dropped and its exception rethrown to the writer.
+	void finishBackgroundRebuild(boolean wait) throws InterruptedException {
+		PendingRebuild r = pending;
+		if (r == null)
+			return;
+		if (r.build != null) {
+			if (!targetInPlace(r)) {
+				pending = null;
+				return;
+			}
+			boolean behind = getHeight() > maxAllowedHeight(maxItems) + HEIGHT_SLACK;
+			if (!r.build.advance((wait || behind) ? Long.MAX_VALUE : (long) rebuildWork * r.build.levels))
+				return;
+		} else if (!wait && !r.result.isDone()) {
+			return;
+		}
+		pending = null;
+
+		Node built;
+		if (r.build != null) {
+			built = r.build.built;
+		} else {
+			try {
+				built = r.result.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("background rebuild failed", e.getCause());
+			}
+		}
+
+		if (!targetInPlace(r))
+			return;
+
+		// replay the writes that landed in the target since the snapshot
+		for (int i = r.replayed; i < r.writes.size(); i++) {
+			built = replay(r, built, r.writes.get(i), true);
+		}
+		if (built == null)
+			return; // the target emptied out; leave it to the ordinary delete logic
+
+		// swap in the new subtree (a single reference store) and fix the path
+		deadItems -= getSize(r.target) - getLive(r.target);
+		if (r.path.isEmpty()) {
+			root = built;
+		} else {
+			InternalNode parent = r.path.get(r.path.size() - 1);
+			if (parent.left == r.target) {
+				parent.left = built;
+			} else {
+				parent.right = built;
+			}
+			for (int i = r.path.size() - 1; i >= 0; i--) {
+				r.path.get(i).updateSizeAndHeight();
+			}
+		}
+		if (r.wholeTree) {
+			maxItems = nItems;
+		}
+
+		if (DEBUG) {
+			System.out.println("KD tree: Swapped in background rebuild:" + System.lineSeparator() + debugPrint(".."));
+		}
+	}
+
+	// rebuild the subtree at slot i of a frozen tree as nodes of this tree
+	Node thaw(Frozen f, int i) {
+		if (f.right[i] < 0) {
+			return new ExternalNode(f.point(i));
+		} else {
+			Node left = thaw(f, i + 1);
+			Node right = thaw(f, f.right[i]);
+			return new InternalNode(f.point(i), left, right, f.cutDim[i]);
+		}
+	}
+
+	// squared distance between the bounding boxes of a and b
+	double boxGap2(Node a, Node b) {
+		double dx = Math.max(0, Math.max(a.minX() - b.maxX(), b.minX() - a.maxX()));
+		double dy = Math.max(0, Math.max(a.minY() - b.maxY(), b.minY() - a.maxY()));
+		return dx * dx + dy * dy;
+	}
+
+	// Dual-tree traversal: report the pairs (pa, pb), pa below a and pb below b,
+	// within distance sqrt(dist2). Node pairs whose boxes are farther apart are
+	// pruned, and the larger node of a pair is the one that gets split. With
+	// a == b (self join) each unordered pair of distinct points is reported once.
+	void distanceJoin(Node a, Node b, double dist2, BiConsumer<P, P> consumer) {
+		if (getLive(a) == 0 || getLive(b) == 0 || boxGap2(a, b) > dist2)
+			return;
+
+		if (a.isExternal && b.isExternal) {
+			if (a != b) {
+				consumer.accept(((ExternalNode) a).point, ((ExternalNode) b).point);
+			}
+		} else if (a == b) { // same internal node: pairs within each side and across
+			InternalNode q = (InternalNode) a;
+			distanceJoin(q.left, q.left, dist2, consumer);
+			distanceJoin(q.left, q.right, dist2, consumer);
+			distanceJoin(q.right, q.right, dist2, consumer);
+		} else if (b.isExternal || (!a.isExternal && getSize(a) >= getSize(b))) {
+			InternalNode q = (InternalNode) a;
+			distanceJoin(q.left, b, dist2, consumer);
+			distanceJoin(q.right, b, dist2, consumer);
+		} else {
+			InternalNode q = (InternalNode) b;
+			distanceJoin(a, q.left, dist2, consumer);
+			distanceJoin(a, q.right, dist2, consumer);
+		}
+	}
+
+	// Remove the tombstones below p. As with the delete rule for the whole tree,
+	// a subtree where fewer than half of the points are live is rebuilt;
+	// elsewhere dead leaves are spliced out just like an eager delete.
+	Node compact(Node p) {
+		if (p.isExternal) {
+			if (((ExternalNode) p).dead) {
+				deadItems--;
+				return null;
+			}
+			return p;
+		}
+
+		InternalNode q = (InternalNode) p;
+		if (q.live == q.size) { // no tombstones below
+			return q;
+		} else if (2 * q.live < q.size) { // mostly tombstones
+			return rebuild(q);
+		}
+
+		q.left = compact(q.left);
+		q.right = compact(q.right);
+		if (q.left == null) {
+			return q.right; // subtree gone, return sibling
+		} else if (q.right == null) {
+			return q.left;
+		} else {
+			q.updateSizeAndHeight(); // update q's information
+			return q;
+		}
+	}
+
+	// Print p, reusing the cached fragment of every maximal subtree of at most
+	// printCacheLimit points. Only the nodes above those subtrees are written
+	// each time, and a fragment is rebuilt only after a change below it.
+	void printXML(Node p, ByteArrayOutputStream out) {
+		if (getSize(p) <= printCacheLimit) {
+			if (p.xml == null) {
+				ByteArrayOutputStream fragment = new ByteArrayOutputStream(64 * getSize(p));
+				p.writeXML(fragment);
+				p.xml = fragment.toByteArray();
+			}
+			out.write(p.xml, 0, p.xml.length);
+		} else if (p.isExternal) {
+			p.writeXML(out);
+		} else {
+			InternalNode q = (InternalNode) p;
+			q.xml = null; // too large to keep
+			if (getLive(q.left) == 0) { // spliced out, as in writeXML
+				printXML(q.right, out);
+			} else if (getLive(q.right) == 0) {
+				printXML(q.left, out);
+			} else {
+				q.writeStartTag(out);
+				printXML(q.left, out);
+				printXML(q.right, out);
+				writeASCII(out, "</internal>");
+			}
+		}
+	}
+
+	static void writeASCII(ByteArrayOutputStream out, String s) {
+		for (int i = 0; i < s.length(); i++)
+			out.write(s.charAt(i));
+	}
+
+	// key="value" with the value escaped and encoded as UTF-8
+	static void writeAttribute(ByteArrayOutputStream out, String key, String value) {
+		out.write(' ');
+		writeASCII(out, key);
+		writeASCII(out, "=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&')
+				writeASCII(out, "&amp;");
+			else if (c == '<')
+				writeASCII(out, "&lt;");
+			else if (c == '>')
+				writeASCII(out, "&gt;");
+			else if (c == '"')
+				writeASCII(out, "&quot;");
+			else if (c < 0x80)
+				out.write(c);
+			else { // encode the whole non-ASCII run, so surrogate pairs stay together
+				int end = i + 1;
+				while (end < value.length() && value.charAt(end) >= 0x80)
+					end++;
+				byte[] bytes = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+				out.write(bytes, 0, bytes.length);
+				i = end - 1;
+			}
+		}
+		out.write('"');
+	}
+
+	// Left subtree size for k >= 2 points sorted along cutDim, as chosen by the
+	// split policy but never more than 2/3 of them on either side (see
+	// SplitPolicy). The median needs neither the coordinates nor the clamp.
+	int leftSize(List<P> list, int cutDim, double otherSide) {
+		int k = list.size();
+		if (splitPolicy == SplitPolicy.MEDIAN) {
+			return (k + 1) / 2;
+		}
+		double[] coords = new double[k];
+		for (int i = 0; i < k; i++) {
+			coords[i] = (cutDim == 0) ? list.get(i).getX() : list.get(i).getY();
+		}
+		return leftSize(coords, otherSide);
+	}
+
+	// the same for coordinates already extracted
+	int leftSize(double[] coords, double otherSide) {
+		int k = coords.length;
+		int most = 2 * k / 3;
+		return Math.max(k - most, Math.min(most, splitPolicy.leftSize(coords, otherSide)));
+	}
+
+	// Balance the tree
+	Node buildTreeRebalance(List<P> list) {
+		if (DEBUG)
+			System.out.println("buildTree list " + Arrays.toString(list.toArray()));
+
+		int k = list.size();
+		if (k == 0) { // no points at all
+			return null;
+		} else if (k == 1) { // a single point
 			if (DEBUG)
-				System.out.println("Internal Node " + p.toString() + " cutDim: " + cutDim);
+				System.out.println("External Node " + list.get(0).toString());
+			return new ExternalNode(list.get(0));
+		} else {
+			// minimum rectangle containing the points
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < k; i++) {
+				P pt = list.get(i);
+				minX = Math.min(minX, pt.getX());
+				minY = Math.min(minY, pt.getY());
+				maxX = Math.max(maxX, pt.getX());
+				maxY = Math.max(maxY, pt.getY());
+			}
+
+			int cutDim;
+
+			if (DEBUG)
+				System.out.println("rebalance rectangle low " + minX + "," + minY + " high " + maxX + "," + maxY);
+
+			if (maxX - minX >= maxY - minY) {// split along x-coordinate (vertically)
+				cutDim = 0;
+				if (DEBUG)
+					System.out.println("list for left " + Arrays.toString(list.toArray()));
+				Collections.sort(list, compareXY);
+			} else {// split along y-coordinate (horizontally)
+				cutDim = 1;
+				if (DEBUG)
+					System.out.println("list for left " + Arrays.toString(list.toArray()));
+				Collections.sort(list, compareYX);
+			}
 
-			p.updateSizeAndHeight(); // update p's information
-			return p;
-		}
-	}
+			int m = leftSize(list, cutDim, (cutDim == 0) ? maxY - minY : maxX - minX); // size of left subtree
+			P splitter = list.get(m - 1); // splitter value
 
-	Node buildTree(List<P> list) {
-		if (DEBUG)
-			System.out.println("buildTree list " + Arrays.toString(list.toArray()));
+			if (DEBUG)
+				System.out.println("splitter " + splitter.toString() + " cutdim " + cutDim);
 
-		int k = list.size();
-		if (k == 0) { // no points at all
-			return null;
-		} else if (k == 1) { // a single point
-			return new ExternalNode(list.get(0));
-		} else {
-			int m = (int) Math.ceil((float) k / 2); // size of left subtree
-			P splitter = list.get(m - 1); // splitter value
 			// recursively build left and right subtrees
-			Node left = buildTree(list.subList(0, m));
-			Node right = buildTree(list.subList(m, k));
+			Node left = buildTreeRebalance(list.subList(0, m));
+			Node right = buildTreeRebalance(list.subList(m, k));
 
 			// combine the lists under median (median goes into left subtree)
-			InternalNode p = new InternalNode(splitter, left, right);
-			p.updateSizeAndHeight(); // update p's information
+			InternalNode p = new InternalNode(splitter, left, right, cutDim);
+			if (DEBUG)
+				System.out.println("Internal Node " + p.toString() + " cutDim: " + cutDim);
+
 			return p;
 		}
 	}
@@ -948,6 +2234,23 @@ public class SGKDTree<P extends NamedPoint2D> {
 	private int nItems; // number of items (equals getSize(root))
 	private int maxItems; // upper bound on the number of items
 
+	private boolean lazyDelete; // mark deleted points as tombstones instead of removing them
+	private double compactFraction; // fraction of tombstones that triggers compaction
+	private int deadItems; // number of tombstones (nItems + deadItems equals getSize(root))
+	private boolean compactDue; // a lazy delete crossed compactFraction; the next write compacts
+	private boolean revived; // set when an insert reused a tombstone
+
+	private ExecutorService rebuildExecutor; // runs large rebuilds off the caller's thread
+	private int backgroundThreshold; // smallest subtree rebuilt in the background
+	private int rebuildWork; // incremental rebuild steps per write and level, 0 when off
+	private PendingRebuild pending; // background or incremental rebuild in progress, if any
+	private boolean replaying; // replaying logged writes into a rebuilt copy
+
+	private NearestCache nearestCache; // nearest neighbor answers, if enabled
+	private Subscriptions subscriptions; // region listeners, created by the first subscribe
+	private final ArrayList<InternalNode> rebalancePath = new ArrayList<InternalNode>(); // scapegoat search path
+	private final ArrayList<InternalNode> movePath = new ArrayList<InternalNode>(); // root to the moved leaf
+
 	private Point2D low; // lower-left corner point
 	private Point2D high; // upper-right corner point
 
@@ -956,13 +2259,27 @@ public class SGKDTree<P extends NamedPoint2D> {
 	private int mapWidth; // bounding box
 	private int mapHeight; // bounding box
 
+	private int printCacheLimit = 256; // largest subtree whose print fragment is cached
+	private final SplitPolicy splitPolicy; // where rebuilt subtrees are split
+
+	private int scapegoatDepth; // depth of the last scapegoat (for JFR events)
+	private int scapegoatSize; // size of the last scapegoat (for JFR events)
+	private LatencyRecorder latency; // null unless recording
+
 	// -----------------------------------------------------------------
 	// Public members
 	// -----------------------------------------------------------------
 
 	public SGKDTree(Comparator<P> comparator, Document resultsDoc, CompareXY<P> compareXY, CompareYX<P> compareYX,
 			int mapWidth, int mapHeight) {
+		this(comparator, resultsDoc, compareXY, compareYX, mapWidth, mapHeight, SplitPolicy.MEDIAN);
+	}
+
+	// as above, splitting rebuilt subtrees by splitPolicy instead of the median
+	public SGKDTree(Comparator<P> comparator, Document resultsDoc, CompareXY<P> compareXY, CompareYX<P> compareYX,
+			int mapWidth, int mapHeight, SplitPolicy splitPolicy) {
 		root = null;
+		this.splitPolicy = splitPolicy;
 		this.comparator = comparator;
 		this.compareXY = compareXY;
 		this.compareYX = compareYX;
@@ -982,63 +2299,409 @@ public class SGKDTree<P extends NamedPoint2D> {
 		return nItems;
 	}
 
+	// an immutable, pointer-free copy for read-mostly serving (see Frozen)
+	public Frozen freeze() {
+		return new Frozen(root);
+	}
+
 	public P find(P pt) {
-		if (root == null) {
-			return null;
-		} else {
-			return root.find(pt);
-		}
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		P found = (root == null) ? null : root.find(pt);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.FIND, start);
+		return found;
 	}
 
 	public void insert(P pt) throws Exception {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
 		if (DEBUG) {
 			System.out.println("\nKD tree: Inserting " + pt);
 		}
+		finishBackgroundRebuild(false);
+		if (compactDue) {
+			compactTombstones();
+		}
+		revived = false;
 		if (root == null) {
 			root = new ExternalNode(pt);
 		} else {
 			root = root.insert(pt);
 		}
 		nItems++;
-		maxItems++;
-		assert (nItems == getSize(root));
-		int maxAllowedHeight = (int) (Math.log(maxItems) / Math.log((double) BALANCE_DENOM / (double) BALANCE_NUM));
-		if (getHeight(root) > maxAllowedHeight) {
-			root = root.rebalance(pt);
+		if (revived) {
+			deadItems--; // a tombstone was reused, the structure is unchanged
+		} else {
+			maxItems++;
 		}
+		assert (nItems + deadItems == getSize(root));
+		if (!revived) {
+			checkHeight(pt);
+		}
+		afterWrite(pt, true);
 		if (DEBUG) {
 			System.out.println("KD tree: After insertion of " + pt + System.lineSeparator() + debugPrint("  "));
 //			root.check(null, null);
 		}
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.INSERT, start);
+	}
+
+	// if the tree is too tall after pt was added, rebuild the scapegoat on pt's path
+	private void checkHeight(P pt) {
+		if (getHeight(root) > maxAllowedHeight(maxItems)) {
+			SGKDTreeEvents.Rebalance event = new SGKDTreeEvents.Rebalance();
+			event.begin();
+			int treeHeight = getHeight(root);
+			rebalancePath.clear();
+			root = root.rebalance(pt, 0);
+			if (event.shouldCommit()) {
+				event.scapegoatDepth = scapegoatDepth;
+				event.scapegoatSize = scapegoatSize;
+				event.treeHeight = treeHeight;
+				event.maxItems = maxItems;
+				event.commit();
+			}
+		}
+	}
+
+	// Move the stored point old to the coordinates of updated, which replaces
+	// it. Either both happen or, if old is not stored or updated's coordinates
+	// are taken, neither. If updated falls in the same leaf cell as old, the
+	// point is swapped in place and only the boxes on the path are refreshed.
+	// Otherwise old is removed and updated added below their lowest common
+	// ancestor, followed by one height check. The number of points does not
+	// change, so unlike a delete and an insert a move never counts toward the
+	// whole-tree rebuild after deletions.
+	public void move(P old, P updated) throws Exception {
+		if (DEBUG) {
+			System.out.println("KD tree: Moving " + old + " to " + updated);
+		}
+		finishBackgroundRebuild(false);
+		if (compactDue) {
+			compactTombstones();
+		}
+		if (root == null) {
+			throw new Exception("cityDoesNotExist");
+		}
+
+		// path from the root to old's leaf, and the lowest common ancestor: the
+		// first node where updated leaves the path (path.size() if it never does)
+		ArrayList<InternalNode> path = movePath;
+		path.clear();
+		int lca = -1;
+		Node p = root;
+		while (!p.isExternal) {
+			InternalNode q = (InternalNode) p;
+			path.add(q);
+			boolean oldLeft = q.compareToSplitter(old) <= 0;
+			if (lca < 0 && (q.compareToSplitter(updated) <= 0) != oldLeft) {
+				lca = path.size() - 1;
+			}
+			p = oldLeft ? q.left : q.right;
+		}
+		ExternalNode leaf = (ExternalNode) p;
+		if (leaf.find(old) == null) {
+			throw new Exception("cityDoesNotExist");
+		}
+		if (lca < 0) {
+			lca = path.size(); // only old itself can share updated's leaf
+		} else { // only the other side of the ancestor can hold updated's coordinates
+			InternalNode q = path.get(lca);
+			if (((q.compareToSplitter(old) <= 0) ? q.right : q.left).find(updated) != null) {
+				throw new Exception("duplicateCityCoordinates");
+			}
+		}
+
+		revived = false;
+		if (lca == path.size()) { // same cell: the splitters still separate updated correctly
+			leaf.point = updated;
+			leaf.xml = null;
+		} else {
+			InternalNode q = path.get(lca);
+			boolean oldLeft = q.compareToSplitter(old) <= 0;
+			if (oldLeft) {
+				q.right = q.right.insert(updated);
+			} else {
+				q.left = q.left.insert(updated);
+			}
+			Node replacement = q;
+			if (lazyDelete) {
+				(oldLeft ? q.left : q.right).markDead(old);
+				deadItems++;
+				q.updateSizeAndHeight();
+			} else {
+				Node rest = (oldLeft ? q.left : q.right).delete(old);
+				if (rest == null) { // old was q's child, so q goes too
+					replacement = oldLeft ? q.right : q.left;
+				} else {
+					if (oldLeft) {
+						q.left = rest;
+					} else {
+						q.right = rest;
+					}
+					q.updateSizeAndHeight();
+				}
+			}
+			if (revived) {
+				deadItems--;
+			} else if (lazyDelete) {
+				maxItems++; // the tombstone stays, so the structure grew like an insert
+			}
+			if (lca == 0) {
+				root = replacement;
+			} else if (path.get(lca - 1).left == q) {
+				path.get(lca - 1).left = replacement;
+			} else {
+				path.get(lca - 1).right = replacement;
+			}
+			lca--; // q itself is done
+		}
+		for (int i = Math.min(lca, path.size() - 1); i >= 0; i--) {
+			path.get(i).updateSizeAndHeight(); // sizes are unchanged above q, the boxes may not be
+		}
+		assert (nItems + deadItems == getSize(root));
+		checkHeight(updated);
+		afterWrite(old, false);
+		afterWrite(updated, true);
+		if (DEBUG) {
+			System.out.println("KD tree: After moving " + old + System.lineSeparator() + debugPrint("  "));
+		}
 	}
 
 	public void delete(P pt) throws Exception {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
 		if (DEBUG) {
 			System.out.println("KD tree: Deleting " + pt);
 		}
+		finishBackgroundRebuild(false);
+		if (compactDue) {
+			compactTombstones();
+		}
 		if (root == null) {
 			throw new Exception("cityDoesNotExist");
+		} else if (lazyDelete) {
+			root.markDead(pt); // O(log n), no restructuring and no rebuild
+			nItems--;
+			deadItems++;
+			compactDue = deadItems > compactFraction * (nItems + deadItems); // left to the next write
+			afterWrite(pt, false);
+			if (recorder != null)
+				recorder.record(LatencyRecorder.Operation.DELETE, start);
+			return;
 		} else {
 			root = root.delete(pt);
 		}
 		nItems--;
-		if (2 * nItems < maxItems) {
-			root = rebuild(root);
+		afterWrite(pt, false);
+		checkSize();
+		if (DEBUG) {
+			System.out.println("KD tree: After deleting " + pt + System.lineSeparator() + debugPrint("  "));
+			root.check(null, null);
+		}
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.DELETE, start);
+	}
+
+	// rebuild the whole tree once deletions have left fewer than half of maxItems
+	private void checkSize() {
+		if (2 * nItems < maxItems && rebuildsDeferred() && root != null && getSize(root) >= backgroundThreshold
+				&& (pending != null || startBackgroundRebuild(Collections.<InternalNode>emptyList(), root, true))) {
+			// left to the pending rebuild
+		} else if (2 * nItems < maxItems) {
+			if (root != null)
+				root = rebuild(root);
 			if (DEBUG) {
 				System.out.println("KD tree: Triggered rebuild after deletion. n = " + nItems + " m = " + maxItems);
 			}
 			maxItems = nItems;
 		}
+	}
+
+	// Delete every point in the closed rectangle region and return them. Whole
+	// subtrees inside the region are cut off at once and the sizes on the
+	// boundary paths are fixed on the way back, so this costs O(sqrt(n) +
+	// removed) instead of one delete per point. The whole-tree rebuild rule is
+	// applied once at the end. Tombstones in the region are dropped as well.
+	public List<P> deleteRange(Rectangle region) throws Exception {
+		finishBackgroundRebuild(false);
+		if (compactDue) {
+			compactTombstones();
+		}
+		ArrayList<P> removed = new ArrayList<P>();
+		if (root == null) {
+			return removed;
+		}
+		root = root.deleteRange(region.getLow().getX(), region.getLow().getY(), region.getHigh().getX(),
+				region.getHigh().getY(), removed);
+		nItems -= removed.size();
+		deadItems = (root == null) ? 0 : getSize(root) - nItems;
+		for (P pt : removed) {
+			afterWrite(pt, false);
+		}
+		checkSize();
 		if (DEBUG) {
-			System.out.println("KD tree: After deleting " + pt + System.lineSeparator() + debugPrint("  "));
-			root.check(null, null);
+			System.out.println("KD tree: After deleting " + removed.size() + " points in range"
+					+ System.lineSeparator() + debugPrint("  "));
+		}
+		return removed;
+	}
+
+	// In lazy delete mode, delete only marks the point's external node as a
+	// tombstone and updates the live counts on its path. Queries skip tombstones,
+	// an insert of the same coordinates reuses one, and once a delete leaves more
+	// than compactFraction of the external nodes tombstones the next write
+	// compacts the tree (see compactTombstones()). Turning the mode off compacts
+	// at once.
+	// Tombstones are not printed. compactFraction must be in (0, 1].
+	public void setLazyDelete(boolean lazyDelete, double compactFraction) {
+		if (lazyDelete && !(compactFraction > 0 && compactFraction <= 1)) {
+			throw new IllegalArgumentException("compactFraction must be in (0, 1]");
 		}
+		this.lazyDelete = lazyDelete;
+		this.compactFraction = compactFraction;
+		compactDue = lazyDelete && deadItems > compactFraction * (nItems + deadItems);
+		if (!lazyDelete) {
+			compact();
+		}
+	}
+
+	// rebuild the whole tree with the split policy, e.g. after a bulk load
+	public void rebuild() {
+		cancelRebuild(); // superseded by this rebuild
+		if (root != null) {
+			root = rebuild(root);
+		}
+		maxItems = nItems;
+	}
+
+	public boolean isLazyDelete() {
+		return lazyDelete;
+	}
+
+	// Compaction due after a lazy delete, run at the start of the next write.
+	// With background or incremental rebuilds on, a large tree is rebuilt whole
+	// that way (the rebuild skips tombstones and drops them at the swap), so the
+	// write does not pay for a pass over the tree.
+	private void compactTombstones() {
+		compactDue = false;
+		if (rebuildsDeferred() && root != null && getSize(root) >= backgroundThreshold) {
+			if (pending != null && pending.wholeTree) {
+				return; // already under way
+			}
+			cancelRebuild(); // superseded by the whole-tree rebuild
+			if (startBackgroundRebuild(Collections.<InternalNode>emptyList(), root, true)) {
+				return;
+			}
+		}
+		compact();
+	}
+
+	// remove all tombstones now, rebuilding the subtrees where they dominate
+	public void compact() {
+		compactDue = false;
+		if (root != null && deadItems > 0) {
+			root = compact(root);
+			if (2 * nItems < maxItems) { // same rule as an eager delete
+				if (root != null)
+					root = rebuild(root);
+				maxItems = nItems;
+			}
+		}
+	}
+
+	// Rebuild subtrees of at least threshold points on executor instead of the
+	// caller's thread. The live tree keeps answering queries and accepting
+	// writes; the first insert or delete after the rebuild completes replays the
+	// writes that hit the subtree into the new copy and swaps it in. Only one
+	// background rebuild runs at a time. Pass null to go back to inline rebuilds.
+	public void setBackgroundRebuild(ExecutorService executor, int threshold) throws InterruptedException {
+		if (executor == null || rebuildWork > 0) {
+			finishBackgroundRebuild(true);
+		}
+		this.rebuildExecutor = executor;
+		this.backgroundThreshold = threshold;
+		this.rebuildWork = 0;
+	}
+
+	// De-amortized rebuilds: a scapegoat (or whole tree) of at least threshold
+	// points is rebuilt on the writer's thread, but spread over the following
+	// writes (see IncrementalBuild). Each insert, delete, move or deleteRange
+	// does work * log2(k) steps of the rebuild of k points, which takes about
+	// 4k / work writes in all; the old subtree serves in the meantime, and the
+	// writes that hit it are replayed into the copy before it is swapped in
+	// (work >= 2, so that the replay catches up). So no single write does
+	// more than O(log n) rebuild work, apart from the coordinate array a split
+	// policy other than the median gets for each subtree, and unless the tree
+	// grows HEIGHT_SLACK levels past its bound meanwhile, when the pending
+	// rebuild is finished at once (see finishBackgroundRebuild). Only one rebuild
+	// is pending at a time, as with background rebuilds; smaller scapegoats are
+	// rebuilt inline. Lazy compaction is a whole-tree rebuild done the same way
+	// (see compactTombstones()). Pass 0 for inline rebuilds (finishing a pending
+	// one first).
+	public void setIncrementalRebuild(int work, int threshold) throws InterruptedException {
+		finishBackgroundRebuild(true);
+		this.rebuildExecutor = null;
+		this.rebuildWork = (work <= 0) ? 0 : Math.max(2, work);
+		this.backgroundThreshold = threshold;
+	}
+
+	// drop the pending rebuild, if any
+	private void cancelRebuild() {
+		if (pending != null && pending.result != null) {
+			pending.result.cancel(false);
+		}
+		pending = null;
+	}
+
+	public boolean isRebuildPending() {
+		return pending != null;
+	}
+
+	// block until the pending background rebuild (if any) is swapped in
+	public void awaitRebuild() throws InterruptedException {
+		finishBackgroundRebuild(true);
 	}
 
 	public void clear() {
+		cancelRebuild();
+		List<P> removed = (subscriptions != null && subscriptions.index.size() > 0) ? entryList() : null;
 		root = null;
-		maxItems = nItems = 0;
+		if (nearestCache != null) {
+			nearestCache.clear();
+		}
+		maxItems = nItems = deadItems = 0;
+		compactDue = false;
 		low = high = null;
+		if (removed != null) {
+			for (P pt : removed)
+				subscriptions.dispatch(pt, false);
+		}
+	}
+
+	// Replace the contents with points, which must have distinct coordinates,
+	// built in one pass the way rebuild() builds the whole tree, instead of by
+	// one insert (and its rebuilds) per point. Subscribers are told of the old
+	// points' removal and the new points' insertion.
+	public void bulkLoad(List<P> points) {
+		cancelRebuild();
+		boolean notify = subscriptions != null && subscriptions.index.size() > 0;
+		List<P> removed = notify ? entryList() : null;
+		root = buildTreeRebalance(new ArrayList<P>(points));
+		if (nearestCache != null) {
+			nearestCache.clear();
+		}
+		maxItems = nItems = points.size();
+		deadItems = 0;
+		compactDue = false;
+		if (notify) {
+			for (P pt : removed)
+				subscriptions.dispatch(pt, false);
+			for (P pt : points)
+				subscriptions.dispatch(pt, true);
+		}
 	}
 
 	public List<P> entryList() {
@@ -1049,6 +2712,17 @@ public class SGKDTree<P extends NamedPoint2D> {
 		return list;
 	}
 
+	// the live points in entryList order, read lazily (see PointSpliterator)
+	public Spliterator<P> spliterator() {
+		return new PointSpliterator(root);
+	}
+
+	// the live points without copying them; stream().parallel() splits the
+	// tree at its internal nodes
+	public Stream<P> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
 	String debugPrint(String prefix) {
 		if (root != null)
 			return root.debugPrint(prefix);
@@ -1057,18 +2731,382 @@ public class SGKDTree<P extends NamedPoint2D> {
 	}
 
 	public void print(Element element) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
 		Element out = resultsDoc.createElement("KdTree");
 		element.appendChild(out);
 		if (root != null)
 			root.print(out);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.PRINT, start);
 	}
 
-	public P nearestNeighbor(P q, Node p, Rectangle cell, float bestDist, P bestPoint) throws Exception {
-		if (root != null) {
-			return root.nearestNeighbor(q, root, rect, bestDist, bestPoint);
+	// The tree as UTF-8 XML bytes, the same elements print adds to the DOM.
+	// Printing after a single insert or delete only re-serializes the changed
+	// path, everything else is copied from cached fragments.
+	public byte[] printXML() {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (root == null || getLive(root) == 0) {
+			writeASCII(out, "<KdTree/>");
 		} else {
+			writeASCII(out, "<KdTree>");
+			printXML(root, out);
+			writeASCII(out, "</KdTree>");
+		}
+		byte[] bytes = out.toByteArray();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.PRINT, start);
+		return bytes;
+	}
+
+	// 0 turns the print cache off; cached fragments take about as much memory
+	// as the printed tree
+	public void setPrintCacheLimit(int limit) {
+		printCacheLimit = limit;
+		if (root != null && limit == 0)
+			clearPrintCache(root);
+	}
+
+	private void clearPrintCache(Node p) {
+		p.xml = null;
+		if (!p.isExternal) {
+			clearPrintCache(((InternalNode) p).left);
+			clearPrintCache(((InternalNode) p).right);
+		}
+	}
+
+	// nearest point to q, or bestPoint if no stored point is strictly closer
+	// (p, cell and bestDist are ignored; the search uses the cached bounding boxes)
+	public P nearestNeighbor(P q, Node p, Rectangle cell, float bestDist, P bestPoint) throws Exception {
+		return nearestNeighbor(q, bestPoint);
+	}
+
+	// nearest stored point to q, or null if the tree is empty
+	public P nearestNeighbor(P q) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		P nearest = nearestNeighbor(q, (P) null);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.NEAREST_NEIGHBOR, start);
+		return nearest;
+	}
+
+	// the k stored points closest to q, closest first (fewer if the tree is smaller)
+	public List<P> nearestNeighbors(P q, int k) {
+		if (root == null || k <= 0 || nItems == 0)
+			return new ArrayList<P>();
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		KnnSearch search = new KnnSearch(q, Math.min(k, nItems));
+		root.nearestNeighbors(search);
+		List<P> result = search.result();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.NEAREST_NEIGHBOR, start);
+		return result;
+	}
+
+	// A point at most (1 + epsilon) times as far from q as the nearest one.
+	// The search is best-first and stops once no unvisited cell is closer than
+	// best / (1 + epsilon); epsilon = 0 gives the exact answer.
+	public ApproximateNeighbor<P> approximateNearestNeighbor(P q, double epsilon) {
+		return approximateNearestNeighbor(q, epsilon, Integer.MAX_VALUE);
+	}
+
+	// The closest point found after visiting at most maxNodes nodes, closest
+	// cells first, so the cost is bounded whatever the shape of the data. The
+	// error bound of the answer says how far from exact it may be.
+	public ApproximateNeighbor<P> budgetedNearestNeighbor(P q, int maxNodes) {
+		return approximateNearestNeighbor(q, 0, maxNodes);
+	}
+
+	// both rules: stop at whichever is reached first
+	public ApproximateNeighbor<P> approximateNearestNeighbor(P q, double epsilon, int maxNodes) {
+		if (epsilon < 0 || maxNodes < 1) {
+			throw new IllegalArgumentException("epsilon must be >= 0 and maxNodes >= 1");
+		}
+		if (root == null || nItems == 0) {
+			return new ApproximateNeighbor<P>(null, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+		}
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ApproximateSearch search = new ApproximateSearch(q, epsilon, maxNodes);
+		search.reach(root);
+		while (search.count > 0 && search.visited < maxNodes) {
+			if (search.dist2[0] >= search.best2 / search.shrink)
+				break; // nothing left can beat best by more than the factor
+			InternalNode p = search.pop();
+			search.visited++;
+			search.reach(p.left);
+			search.reach(p.right);
+		}
+		ApproximateNeighbor<P> result = search.result();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.NEAREST_NEIGHBOR, start);
+		return result;
+	}
+
+	private P nearestNeighbor(P q, P bestPoint) {
+		if (root == null) {
 			return null;
 		}
+		if (nearestCache != null) {
+			CachedAnswer a = nearestCache.get(q.getX(), q.getY());
+			if (a == null) {
+				NearestSearch search = searchNearest(q, null);
+				a = nearestCache.put(search.x, search.y, search.best, search.bestDist2);
+			}
+			if (bestPoint != null) { // keep bestPoint unless the answer is strictly closer
+				double dx = bestPoint.getX() - a.x, dy = bestPoint.getY() - a.y;
+				if (dx * dx + dy * dy <= a.dist2)
+					return bestPoint;
+			}
+			return a.answer;
+		}
+		return searchNearest(q, bestPoint).best;
+	}
+
+	private NearestSearch searchNearest(P q, P bestPoint) {
+		SGKDTreeEvents.NearestNeighbor event = new SGKDTreeEvents.NearestNeighbor();
+		event.begin();
+		NearestSearch search = new NearestSearch(q, bestPoint);
+		root.nearestNeighbor(search);
+		if (event.shouldCommit()) {
+			event.nodesVisited = search.visited;
+			event.treeSize = nItems;
+			event.commit();
+		}
+		return search;
+	}
+
+	// Cache up to capacity nearest neighbor answers, keyed by query coordinates
+	// (0 turns the cache off). Writes drop only the entries they can affect, and
+	// find them with a box query on the answer circles (see NearestCache), so a
+	// write costs about as much as dispatching it to subscriptions.
+	public void setNearestNeighborCache(int capacity) {
+		nearestCache = (capacity > 0) ? new NearestCache(capacity) : null;
+	}
+
+	public long getCacheHits() {
+		return (nearestCache == null) ? 0 : nearestCache.hits;
+	}
+
+	public long getCacheMisses() {
+		return (nearestCache == null) ? 0 : nearestCache.misses;
+	}
+
+	public long getCacheInvalidations() {
+		return (nearestCache == null) ? 0 : nearestCache.invalidations;
+	}
+
+	// Call listener with every point inserted into or deleted from the closed
+	// rectangle region (clear reports a delete of each point). Listeners run on
+	// the writing thread once the tree is consistent again, so they may query it
+	// but must not modify it.
+	public Subscription<P> subscribe(Rectangle region, RegionListener<? super P> listener) {
+		double x1 = region.getLow().getX(), y1 = region.getLow().getY();
+		double x2 = region.getHigh().getX(), y2 = region.getHigh().getY();
+		return subscribe(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), 0, 0, -1,
+				listener);
+	}
+
+	// as above for the points within distance radius of center
+	public Subscription<P> subscribe(P center, double radius, RegionListener<? super P> listener) {
+		double cx = center.getX(), cy = center.getY();
+		return subscribe(cx - radius, cy - radius, cx + radius, cy + radius, cx, cy, radius, listener);
+	}
+
+	private Subscription<P> subscribe(double minX, double minY, double maxX, double maxY, double cx, double cy,
+			double radius, RegionListener<? super P> listener) {
+		if (subscriptions == null) {
+			subscriptions = new Subscriptions();
+		}
+		Subscription<P> s = new Subscription<P>(subscriptions.nextId++, minX, minY, maxX, maxY, cx, cy, radius,
+				listener);
+		subscriptions.index.insert(s.key(), s);
+		return s;
+	}
+
+	public void unsubscribe(Subscription<P> s) throws Exception {
+		if (subscriptions == null || subscriptions.index.find(s.key()) != s) {
+			throw new Exception("subscriptionDoesNotExist");
+		}
+		subscriptions.index.delete(s.key());
+	}
+
+	public int getSubscriptionCount() {
+		return (subscriptions == null) ? 0 : subscriptions.index.size();
+	}
+
+	// points inside the closed rectangle region
+	public List<P> rangeSearch(Rectangle region) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ArrayList<P> list = new ArrayList<P>();
+		if (root != null) {
+			root.rangeSearch(region.getLow().getX(), region.getLow().getY(), region.getHigh().getX(),
+					region.getHigh().getY(), list);
+		}
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.RANGE_SEARCH, start);
+		return list;
+	}
+
+	// points within distance radius of center
+	public List<P> rangeSearch(P center, double radius) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ArrayList<P> list = new ArrayList<P>();
+		if (root != null) {
+			root.rangeSearch(center.getX(), center.getY(), radius * radius, list);
+		}
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.RANGE_SEARCH, start);
+		return list;
+	}
+
+	// Time insert, delete, find, rangeSearch, the nearest neighbor queries,
+	// print, printXML and rebuilds (inline and background) into recorder (see
+	// LatencyRecorder); null stops recording. move and deleteRange are not
+	// timed, though the rebuilds they do are.
+	public void setLatencyRecorder(LatencyRecorder recorder) {
+		latency = recorder;
+	}
+
+	public LatencyRecorder getLatencyRecorder() {
+		return latency;
+	}
+
+	// Stream every pair (a, b), a from this tree and b from other, with
+	// distance(a, b) <= dist to consumer. Passing this tree as other gives a
+	// self join, where each unordered pair of distinct points appears once.
+	public void distanceJoin(SGKDTree<P> other, double dist, BiConsumer<P, P> consumer) {
+		if (root != null && other.root != null) {
+			distanceJoin(root, other.root, dist * dist, consumer);
+		}
+	}
+
+	// For every live point, its nearest other point. Returns the live points in
+	// tree order; nearest[i] is set to the index in that list of the nearest
+	// neighbor of point i (-1 if it has none), so nearest needs room for size()
+	// entries. One pass numbers the leaves in tree order, so no map from points
+	// to indices is needed. Each search then runs bottom-up: it starts at the
+	// leaf's sibling, the closest part of the tree, and climbs the leaf's
+	// ancestors, entering an ancestor's other child only if its box is closer
+	// than the best point so far, so it never descends from the root. The
+	// searches only read the tree and run in parallel over its subtrees.
+	public List<P> allNearestNeighbors(final int[] nearest) {
+		ArrayList<ExternalNode> leaves = new ArrayList<ExternalNode>(nItems);
+		if (root != null) {
+			numberLeaves(root, leaves);
+		}
+		ArrayList<P> points = new ArrayList<P>(leaves.size());
+		for (ExternalNode leaf : leaves) {
+			points.add(leaf.point);
+		}
+		if (root == null || root.isExternal) {
+			Arrays.fill(nearest, 0, points.size(), -1);
+			return points;
+		}
+
+		// cut the tree into subtrees of about n / (8 * threads) points, each
+		// searched as one task with a copy of the path above it
+		final ArrayList<Node> tops = new ArrayList<Node>();
+		final ArrayList<ArrayList<InternalNode>> paths = new ArrayList<ArrayList<InternalNode>>();
+		int grain = Math.max(1, nItems / (8 * Runtime.getRuntime().availableProcessors()));
+		nearestTasks(root, new ArrayList<InternalNode>(), grain, tops, paths);
+
+		IntStream.range(0, tops.size()).parallel().forEach(t -> {
+			allNearestNeighbors(tops.get(t), paths.get(t), nearest);
+		});
+		return points;
+	}
+
+	// append the live leaves below p in tree order, recording their index
+	private void numberLeaves(Node p, ArrayList<ExternalNode> leaves) {
+		if (p.isExternal) {
+			ExternalNode leaf = (ExternalNode) p;
+			if (!leaf.dead) {
+				leaf.order = leaves.size();
+				leaves.add(leaf);
+			}
+		} else if (((InternalNode) p).live > 0) {
+			numberLeaves(((InternalNode) p).left, leaves);
+			numberLeaves(((InternalNode) p).right, leaves);
+		}
+	}
+
+	// collect the subtrees below p of at most grain live points, with copies of
+	// their paths from the root (path holds p's ancestors)
+	private void nearestTasks(Node p, ArrayList<InternalNode> path, int grain, List<Node> tops,
+			List<ArrayList<InternalNode>> paths) {
+		if (getLive(p) == 0) {
+			return;
+		}
+		if (p.isExternal || getLive(p) <= grain) {
+			tops.add(p);
+			paths.add(new ArrayList<InternalNode>(path));
+			return;
+		}
+		InternalNode q = (InternalNode) p;
+		path.add(q);
+		nearestTasks(q.left, path, grain, tops, paths);
+		nearestTasks(q.right, path, grain, tops, paths);
+		path.remove(path.size() - 1);
+	}
+
+	// the bottom-up searches for the live leaves below p, whose ancestors are
+	// on path
+	private void allNearestNeighbors(Node p, ArrayList<InternalNode> path, int[] nearest) {
+		if (!p.isExternal) {
+			InternalNode q = (InternalNode) p;
+			if (q.live == 0)
+				return; // only tombstones below
+			path.add(q);
+			allNearestNeighbors(q.left, path, nearest);
+			allNearestNeighbors(q.right, path, nearest);
+			path.remove(path.size() - 1);
+			return;
+		}
+		ExternalNode leaf = (ExternalNode) p;
+		if (leaf.dead)
+			return;
+		NearestSearch search = new NearestSearch(leaf.point, null);
+		Node child = leaf;
+		for (int d = path.size() - 1; d >= 0; d--) {
+			InternalNode parent = path.get(d);
+			Node other = (parent.left == child) ? parent.right : parent.left;
+			if (other.boxDistance2(search.x, search.y) < search.bestDist2)
+				other.nearestNeighbor(search);
+			child = parent;
+		}
+		nearest[leaf.order] = search.bestOrder;
+	}
+
+	// the two closest distinct points (an empty list if there are fewer than two)
+	public List<P> closestPair() {
+		int[] nearest = new int[nItems];
+		List<P> points = allNearestNeighbors(nearest);
+		int best = -1;
+		double bestDist2 = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < nearest.length; i++) {
+			if (nearest[i] >= 0 && distance2(points.get(i), points.get(nearest[i])) < bestDist2) {
+				best = i;
+				bestDist2 = distance2(points.get(i), points.get(nearest[i]));
+			}
+		}
+		ArrayList<P> pair = new ArrayList<P>();
+		if (best >= 0) {
+			pair.add(points.get(best));
+			pair.add(points.get(nearest[best]));
+		}
+		return pair;
+	}
+
+	double distance2(P a, P b) {
+		double dx = a.getX() - b.getX(), dy = a.getY() - b.getY();
+		return dx * dx + dy * dy;
 	}
 
 	public Point2D getLow() {
@@ -1079,6 +3117,92 @@ public class SGKDTree<P extends NamedPoint2D> {
 		return high;
 	}
 
+	public int getHeight() {
+		return (root == null) ? 0 : getHeight(root);
+	}
+
+	// Estimated memory of the tree (see MemoryReport), in one traversal. Points
+	// are assumed to be laid out like City. Geometry is the map rectangle and
+	// its corners; caches are the print fragments, the nearest neighbor cache,
+	// the subscriptions, the write log of a pending background rebuild and the
+	// arrays of a pending incremental one.
+	// Wasted: tombstones with the points they still hold, and internal nodes
+	// over tombstones only.
+	public MemoryReport memoryReport() {
+		long[] count = new long[5]; // internal, external, point bytes, print cache bytes, wasted bytes
+		if (root != null) {
+			memoryReport(root, count);
+		}
+		long nodeBytes = count[0] * INTERNAL_NODE_BYTES + count[1] * EXTERNAL_NODE_BYTES;
+		long geometryBytes = ((low != null) ? POINT2D_BYTES : 0) + ((high != null) ? POINT2D_BYTES : 0)
+				+ ((rect != null) ? RECTANGLE_BYTES : 0);
+		long cacheBytes = count[3];
+		if (nearestCache != null) {
+			synchronized (nearestCache) {
+				cacheBytes += nearestCache.map.size() * NEAREST_CACHE_ENTRY_BYTES;
+			}
+		}
+		if (subscriptions != null) {
+			cacheBytes += subscriptions.index.size() * SUBSCRIPTION_BYTES;
+		}
+		if (pending != null) {
+			cacheBytes += pending.writes.size() * LOGGED_WRITE_BYTES;
+			IncrementalBuild b = pending.build;
+			if (b != null) {
+				for (Chunks a : Arrays.asList(b.byX, b.byY, b.scratch)) {
+					if (a != null)
+						cacheBytes += a.bytes();
+				}
+			}
+		}
+		return new MemoryReport("SGKDTree", count[0], count[1], nodeBytes, count[2], 0, geometryBytes, cacheBytes,
+				count[4]);
+	}
+
+	// header, isExternal, xml, splitter, size, live, height, cutDim, left, right, box, outer instance
+	private static final long INTERNAL_NODE_BYTES = MemoryReport
+			.align(MemoryReport.HEADER + 1 + 5 * MemoryReport.REFERENCE + 4 * 4 + 4 * 8);
+	// header, isExternal, dead, xml, point, outer instance
+	private static final long EXTERNAL_NODE_BYTES = MemoryReport.align(MemoryReport.HEADER + 2 + 3 * MemoryReport.REFERENCE);
+	// header, x, y, r, name, color
+	private static final long CITY_BYTES = MemoryReport.align(MemoryReport.HEADER + 3 * 4 + 2 * MemoryReport.REFERENCE);
+	// header, x, y
+	private static final long POINT2D_BYTES = MemoryReport.align(MemoryReport.HEADER + 2 * 4);
+	// header, two corners
+	private static final long RECTANGLE_BYTES = MemoryReport.align(MemoryReport.HEADER + 2 * MemoryReport.REFERENCE);
+	// map entry (40), QueryKey (32), CachedAnswer (56), a table slot at load
+	// factor 0.75, and the entry's share of the 5-d index as for a subscription
+	private static final long NEAREST_CACHE_ENTRY_BYTES = 40 + 32 + 56 + 8 + 56 + 32 + 56 + 112;
+	// Subscription (80), its key (56), and its share of the 5-d index: one
+	// external node (32) and one internal node (56) with two 5-d boxes (112)
+	private static final long SUBSCRIPTION_BYTES = 80 + 56 + 32 + 56 + 112;
+	// LoggedWrite and its list slot
+	private static final long LOGGED_WRITE_BYTES = MemoryReport.align(MemoryReport.HEADER + 1 + 2 * MemoryReport.REFERENCE)
+			+ MemoryReport.REFERENCE;
+
+	private void memoryReport(Node p, long[] count) {
+		if (p.xml != null) {
+			count[3] += MemoryReport.align(MemoryReport.ARRAY_HEADER + p.xml.length);
+		}
+		if (p.isExternal) {
+			ExternalNode e = (ExternalNode) p;
+			long pointBytes = CITY_BYTES + MemoryReport.stringBytes(e.point.getName());
+			count[1]++;
+			count[2] += pointBytes;
+			if (e.dead) {
+				count[4] += EXTERNAL_NODE_BYTES + pointBytes;
+			}
+		} else {
+			InternalNode q = (InternalNode) p;
+			count[0]++;
+			if (q.live == 0) {
+				count[4] += INTERNAL_NODE_BYTES;
+			}
+			memoryReport(q.left, count);
+			memoryReport(q.right, count);
+		}
+	}
+
 	public int getMapWidth() {
 		return mapWidth;
 	}
@@ -1086,61 +3210,4 @@ public class SGKDTree<P extends NamedPoint2D> {
 	public int getMapHeight() {
 		return mapHeight;
 	}
-
-//	public static void main(String[] args) throws Exception {
-////		Document resultsDoc = null;
-////		SGKDTree<City> tree = new SGKDTree<City>(new OrderByCoordinate<City>(), resultsDoc, new CompareXY<City>(),
-////				new CompareYX<City>(), 1250, 1250);
-////
-////		tree.insert(new City(500, 500, "Edinburgh", "Green", 0));
-////		tree.insert(new City(750, 600, "Lisbon", "Green", 5));
-////		tree.insert(new City(400, 800, "Varna", "Green", 5));
-////		tree.insert(new City(300, 400, "London", "Green", 5));
-////		tree.insert(new City(200, 200, "Prague", "Green", 5));
-////		tree.insert(new City(900, 450, "Madrid", "Green", 5));
-////		tree.insert(new City(700, 300, "Paris", "Green", 5));
-////		tree.insert(new City(800, 100, "Copenhagen", "Green", 5));
-////		tree.insert(new City(850, 250, "Nice", "Green", 5));
-////		
-//
-////		City a = tree.nearestNeighbor(new City(400, 400, "Shangai", "Green", 5), null,
-////				new Rectangle(tree.getLow(), tree.getHigh()), Integer.MAX_VALUE, new City(400, 400, "san", "Green", 5));
-////		System.out.println(a.toString());
-//
-////		 System.out.println(tree.debugPrint(""));
-//
-//		// random input
-//		FileWriter fileWriter = null;
-//		try {
-//			fileWriter = new FileWriter(
-//					"D:/Documents/University of Maryland - CP/Maryland Fall 2019/CMSC420/MeeshQuest-Skeleton-part2/testinput.txt");
-//		} catch (IOException e) {
-//			// TODO Auto-generated catch block
-//			e.printStackTrace();
-//		}
-//		PrintWriter printWriter = new PrintWriter(fileWriter);
-//		printWriter.println("<commands\r\n" + "	xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\r\n"
-//				+ "	xsi:noNamespaceSchemaLocation=\"part2in.xsd\"\r\n"
-//				+ "	spatialWidth=\"1024\" spatialHeight=\"1024\">");
-//		for (int i = 0; i < 20; i++) {
-//			String x = Integer.toString((int) ((Math.random() * ((50 - 0) + 1)) + 0));
-//			String y = Integer.toString((int) ((Math.random() * ((50 - 0) + 1)) + 0));
-////			String s = "s" + (x) + (y);
-//			String s = "s" + i;
-//			printWriter.println(
-//					"<createCity name=\"" + s + "\" x=\"" + x + "\" y=\"" + y + "\" radius=\"0\" color=\"black\"/>");
-////			printWriter.println("<deleteCity name=\"" + s + "\"/>");
-////			printWriter.println("<deleteCity name=\"" + s + "\"/>");
-//			printWriter.println(
-//					"<createCity name=\"" + s + "\" x=\"" + x + "\" y=\"" + y + "\" radius=\"0\" color=\"black\"/>");
-////			if (i % 20 == 0) {
-////				printWriter.println("<listCities sortBy=\"name\"/>");
-////				printWriter.println("<printBinarySearchTree/>");
-//			printWriter.println("<printKdTree/>");
-////			}
-////			printWriter.println("<nearestNeighbor x=\"" + x + "\" y=\"" + y + "\"/>");
-//		}
-//		printWriter.println("</commands>");
-//		printWriter.close();
-//	}
 }
@@ -0,0 +1,105 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.List;
+import java.util.Random;
+
+// Nathanael Brian
+// Query throughput of the pointer SG KD-Tree against its frozen array layout
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.SGKDTreeBenchmark [points] [queries] [seed]
+ *
+ * Builds a tree of random cities, freezes it, checks that both layouts give
+ * the same answers and then times nearest neighbor and range queries on each.
+ * Every timed loop is run a few times first so the JIT has compiled it.
+ */
+
+public class SGKDTreeBenchmark {
+	private static final int MAP_SIZE = 1 << 14;
+	private static final int ROUNDS = 5; // timed rounds, the first ones are warm-up
+
+	public static void main(String[] args) throws Exception {
+		int points = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 420;
+		Random random = new Random(seed);
+
+		SGKDTree<City> tree = new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(),
+				new CompareYX<City>(), MAP_SIZE, MAP_SIZE);
+		for (int i = 0; i < points; i++) {
+			tree.insert(new City(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), "c" + i, "Black", 0));
+		}
+
+		long start = System.nanoTime();
+		SGKDTree<City>.Frozen frozen = tree.freeze();
+		System.out.printf("freeze: %d points in %.1f ms%n", frozen.size(), (System.nanoTime() - start) / 1e6);
+
+		City[] q = new City[queries];
+		for (int i = 0; i < queries; i++) {
+			q[i] = new City(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), "q" + i, "Black", 0);
+		}
+		verify(tree, frozen, q);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long pointerNN = timeNearest(tree, null, q);
+			long frozenNN = timeNearest(null, frozen, q);
+			long pointerRange = timeRange(tree, null, q);
+			long frozenRange = timeRange(null, frozen, q);
+			System.out.printf("round %d: nearest pointer %.0f ns/op, frozen %.0f ns/op; "
+					+ "range pointer %.0f ns/op, frozen %.0f ns/op%n", round, (double) pointerNN / queries,
+					(double) frozenNN / queries, (double) pointerRange / queries, (double) frozenRange / queries);
+		}
+	}
+
+	// both layouts must agree before their timings mean anything
+	private static void verify(SGKDTree<City> tree, SGKDTree<City>.Frozen frozen, City[] q) throws Exception {
+		if (frozen.size() != tree.size())
+			throw new Exception("frozen size " + frozen.size() + " != " + tree.size());
+		for (City c : tree.entryList()) {
+			if (frozen.find(c) != tree.find(c))
+				throw new Exception("frozen find missed " + c);
+		}
+		for (int i = 0; i < Math.min(q.length, 1000); i++) {
+			City a = tree.nearestNeighbor(q[i]);
+			City b = frozen.nearestNeighbor(q[i]);
+			if (tree.distance2(a, q[i]) != tree.distance2(b, q[i]))
+				throw new Exception("nearest neighbor of " + q[i] + ": " + a + " != " + b);
+			Rectangle box = box(q[i]);
+			if (tree.rangeSearch(box).size() != frozen.rangeSearch(box).size())
+				throw new Exception("range search around " + q[i] + " differs");
+		}
+	}
+
+	private static long timeNearest(SGKDTree<City> tree, SGKDTree<City>.Frozen frozen, City[] q) {
+		long sink = 0;
+		long start = System.nanoTime();
+		for (City c : q) {
+			City nn = (tree != null) ? tree.nearestNeighbor(c) : frozen.nearestNeighbor(c);
+			sink += (long) nn.getX();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (sink == 42)
+			System.out.print(""); // keep the loop from being optimized away
+		return elapsed;
+	}
+
+	private static long timeRange(SGKDTree<City> tree, SGKDTree<City>.Frozen frozen, City[] q) {
+		long sink = 0;
+		long start = System.nanoTime();
+		for (City c : q) {
+			Rectangle box = box(c);
+			List<City> found = (tree != null) ? tree.rangeSearch(box) : frozen.rangeSearch(box);
+			sink += found.size();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (sink == 42)
+			System.out.print("");
+		return elapsed;
+	}
+
+	// a small square around c, about 16 expected points at the default size
+	private static Rectangle box(City c) {
+		int half = MAP_SIZE / 256;
+		return new Rectangle(new Point2D(c.getX() - half, c.getY() - half), new Point2D(c.getX() + half, c.getY() + half));
+	}
+}
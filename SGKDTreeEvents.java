@@ -0,0 +1,91 @@
+package cmsc420.meeshquest.part2;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Nathanael Brian
+// Java Flight Recorder events for the SG KD-Tree
+
+/*
+ * The events below are emitted by SGKDTree whenever a subtree is rebuilt, a
+ * scapegoat is chosen, a subtree is built from a point list, or a nearest
+ * neighbor query is answered. JFR events cost next to nothing unless a
+ * recording that enables them is running, so they replace the DEBUG flag for
+ * diagnosing pauses in production:
+ *
+ * java -XX:StartFlightRecording:filename=tree.jfr ...
+ *
+ * Field values are only computed when event.shouldCommit() is true.
+ */
+
+final class SGKDTreeEvents {
+	private SGKDTreeEvents() {
+	}
+
+	@Name("cmsc420.meeshquest.SGKDTree.Rebuild")
+	@Label("SG KD-Tree Rebuild")
+	@Description("A subtree was flattened and rebuilt into balanced form")
+	@Category({ "MeeshQuest", "SG KD-Tree" })
+	@StackTrace(false)
+	static class Rebuild extends Event {
+		@Label("Subtree Size")
+		int subtreeSize; // number of points in the rebuilt subtree
+
+		@Label("Height Before")
+		int heightBefore; // height of the subtree before the rebuild
+
+		@Label("Height After")
+		int heightAfter; // height of the subtree after the rebuild
+	}
+
+	@Name("cmsc420.meeshquest.SGKDTree.Rebalance")
+	@Label("SG KD-Tree Scapegoat Rebalance")
+	@Description("Insertion exceeded the height bound and a scapegoat was rebuilt")
+	@Category({ "MeeshQuest", "SG KD-Tree" })
+	@StackTrace(false)
+	static class Rebalance extends Event {
+		@Label("Scapegoat Depth")
+		int scapegoatDepth; // depth of the scapegoat (root is 0)
+
+		@Label("Scapegoat Size")
+		int scapegoatSize; // number of points below the scapegoat
+
+		@Label("Tree Height")
+		int treeHeight; // tree height that triggered the rebalance
+
+		@Label("Max Items")
+		int maxItems; // upper bound used for the height bound
+	}
+
+	@Name("cmsc420.meeshquest.SGKDTree.Build")
+	@Label("SG KD-Tree Build")
+	@Description("A balanced subtree was built from a list of points")
+	@Category({ "MeeshQuest", "SG KD-Tree" })
+	@StackTrace(false)
+	static class Build extends Event {
+		@Label("Points")
+		int points; // number of points in the list
+
+		@Label("Height")
+		int height; // height of the resulting subtree
+	}
+
+	@Name("cmsc420.meeshquest.SGKDTree.NearestNeighbor")
+	@Label("SG KD-Tree Nearest Neighbor")
+	@Description("A nearest neighbor query that took longer than the threshold")
+	@Category({ "MeeshQuest", "SG KD-Tree" })
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static class NearestNeighbor extends Event {
+		@Label("Nodes Visited")
+		int nodesVisited; // internal and external nodes touched by the query
+
+		@Label("Tree Size")
+		int treeSize; // number of points in the tree
+	}
+}
@@ -0,0 +1,637 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Nathanael Brian
+// SG KD-Tree in k dimensions
+
+/*
+ * The same structure as SGKDTree, but for points with any fixed number of
+ * coordinates, e.g. (x, y, elevation) or (x, y, z, time). Coordinates are kept
+ * in primitive double[] arrays and each point carries a value of type V.
+ *
+ * The rules carry over from two dimensions:
+ * - It is an extended tree: points in the external nodes, splitters in the
+ * internal nodes, and a point equal to the splitter goes to the left.
+ * - The splitting dimension is the longest side of the smallest box containing
+ * the points of the subtree, ties broken in favor of the lower dimension.
+ * - Points are ordered lexicographically starting at the splitting dimension
+ * and wrapping around, so (x, y) and (y, x) in 2D become (z, t, x, y) for a
+ * z-splitter in 4D. One method does this for every dimension, no comparators.
+ * - Insertion rebuilds the scapegoat when the height exceeds log_{3/2} m, and
+ * deletion rebuilds the whole tree when fewer than m/2 points remain.
+ */
+
+public class SGKDTreeND<V> {
+	private final boolean DEBUG = false; // produce extra debugging output
+	private final int BALANCE_NUM = 2; // numerator in balance ratio
+	private final int BALANCE_DENOM = 3; // denominator in balance ratio
+
+	private abstract class Node { // generic node type
+		final boolean isExternal; // is node external?
+
+		Node(boolean isExternal) { // constructor
+			this.isExternal = isExternal;
+		}
+
+		abstract ExternalNode find(double[] pt); // find point in subtree
+
+		abstract Node insert(double[] pt, V value); // insert point into subtree
+
+		abstract Node delete(double[] pt) throws Exception; // delete point from subtree
+
+		abstract Node rebalance(double[] pt); // find scapegoat and rebalance tree
+
+		abstract void entryList(List<ExternalNode> list); // external nodes of the subtree
+
+		abstract String debugPrint(String prefix); // print for debugging
+
+		abstract void nearestNeighbors(KnnSearch search); // k nearest neighbors of search.q
+
+		abstract void rangeSearch(double[] low, double[] high, List<V> list); // points in box
+
+		abstract void rangeSearch(double[] center, double radius2, List<V> list); // points in ball
+
+		abstract double min(int d); // bounding box of the points in the subtree
+
+		abstract double max(int d);
+
+		// squared distance from q to the bounding box of this subtree
+		double boxDistance2(double[] q) {
+			double sum = 0;
+			for (int d = 0; d < dims; d++) {
+				double delta = Math.max(0, Math.max(min(d) - q[d], q[d] - max(d)));
+				sum += delta * delta;
+			}
+			return sum;
+		}
+
+		// squared distance from q to the farthest corner of the bounding box
+		double boxFarDistance2(double[] q) {
+			double sum = 0;
+			for (int d = 0; d < dims; d++) {
+				double delta = Math.max(q[d] - min(d), max(d) - q[d]);
+				sum += delta * delta;
+			}
+			return sum;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Internal node
+	// -----------------------------------------------------------------
+
+	private class InternalNode extends Node {
+
+		final double[] splitter; // coordinates used for splitting
+		int size; // node size (number of external descendants)
+		int height; // node height (max number of edges to external)
+		Node left; // children
+		Node right;
+		final int cutDim;
+		final double[] min, max; // tight bounding box of the points in the subtree
+
+		InternalNode(double[] splitter, Node left, Node right, int cutDim) {
+			super(false);
+			this.splitter = splitter;
+			this.left = left;
+			this.right = right;
+			this.cutDim = cutDim;
+			min = new double[dims];
+			max = new double[dims];
+
+			updateSizeAndHeight();
+		}
+
+		ExternalNode find(double[] pt) {
+			if (compare(pt, splitter, cutDim) <= 0) {
+				return left.find(pt);
+			} else {
+				return right.find(pt);
+			}
+		}
+
+		Node insert(double[] pt, V value) {
+			if (compare(pt, splitter, cutDim) <= 0) { // pt is less or equal
+				left = left.insert(pt, value);
+			} else { // pt is larger
+				right = right.insert(pt, value);
+			}
+			updateSizeAndHeight(); // update this node's information
+			return this;
+		}
+
+		Node rebalance(double[] pt) {
+			Node child = (compare(pt, splitter, cutDim) <= 0) ? left : right;
+			if (2 * getSize(this) < 3 * getSize(child)) { // too unbalanced?
+				return rebuild(this); // this is the scapegoat
+			} else { // balance is okay
+				if (child == left) {
+					left = left.rebalance(pt); // continue the search
+				} else {
+					right = right.rebalance(pt);
+				}
+				updateSizeAndHeight(); // update this node's information
+				return this;
+			}
+		}
+
+		Node delete(double[] pt) throws Exception {
+			if (compare(pt, splitter, cutDim) <= 0) { // delete from left
+				left = left.delete(pt);
+				if (left == null) {
+					return right; // subtree gone, return sibling
+				}
+			} else { // delete from right
+				right = right.delete(pt);
+				if (right == null) {
+					return left; // subtree gone, return sibling
+				}
+			}
+			updateSizeAndHeight(); // update this node's information
+			return this;
+		}
+
+		// also refreshes the bounding box, which is the union of the children's boxes
+		void updateSizeAndHeight() {
+			size = getSize(left) + getSize(right);
+			height = 1 + Math.max(getHeight(left), getHeight(right));
+			for (int d = 0; d < dims; d++) {
+				min[d] = Math.min(left.min(d), right.min(d));
+				max[d] = Math.max(left.max(d), right.max(d));
+			}
+		}
+
+		void entryList(List<ExternalNode> list) {
+			left.entryList(list);
+			right.entryList(list);
+		}
+
+		String debugPrint(String prefix) {
+			return left.debugPrint(prefix + "| ") + System.lineSeparator() + prefix + toString()
+					+ System.lineSeparator() + right.debugPrint(prefix + "| ");
+		}
+
+		public String toString() {
+			return cutDim + "- " + "(" + Arrays.toString(splitter) + " ht:" + height + " sz:" + size + ")";
+		}
+
+		double min(int d) {
+			return min[d];
+		}
+
+		double max(int d) {
+			return max[d];
+		}
+
+		// visit the child whose box is closer first, and skip a child whose box is
+		// no closer than the k-th best point found so far
+		void nearestNeighbors(KnnSearch search) {
+			double leftDist = left.boxDistance2(search.q);
+			double rightDist = right.boxDistance2(search.q);
+
+			if (leftDist <= rightDist) {
+				if (leftDist < search.bound())
+					left.nearestNeighbors(search);
+				if (rightDist < search.bound())
+					right.nearestNeighbors(search);
+			} else {
+				if (rightDist < search.bound())
+					right.nearestNeighbors(search);
+				if (leftDist < search.bound())
+					left.nearestNeighbors(search);
+			}
+		}
+
+		void rangeSearch(double[] low, double[] high, List<V> list) {
+			boolean contained = true;
+			for (int d = 0; d < dims; d++) {
+				if (max[d] < low[d] || min[d] > high[d])
+					return; // disjoint
+				contained &= min[d] >= low[d] && max[d] <= high[d];
+			}
+			if (contained) {
+				values(this, list);
+			} else {
+				left.rangeSearch(low, high, list);
+				right.rangeSearch(low, high, list);
+			}
+		}
+
+		void rangeSearch(double[] center, double radius2, List<V> list) {
+			if (boxDistance2(center) > radius2) {
+				return; // disjoint
+			} else if (boxFarDistance2(center) <= radius2) {
+				values(this, list); // fully contained
+			} else {
+				left.rangeSearch(center, radius2, list);
+				right.rangeSearch(center, radius2, list);
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// External node
+	// -----------------------------------------------------------------
+
+	private class ExternalNode extends Node {
+
+		final double[] point; // coordinates of the point
+		final V value; // the associated value
+
+		ExternalNode(double[] point, V value) {
+			super(true);
+			this.point = point;
+			this.value = value;
+		}
+
+		ExternalNode find(double[] pt) {
+			if (Arrays.equals(pt, point))
+				return this;
+			else
+				return null;
+		}
+
+		// replace this leaf by an internal node over this point and pt, split along
+		// the longest side of their box, ties broken in favor of the lower dimension
+		Node insert(double[] pt, V value) {
+			int cutDim = 0;
+			for (int d = 1; d < dims; d++) {
+				if (Math.abs(pt[d] - point[d]) > Math.abs(pt[cutDim] - point[cutDim]))
+					cutDim = d;
+			}
+
+			if (DEBUG) {
+				System.out.printf("Inserting External %s next to %s cutDim: %d\n", Arrays.toString(pt), toString(),
+						cutDim);
+			}
+
+			if (compare(pt, point, cutDim) <= 0) { // pt is less or equal, so it is the splitter
+				return new InternalNode(pt, new ExternalNode(pt, value), this, cutDim);
+			} else {
+				return new InternalNode(point, this, new ExternalNode(pt, value), cutDim);
+			}
+		}
+
+		Node rebalance(double[] pt) {
+			assert (false); // the scapegoat is always above the new leaf
+			return this;
+		}
+
+		Node delete(double[] pt) throws Exception {
+			if (Arrays.equals(pt, point)) { // found it
+				return null;
+			} else {
+				throw new Exception("pointDoesNotExist");
+			}
+		}
+
+		void entryList(List<ExternalNode> list) {
+			list.add(this);
+		}
+
+		String debugPrint(String prefix) {
+			return prefix + toString();
+		}
+
+		public String toString() {
+			return "[" + Arrays.toString(point) + " " + value + "]";
+		}
+
+		double min(int d) {
+			return point[d];
+		}
+
+		double max(int d) {
+			return point[d];
+		}
+
+		void nearestNeighbors(KnnSearch search) {
+			search.offer(this, boxDistance2(search.q));
+		}
+
+		void rangeSearch(double[] low, double[] high, List<V> list) {
+			for (int d = 0; d < dims; d++) {
+				if (point[d] < low[d] || point[d] > high[d])
+					return;
+			}
+			list.add(value);
+		}
+
+		void rangeSearch(double[] center, double radius2, List<V> list) {
+			if (boxDistance2(center) <= radius2)
+				list.add(value);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// k nearest neighbor search state
+	// -----------------------------------------------------------------
+
+	/*
+	 * The k closest points found so far, kept in a max-heap on squared distance
+	 * (parallel arrays, so distances are never boxed). Until k points are found
+	 * the pruning bound is infinite.
+	 */
+	private class KnnSearch {
+		final double[] q; // query point
+		final Object[] heap; // external nodes, heap[0] is the farthest of the current k
+		final double[] dist2; // squared distances, in heap order
+		int count; // number of points in the heap
+
+		KnnSearch(double[] q, int k) {
+			this.q = q;
+			heap = new Object[k];
+			dist2 = new double[k];
+		}
+
+		double bound() {
+			return (count < heap.length) ? Double.POSITIVE_INFINITY : dist2[0];
+		}
+
+		void offer(ExternalNode p, double d) {
+			if (count < heap.length) { // sift up from the new slot
+				int i = count++;
+				while (i > 0 && dist2[(i - 1) / 2] < d) {
+					heap[i] = heap[(i - 1) / 2];
+					dist2[i] = dist2[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				heap[i] = p;
+				dist2[i] = d;
+			} else if (d < dist2[0]) { // replace the farthest
+				siftDown(p, d);
+			}
+		}
+
+		// put (p, d) at the root and restore the heap order
+		void siftDown(Object p, double d) {
+			int i = 0;
+			while (2 * i + 1 < count) {
+				int c = 2 * i + 1;
+				if (c + 1 < count && dist2[c + 1] > dist2[c])
+					c++;
+				if (dist2[c] <= d)
+					break;
+				heap[i] = heap[c];
+				dist2[i] = dist2[c];
+				i = c;
+			}
+			heap[i] = p;
+			dist2[i] = d;
+		}
+
+		// values from closest to farthest; empties the heap
+		@SuppressWarnings("unchecked")
+		List<V> result() {
+			int n = count;
+			ArrayList<V> list = new ArrayList<V>(Collections.nCopies(n, (V) null));
+			while (count > 0) {
+				list.set(count - 1, ((ExternalNode) heap[0]).value); // farthest goes last
+				count--;
+				if (count > 0)
+					siftDown(heap[count], dist2[count]);
+				heap[count] = null;
+			}
+			return list;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Tree utilities
+	// -----------------------------------------------------------------
+
+	// lexicographic comparison starting at dimension first and wrapping around
+	int compare(double[] a, double[] b, int first) {
+		for (int i = 0; i < dims; i++) {
+			int d = (first + i) % dims;
+			int c = Double.compare(a[d], b[d]);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	int getSize(Node p) {
+		if (p.isExternal)
+			return 1;
+		else
+			return ((InternalNode) p).size;
+	}
+
+	int getHeight(Node p) {
+		if (p.isExternal)
+			return 0;
+		else
+			return ((InternalNode) p).height;
+	}
+
+	// log_{3/2} m, the height bound for a tree of m items
+	int maxAllowedHeight(int m) {
+		return (int) (Math.log(m) / Math.log((double) BALANCE_DENOM / (double) BALANCE_NUM));
+	}
+
+	// values of the points in subtree p
+	void values(Node p, List<V> list) {
+		if (p.isExternal) {
+			list.add(((ExternalNode) p).value);
+		} else {
+			values(((InternalNode) p).left, list);
+			values(((InternalNode) p).right, list);
+		}
+	}
+
+	// the external nodes are reused, only the internal nodes are rebuilt
+	Node rebuild(Node p) {
+		if (DEBUG) {
+			System.out.println("KD tree: Rebuilding subtree rooted at " + p + ". Subtree before rebuild:"
+					+ System.lineSeparator() + p.debugPrint(".."));
+		}
+		if (p.isExternal) {
+			return p; // external - nothing to do
+		}
+		ArrayList<ExternalNode> list = new ArrayList<ExternalNode>();
+		p.entryList(list);
+		return buildTreeRebalance(list);
+	}
+
+	// Balance the tree
+	Node buildTreeRebalance(List<ExternalNode> list) {
+		int k = list.size();
+		if (k == 0) { // no points at all
+			return null;
+		} else if (k == 1) { // a single point
+			return list.get(0);
+		} else {
+			// smallest box containing the points, longest side is the cut dimension
+			int cutDim = 0;
+			double longest = -1;
+			for (int d = 0; d < dims; d++) {
+				double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < k; i++) {
+					double c = list.get(i).point[d];
+					lo = Math.min(lo, c);
+					hi = Math.max(hi, c);
+				}
+				if (hi - lo > longest) {
+					longest = hi - lo;
+					cutDim = d;
+				}
+			}
+
+			final int first = cutDim;
+			list.sort((a, b) -> compare(a.point, b.point, first));
+
+			int m = (int) Math.ceil((float) k / 2); // size of left subtree
+			double[] splitter = list.get(m - 1).point; // splitter value
+
+			if (DEBUG)
+				System.out.println("splitter " + Arrays.toString(splitter) + " cutdim " + cutDim);
+
+			// recursively build left and right subtrees
+			Node left = buildTreeRebalance(list.subList(0, m));
+			Node right = buildTreeRebalance(list.subList(m, k));
+
+			// combine the lists under median (median goes into left subtree)
+			return new InternalNode(splitter, left, right, cutDim);
+		}
+	}
+
+	void checkDimensions(double[] pt) {
+		if (pt.length != dims)
+			throw new IllegalArgumentException("expected " + dims + " coordinates, got " + pt.length);
+	}
+
+	// -----------------------------------------------------------------
+	// Private member data
+	// -----------------------------------------------------------------
+
+	private Node root = null; // root of the tree
+	private final int dims; // number of coordinates per point
+	private int nItems; // number of items (equals getSize(root))
+	private int maxItems; // upper bound on the number of items
+
+	// -----------------------------------------------------------------
+	// Public members
+	// -----------------------------------------------------------------
+
+	public SGKDTreeND(int dims) {
+		if (dims < 1)
+			throw new IllegalArgumentException("dimension must be positive");
+		this.dims = dims;
+		maxItems = nItems = 0;
+	}
+
+	public int dimensions() {
+		return dims;
+	}
+
+	public int size() {
+		return nItems;
+	}
+
+	// value stored at pt, or null if there is no such point
+	public V find(double[] pt) {
+		checkDimensions(pt);
+		if (root == null) {
+			return null;
+		} else {
+			ExternalNode p = root.find(pt);
+			return (p == null) ? null : p.value;
+		}
+	}
+
+	// the coordinates are copied, so the caller may reuse pt
+	public void insert(double[] pt, V value) {
+		checkDimensions(pt);
+		pt = pt.clone();
+		if (root == null) {
+			root = new ExternalNode(pt, value);
+		} else {
+			root = root.insert(pt, value);
+		}
+		nItems++;
+		maxItems++;
+		if (getHeight(root) > maxAllowedHeight(maxItems)) {
+			root = root.rebalance(pt);
+		}
+		if (DEBUG) {
+			System.out.println("KD tree: After insertion of " + Arrays.toString(pt) + System.lineSeparator()
+					+ debugPrint("  "));
+		}
+	}
+
+	public void delete(double[] pt) throws Exception {
+		checkDimensions(pt);
+		if (root == null) {
+			throw new Exception("pointDoesNotExist");
+		}
+		root = root.delete(pt);
+		nItems--;
+		if (2 * nItems < maxItems) {
+			if (root != null)
+				root = rebuild(root);
+			maxItems = nItems;
+		}
+	}
+
+	public void clear() {
+		root = null;
+		maxItems = nItems = 0;
+	}
+
+	// values of the k points closest to q, closest first
+	public List<V> nearestNeighbors(double[] q, int k) {
+		checkDimensions(q);
+		if (k <= 0 || root == null)
+			return new ArrayList<V>();
+		KnnSearch search = new KnnSearch(q, Math.min(k, nItems));
+		root.nearestNeighbors(search);
+		return search.result();
+	}
+
+	public V nearestNeighbor(double[] q) {
+		List<V> result = nearestNeighbors(q, 1);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	// values of the points p with low[d] <= p[d] <= high[d] in every dimension
+	public List<V> rangeSearch(double[] low, double[] high) {
+		checkDimensions(low);
+		checkDimensions(high);
+		ArrayList<V> list = new ArrayList<V>();
+		if (root != null)
+			root.rangeSearch(low, high, list);
+		return list;
+	}
+
+	// values of the points within radius of center
+	public List<V> rangeSearch(double[] center, double radius) {
+		checkDimensions(center);
+		ArrayList<V> list = new ArrayList<V>();
+		if (root != null)
+			root.rangeSearch(center, radius * radius, list);
+		return list;
+	}
+
+	public List<V> values() {
+		ArrayList<V> list = new ArrayList<V>();
+		if (root != null)
+			values(root, list);
+		return list;
+	}
+
+	public int height() {
+		return (root == null) ? 0 : getHeight(root);
+	}
+
+	public String debugPrint(String prefix) {
+		if (root != null)
+			return root.debugPrint(prefix);
+		else
+			return new String();
+	}
+}
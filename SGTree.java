@@ -1,6 +1,12 @@
 package cmsc420.meeshquest.part1;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -60,6 +66,7 @@ public class SGTree {
 		Node left, right, parent;
 		int nodeSize, nodeHeight; // nodeSize is number of external nodes in subtree
 		String tag;
+		byte[] xml; // cached preorder XML of the subtree, null when stale
 
 		private Node(City key) {
 			this.key = key;
@@ -69,8 +76,58 @@ public class SGTree {
 		}
 	}
 
+	// An incremental rebuild of target: the same subtree that rebuild and
+	// rebuildExternalNode would make, built from new nodes a few at a time
+	// while target keeps serving. Keys inserted or deleted below target
+	// meanwhile are logged and applied to the copy before it replaces target.
+	private class RebuildJob {
+		final Node target;
+		final ArrayList<Node> stack = new ArrayList<Node>(); // in-order walk of target
+		final ArrayList<City> keys = new ArrayList<City>(); // its keys, in order
+		final ArrayList<Slot> slots = new ArrayList<Slot>(); // subtrees of the copy still to make
+		final ArrayList<LoggedWrite> writes = new ArrayList<LoggedWrite>(); // writes below target
+		int replayed; // of those, applied to the copy so far
+		Node copy; // root of the copy
+
+		private RebuildJob(Node target) {
+			this.target = target;
+			if (target != null) // null for a bulk load, which fills in keys itself
+				stack.add(target);
+		}
+	}
+
+	private class LoggedWrite {
+		final City key; // key inserted or deleted
+		final boolean insert; // insert or delete?
+
+		private LoggedWrite(City key, boolean insert) {
+			this.key = key;
+			this.insert = insert;
+		}
+	}
+
+	private class Slot { // keys[i .. i + k) go below parent
+		final int i, k;
+		final Node parent;
+		final boolean left;
+
+		private Slot(int i, int k, Node parent, boolean left) {
+			this.i = i;
+			this.k = k;
+			this.parent = parent;
+			this.left = left;
+		}
+	}
+
 	Node root;
 	int n, m, height;
+	int printCacheLimit = 256; // largest subtree whose XML fragment is cached
+	int rebuildWork; // nodes of an incremental rebuild done per insert, 0 for inline rebuilds
+	int rebuildThreshold; // smallest scapegoat rebuilt incrementally
+	private final int HEIGHT_SLACK = 8; // levels over the bound before the pending rebuilds are finished
+	private final ArrayList<RebuildJob> jobs = new ArrayList<RebuildJob>(); // incremental rebuilds in progress, outer first
+	private final ArrayList<Node> path = new ArrayList<Node>(); // internal nodes on the last insert path
+	LatencyRecorder latency; // null unless recording
 
 	/* Constructor */
 	public SGTree() {
@@ -80,189 +137,320 @@ public class SGTree {
 		height = 0;
 	}
 
+	public int size() {
+		return n;
+	}
+
+	// edges on the longest path from the root
+	public int getHeight() {
+		return height;
+	}
+
+	// print the whole tree in preorder under rootElt
+	public void printXML(Document doc, Element rootElt) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		preOrderXML(root, doc, rootElt);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.PRINT, start);
+	}
+
+	// Only the search path of key changes, so only its parents, sizes and
+	// heights are updated (see insertPath), not every node of the tree.
 	public void insert(City key) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		invalidatePath(key);
 		n++;
 		m++;
-		root = insertRecursive(root, null, key);
-		fixParents();
-		updateAllNodeAttribute();
-		height = getHeight(root) - 1;
+		root = insertPath(root, key);
+		for (RebuildJob j : jobs) {
+			if (path.contains(j.target))
+				j.writes.add(new LoggedWrite(key, true)); // replayed into the copy
+		}
+		height = root.nodeHeight - 1;
+		if (!jobs.isEmpty() && height > Math.log(m) / (Math.log(3) - Math.log(2)) + HEIGHT_SLACK)
+			finishRebuild(); // the inserts have outrun the pending rebuilds
 
 		if (height > Math.log(m) / (Math.log(3) - Math.log(2))) {
-			Node scapeGoatNode = searchCandidateScapeGoat(root, key);
-			Node[] arr = rebuild(scapeGoatNode);
-			rebuildExternalNode(arr);
-			fixParents();
-			updateAllNodeAttribute();
-			height = getHeight(root) - 1;
+			Node scapeGoatNode = searchCandidateScapeGoat(key);
+			Node subtree = null;
+			if (scapeGoatNode == null) {
+				// left to the pending incremental rebuilds
+			} else if (rebuildWork > 0 && scapeGoatNode.nodeSize >= rebuildThreshold) {
+				jobs.add(new RebuildJob(scapeGoatNode)); // rebuilt over the next inserts
+			} else if (enclosingJob(scapeGoatNode) != null) {
+				// inside a pending rebuild, whose walk must not see nodes change:
+				// build the same subtree from new nodes instead
+				long rebuildStart = (recorder == null) ? 0 : System.nanoTime();
+				subtree = rebuildCopy(scapeGoatNode);
+				replace(scapeGoatNode, subtree);
+				if (recorder != null)
+					recorder.record(LatencyRecorder.Operation.REBUILD, rebuildStart);
+			} else {
+				long rebuildStart = (recorder == null) ? 0 : System.nanoTime();
+				Node[] arr = rebuild(scapeGoatNode);
+				rebuildExternalNode(arr);
+				subtree = arr[(arr.length + 1) / 2 - 1]; // root of the rebuilt subtree
+				updateSubtree(subtree);
+				if (recorder != null)
+					recorder.record(LatencyRecorder.Operation.REBUILD, rebuildStart);
+			}
+			if (subtree != null) {
+				updateHeightsAbove(root, subtree, key);
+				height = root.nodeHeight - 1;
+			}
 		}
+		advanceRebuilds();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.INSERT, start);
 	}
 
-	private Node insertRecursive(Node x, Node parent, City key) {
+	// The first node u on key's (last insert) path with size(u.child) / size(u)
+	// > 2/3, as searchCandidateScapeGoat finds it from the stored sizes, except
+	// that while incremental rebuilds are pending, large nodes that one of them
+	// will replace or that contain one are passed over (null if nothing else
+	// is found).
+	private Node searchCandidateScapeGoat(City key) {
+		for (int i = 0; i < path.size(); i++) {
+			Node u = path.get(i);
+			if (2 * u.nodeSize < 3 * size(lessOrEqual(key, u.key) ? u.left : u.right) && !deferred(u))
+				return u;
+		}
+		return null;
+	}
+
+	// Is u left alone until the pending rebuilds are done? A rebuild nested in
+	// another one must be at most half its size, so few are pending at once.
+	// A target, or a node above one, is always left alone, even once deletes
+	// have made it small, since rebuilding it inline would move nodes that
+	// the pending rebuild is still walking.
+	private boolean deferred(Node u) {
+		if (jobs.isEmpty())
+			return false;
+		for (RebuildJob j : jobs) {
+			if (j.target == u || below(j.target, u))
+				return true;
+		}
+		if (rebuildWork == 0 || u.nodeSize < rebuildThreshold)
+			return false;
+		RebuildJob enclosing = enclosingJob(u);
+		return enclosing != null && 2 * u.nodeSize > enclosing.target.nodeSize;
+	}
+
+	// the smallest pending rebuild whose target contains node
+	private RebuildJob enclosingJob(Node node) {
+		RebuildJob enclosing = null;
+		for (RebuildJob j : jobs) {
+			if (below(node, j.target) && (enclosing == null || j.target.nodeSize < enclosing.target.nodeSize))
+				enclosing = j;
+		}
+		return enclosing;
+	}
+
+	// node is a proper descendant of top
+	private static boolean below(Node node, Node top) {
+		if (node == top || top.tag.equals("external"))
+			return false;
+		Node x = top;
+		while (x != null && x != node && x.tag.equals("internal"))
+			x = lessOrEqual(node.key, x.key) ? x.left : x.right;
+		return x == node;
+	}
+
+	// Add key to the subtree at top: the leaf key reaches becomes an internal
+	// node split at the smaller of the two keys, with both as leaves below it.
+	// Then fix the sizes and heights on the way up. The internal nodes passed
+	// are left in path. Returns the new root of the subtree (a leaf at top
+	// gets a parent).
+	private Node insertPath(Node top, City key) {
+		path.clear();
+		Node parent = (top == null) ? null : top.parent, x = top;
+		while (x != null && x.tag.equals("internal")) {
+			path.add(x);
+			parent = x;
+			x = lessOrEqual(key, x.key) ? x.left : x.right;
+		}
+
+		Node added;
 		if (x == null) {
-			x = new Node(key);
-			x.tag = "external";
-			x.parent = parent;
-			return x;
-		}
-		if (x.tag == "internal") {
-			if (key.getX() < x.key.getX() || ((key.getX() == x.key.getX()) && (key.getY() <= x.key.getY()))) {
-				x.left = insertRecursive(x.left, x, key);
+			added = new Node(key);
+			added.tag = "external";
+			added.nodeSize = added.nodeHeight = 1;
+		} else {
+			Node externalNode = new Node(key);
+			externalNode.tag = "external";
+			externalNode.nodeSize = externalNode.nodeHeight = 1;
+			if (lessOrEqual(key, x.key)) {
+				added = new Node(key);
+				added.left = externalNode;
+				added.right = x;
 			} else {
-				x.right = insertRecursive(x.right, x, key);
+				added = new Node(x.key);
+				added.left = x;
+				added.right = externalNode;
 			}
-		} else {
-			if (key.getX() < x.key.getX() || ((key.getX() == x.key.getX()) && (key.getY() <= x.key.getY()))) {
-
-				Node internalNode = new Node(key);
-				internalNode.tag = "internal";
-				Node externalNode = new Node(key);
-				externalNode.tag = "external";
-
-				if (x.parent != null) {
-					if (x.parent.left.key.getName().compareTo(x.key.getName()) == 0) {
-						x.parent.left = internalNode;
-					} else {
-						x.parent.right = internalNode;
-					}
-				}
+			added.tag = "internal";
+			added.nodeSize = added.nodeHeight = 2;
+			externalNode.parent = added;
+			x.parent = added;
+		}
+		added.parent = parent;
 
-				internalNode.left = externalNode;
-				internalNode.right = x;
+		if (x == top) {
+			return added;
+		} else if (parent.left == x) {
+			parent.left = added;
+		} else {
+			parent.right = added;
+		}
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node node = path.get(i);
+			node.nodeSize++;
+			node.nodeHeight = 1 + Math.max(height(node.left), height(node.right));
+		}
+		return top;
+	}
 
-				externalNode.parent = internalNode;
-				x.parent = internalNode;
+	// set the parents, sizes and heights below node (after a rebuild)
+	private void updateSubtree(Node node) {
+		if (node.left != null) {
+			node.left.parent = node;
+			updateSubtree(node.left);
+		}
+		if (node.right != null) {
+			node.right.parent = node;
+			updateSubtree(node.right);
+		}
+		if (node.tag.equals("external")) {
+			node.nodeSize = 1;
+		} else {
+			node.nodeSize = size(node.left) + size(node.right);
+		}
+		node.nodeHeight = 1 + Math.max(height(node.left), height(node.right));
+	}
 
-				return internalNode;
-			} else {
-				Node internalNode = new Node(x.key);
-				internalNode.tag = "internal";
-				Node externalNode = new Node(key);
-				externalNode.tag = "external";
-
-				if (x.parent != null) {
-					if (x.parent.left.key.getName().compareTo(x.key.getName()) == 0) {
-						x.parent.left = internalNode;
-					} else {
-						x.parent.right = internalNode;
-					}
-				}
+	// recompute the heights above node, which is on key's search path below
+	// top, and drop their print fragments
+	private void updateHeightsAbove(Node top, Node node, City key) {
+		path.clear();
+		for (Node x = top; x != null && x != node; x = lessOrEqual(key, x.key) ? x.left : x.right)
+			path.add(x);
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node x = path.get(i);
+			x.nodeHeight = 1 + Math.max(height(x.left), height(x.right));
+			x.xml = null;
+		}
+	}
 
-				internalNode.left = x;
-				internalNode.right = externalNode;
+	// stored size and height, 0 for a missing child
+	private static int size(Node node) {
+		return (node == null) ? 0 : node.nodeSize;
+	}
 
-				externalNode.parent = internalNode;
-				x.parent = internalNode;
+	private static int height(Node node) {
+		return (node == null) ? 0 : node.nodeHeight;
+	}
 
-				return internalNode;
-			}
-		}
-		return x;
+	// key goes left of (or is) the splitter
+	private static boolean lessOrEqual(City key, City splitter) {
+		return key.getX() < splitter.getX() || ((key.getX() == splitter.getX()) && (key.getY() <= splitter.getY()));
 	}
 
+	// Only key's search path changes: the leaf goes, its parent is replaced
+	// by the sibling (see deletePath), and the sizes and heights on the path
+	// are updated, not every node of the tree. Pending incremental rebuilds
+	// whose target contains key log the delete for their copy, as insert
+	// logs its keys, and one whose target is the parent that goes is dropped.
+	// The whole-tree rebuild once 2n < m is itself incremental when
+	// incremental rebuilds are on and the tree is at least the threshold.
 	public void delete(City key) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		Node leaf = search(root, key);
+		if (leaf == null)
+			return;
+		invalidatePath(key);
 		n--;
 		if (n == 0) {
 			n = m = 0;
 			root = null;
-		}
-		else if (n == 1) {
-			root = deleteRecursive(root, key);
-			fixParents();
-			updateAllNodeAttribute();
-			height = getHeight(root) - 1;
-			m = n;
-		}
-		else {
-			Node a = search(root, key).parent;
-			root = deleteRecursive(root, key);
-			if (a != null && a.parent != null)
-				root = deleteRecursiveInternal(root, a);
-			fixParents();
-			updateAllNodeAttribute();
-			height = getHeight(root) - 1;
-			
-			if (2 * n < m) {
+			jobs.clear();
+		} else {
+			Node parent = leaf.parent;
+			root = deletePath(root, key, n > 1);
+			boolean spliced = n > 1 && parent != root;
+			for (int i = 0; i < jobs.size(); i++) {
+				RebuildJob j = jobs.get(i);
+				if (spliced && j.target == parent)
+					jobs.remove(i--); // its target left the tree
+				else if (j.target == parent || path.contains(j.target))
+					j.writes.add(new LoggedWrite(leaf.key, false));
+			}
+			height = root.nodeHeight - 1;
+			if (n == 1) {
+				m = n;
+			} else if (2 * n < m && rebuildWork > 0 && n >= rebuildThreshold) {
+				m = n;
+				jobs.clear(); // all inside the root, which is rebuilt anyway
+				jobs.add(new RebuildJob(root)); // rebuilt over the next writes
+			} else if (2 * n < m) {
+				long rebuildStart = (recorder == null) ? 0 : System.nanoTime();
 				m = n;
+				jobs.clear(); // their nodes are reused below
 				Node[] arr = rebuild(root);
 				rebuildExternalNode(arr);
-				fixParents();
-				updateAllNodeAttribute();
-				height = getHeight(root) - 1;
+				updateSubtree(root);
+				height = root.nodeHeight - 1;
+				if (recorder != null)
+					recorder.record(LatencyRecorder.Operation.REBUILD, rebuildStart);
 			}
 		}
+		advanceRebuilds();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.DELETE, start);
 	}
 
-	private Node deleteRecursive(Node root, City key) {
-		if (root == null)
-			return root;
-
-		if (root.tag.compareTo("internal") == 0 && (key.getX() < root.key.getX()
-				|| ((key.getX() == root.key.getX()) && (key.getY() <= root.key.getY()))))
-			root.left = deleteRecursive(root.left, key);
-		else if (root.tag.compareTo("internal") == 0 && (key.getX() > root.key.getX()
-				|| ((key.getX() == root.key.getX()) && (key.getY() > root.key.getY()))))
-			root.right = deleteRecursive(root.right, key);
-		else {
-			if (getHeight(root) == 1) {
-				root = null;
-			}
-			else if (getHeight(root) == 2) {
-				if (root.parent.left == root) {
-					root = null;
-				}
-				else {
-					root = root.parent.left;
-					root.tag = "external";
-				}
-			}
-			else {
-				if (root.parent.right == root) {
-					if (root.parent.parent.left == root.parent) {
-						root.parent.parent.left = root.parent.left;
-						root = null;
-					} else if (root.parent.parent.right == root.parent) {
-						root.parent.parent.right = root.parent.left;
-						root = null;
-					}
-				} else if (root.parent.left == root) {
-					if (root.parent.parent.left == root.parent) {
-						root.parent.parent.left = root.parent.right;
-						root = null;
-					} else if (root.parent.parent.right == root.parent) {
-						root.parent.parent.right = root.parent.right;
-						root = null;
-					}
-				}
-			}
+	// Remove the leaf of key from the subtree at top and, if splice is set,
+	// put its sibling in place of their parent. The root of the tree keeps
+	// the empty child either way, as delete has always left it (and delete
+	// does not splice when one key is left). Then fix the sizes and heights
+	// on the way up. The internal nodes still on the path are left in path.
+	// Returns the new root of the subtree (null if top was the leaf).
+	private Node deletePath(Node top, City key, boolean splice) {
+		path.clear();
+		Node x = top;
+		while (x != null && x.tag.equals("internal")) {
+			path.add(x);
+			x = lessOrEqual(key, x.key) ? x.left : x.right;
 		}
-		return root;
-	}
-
-	private Node deleteRecursiveInternal(Node root, Node node) {
-		if (root == null)
-			return root;
+		if (x == top)
+			return null;
 
-		if ((node.key.getX() < root.key.getX()
-				|| ((node.key.getX() == root.key.getX()) && (node.key.getY() < root.key.getY()))))
-			root.left = deleteRecursiveInternal(root.left, node);
-		else if ((node.key.getX() > root.key.getX()
-				|| ((node.key.getX() == root.key.getX()) && (node.key.getY() > root.key.getY()))))
-			root.right = deleteRecursiveInternal(root.right, node);
-		else {
-			if (root.parent.right == root) {
-				if (root.right == null) {
-					return root.left;
-				}
-				return root.right;
-			} else if (root.parent.left == root) {
-				if (root.right == null) {
-					return root.left;
-				}
-				return root.right;
-			}
+		Node parent = path.get(path.size() - 1);
+		if (parent.left == x)
+			parent.left = null;
+		else
+			parent.right = null;
+		x.parent = null;
+		if (splice && parent != root) {
+			path.remove(path.size() - 1);
+			Node sibling = (parent.right != null) ? parent.right : parent.left; // may be null too
+			if (sibling != null)
+				sibling.parent = parent.parent;
+			if (parent == top)
+				top = sibling;
+			else if (parent.parent.left == parent)
+				parent.parent.left = sibling;
+			else
+				parent.parent.right = sibling;
 		}
-		return root;
+		for (int i = path.size() - 1; i >= 0; i--) {
+			Node node = path.get(i);
+			node.nodeSize--;
+			node.nodeHeight = 1 + Math.max(height(node.left), height(node.right));
+		}
+		return top;
 	}
 
 	public void fixParents() {
@@ -304,6 +492,153 @@ public class SGTree {
 		return root;
 	}
 
+	// Rebuild scapegoats of at least threshold keys a few nodes per write
+	// instead of all at once: each insert or delete visits or creates work
+	// nodes of each pending rebuild (work >= 2, so that the copy takes in the
+	// writes logged meanwhile faster than they arrive). A rebuild of k keys
+	// then takes about 4k / work writes. Until it is swapped in, the old
+	// subtree answers and takes the writes and the tree may run above the
+	// height bound. The whole-tree rebuild a delete triggers (2n < m) is done
+	// the same way if the tree has at least threshold keys. A
+	// scapegoat inside a pending rebuild is rebuilt incrementally too if it
+	// has at most half its keys, so inserts in order are not left to pile up
+	// until the outer one is done; there are O(log(n / threshold)) such
+	// levels, and a write does O(log n + work) work per pending rebuild.
+	// Smaller scapegoats are still rebuilt inline. If the tree still gets
+	// HEIGHT_SLACK levels over the bound (keys in sorted order with a small
+	// work or threshold), the pending rebuilds are finished at once, which
+	// costs that insert the whole rebuild; a work of 16 and a threshold of
+	// 1024 keep sorted inserts clear of that. 0 goes back to inline rebuilds.
+	public void setIncrementalRebuild(int work, int threshold) {
+		finishRebuild();
+		rebuildWork = (work <= 0) ? 0 : Math.max(2, work);
+		rebuildThreshold = threshold;
+	}
+
+	public boolean isRebuildPending() {
+		return !jobs.isEmpty();
+	}
+
+	// complete the pending incremental rebuilds now; the outer ones replace
+	// the ones inside them
+	public void finishRebuild() {
+		while (!jobs.isEmpty()) {
+			RebuildJob j = jobs.get(0);
+			rebuildSteps(j, Integer.MAX_VALUE);
+			swapRebuild(j);
+		}
+	}
+
+	private void advanceRebuilds() {
+		for (int i = 0; i < jobs.size(); i++) {
+			RebuildJob j = jobs.get(i);
+			if (rebuildSteps(j, rebuildWork)) {
+				swapRebuild(j); // drops j and the later ones inside it
+				i--;
+			}
+		}
+	}
+
+	// the subtree that rebuild and rebuildExternalNode would make of node,
+	// from new nodes
+	private Node rebuildCopy(Node node) {
+		RebuildJob inline = new RebuildJob(node);
+		rebuildSteps(inline, Integer.MAX_VALUE);
+		return inline.copy;
+	}
+
+	// one node per step: walk target, make the copy, then apply the writes
+	// logged meanwhile; true once all are done
+	private boolean rebuildSteps(RebuildJob j, int steps) {
+		for (; steps > 0; steps--) {
+			if (!j.stack.isEmpty()) {
+				Node x = j.stack.remove(j.stack.size() - 1);
+				if (x.tag.equals("external")) {
+					j.keys.add(x.key);
+				} else {
+					if (x.right != null)
+						j.stack.add(x.right);
+					if (x.left != null)
+						j.stack.add(x.left);
+				}
+				if (j.stack.isEmpty() && !j.keys.isEmpty())
+					j.slots.add(new Slot(0, j.keys.size(), null, true));
+			} else if (!j.slots.isEmpty()) {
+				Slot slot = j.slots.remove(j.slots.size() - 1);
+				Node node;
+				if (slot.k == 1) {
+					node = new Node(j.keys.get(slot.i));
+					node.tag = "external";
+				} else { // as buildSubTree: the larger half on the left
+					int half = (slot.k + 1) / 2;
+					node = new Node(j.keys.get(slot.i + half - 1));
+					node.tag = "internal";
+					j.slots.add(new Slot(slot.i + half, slot.k - half, node, false));
+					j.slots.add(new Slot(slot.i, half, node, true));
+				}
+				node.nodeSize = slot.k;
+				node.nodeHeight = 1;
+				for (int k = slot.k; k > 1; k = (k + 1) / 2)
+					node.nodeHeight++;
+				node.parent = slot.parent;
+				if (slot.parent == null)
+					j.copy = node;
+				else if (slot.left)
+					slot.parent.left = node;
+				else
+					slot.parent.right = node;
+			} else if (j.replayed < j.writes.size()) {
+				LoggedWrite w = j.writes.get(j.replayed++);
+				Node found = search(j.copy, w.key);
+				if (w.insert && found == null)
+					replay(j, w.key);
+				else if (!w.insert && found != null && found.key == w.key) // the walk saw it
+					j.copy = deletePath(j.copy, w.key, true);
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// add key to the copy, rebuilding a scapegoat in it as insert does, so
+	// that keys inserted in order leave no long path behind
+	private void replay(RebuildJob j, City key) {
+		j.copy = insertPath(j.copy, key);
+		if (j.copy.nodeHeight - 1 > Math.log(j.copy.nodeSize) / (Math.log(3) - Math.log(2))) {
+			Node scapeGoatNode = searchCandidateScapeGoat(key);
+			if (scapeGoatNode == null)
+				return;
+			Node subtree = rebuildCopy(scapeGoatNode);
+			if (scapeGoatNode == j.copy)
+				j.copy = subtree;
+			else
+				replace(scapeGoatNode, subtree);
+			updateHeightsAbove(j.copy, subtree, key);
+		}
+	}
+
+	// replace the target of j by its copy and drop the rebuilds inside it
+	private void swapRebuild(RebuildJob j) {
+		jobs.remove(j);
+		replace(j.target, j.copy);
+		updateHeightsAbove(root, j.copy, j.target.key);
+		height = root.nodeHeight - 1;
+		jobs.removeIf(other -> below(other.target, j.target));
+	}
+
+	// put copy where node is
+	private void replace(Node node, Node copy) {
+		Node p = node.parent;
+		copy.parent = p;
+		if (p == null)
+			root = copy;
+		else if (p.left == node)
+			p.left = copy;
+		else
+			p.right = copy;
+	}
+
 	// rebuild tree for internal nodes
 	private Node[] rebuild(Node u) {
 		int k = getSize(u);
@@ -311,6 +646,8 @@ public class SGTree {
 
 		Node[] arr = new Node[k];
 		putExternalNodeToArray(u, arr, 0);
+		for (int i = 0; i < k; i++)
+			arr[i].xml = null; // these nodes become the new internal nodes
 
 		if (p == null) {
 			root = buildSubTree(arr, 0, k);
@@ -433,6 +770,113 @@ public class SGTree {
 		}
 	}
 
+	// The tree in preorder as UTF-8 XML bytes, the same elements preOrderXML
+	// adds to the DOM. Maximal subtrees of at most printCacheLimit external nodes
+	// keep their fragment between calls, so after a single insert or delete only
+	// the changed path is serialized again.
+	public byte[] printXML() {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		printXML(root, out);
+		byte[] bytes = out.toByteArray();
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.PRINT, start);
+		return bytes;
+	}
+
+	// 0 turns the print cache off
+	public void setPrintCacheLimit(int limit) {
+		printCacheLimit = limit;
+	}
+
+	private void printXML(Node node, ByteArrayOutputStream out) {
+		if (node == null) {
+			return;
+		} else if (node.nodeSize <= printCacheLimit) {
+			if (node.xml == null) {
+				ByteArrayOutputStream fragment = new ByteArrayOutputStream();
+				writeXML(node, fragment);
+				node.xml = fragment.toByteArray();
+			}
+			out.write(node.xml, 0, node.xml.length);
+		} else {
+			node.xml = null; // too large to keep
+			writeStartTag(node, out);
+			printXML(node.left, out);
+			printXML(node.right, out);
+			writeEndTag(node, out);
+		}
+	}
+
+	// uncached; fragments below node are covered by node's fragment from now on
+	private void writeXML(Node node, ByteArrayOutputStream out) {
+		if (node != null) {
+			node.xml = null;
+			writeStartTag(node, out);
+			writeXML(node.left, out);
+			writeXML(node.right, out);
+			writeEndTag(node, out);
+		}
+	}
+
+	private void writeStartTag(Node node, ByteArrayOutputStream out) {
+		writeASCII(out, "<" + node.tag);
+		writeAttribute(out, "name", node.key.getName());
+		writeAttribute(out, "x", Integer.toString(node.key.getX()));
+		writeAttribute(out, "y", Integer.toString(node.key.getY()));
+		writeASCII(out, (node.left == null && node.right == null) ? "/>" : ">");
+	}
+
+	private void writeEndTag(Node node, ByteArrayOutputStream out) {
+		if (node.left != null || node.right != null)
+			writeASCII(out, "</" + node.tag + ">");
+	}
+
+	private static void writeASCII(ByteArrayOutputStream out, String s) {
+		for (int i = 0; i < s.length(); i++)
+			out.write(s.charAt(i));
+	}
+
+	// key="value" with the value escaped and encoded as UTF-8
+	private static void writeAttribute(ByteArrayOutputStream out, String key, String value) {
+		StringBuilder escaped = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '&')
+				escaped.append("&amp;");
+			else if (c == '<')
+				escaped.append("&lt;");
+			else if (c == '>')
+				escaped.append("&gt;");
+			else if (c == '"')
+				escaped.append("&quot;");
+			else
+				escaped.append(c);
+		}
+		byte[] bytes = (" " + key + "=\"" + escaped + "\"").getBytes(StandardCharsets.UTF_8);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	// drop the cached fragments that a change at key can affect: the nodes on
+	// its search path and their children (a delete may retag the sibling)
+	private void invalidatePath(City key) {
+		Node node = root;
+		while (node != null) {
+			node.xml = null;
+			if (node.left != null)
+				node.left.xml = null;
+			if (node.right != null)
+				node.right.xml = null;
+			if (node.tag.equals("external"))
+				break;
+			if (key.getX() < node.key.getX() || ((key.getX() == node.key.getX()) && (key.getY() <= node.key.getY())))
+				node = node.left;
+			else
+				node = node.right;
+		}
+	}
+
 	public void inOrderXML(Node node, Document doc, Element rootElt) {
 		if (node != null) {
 			inOrderXML(node.left, doc, rootElt);
@@ -492,6 +936,168 @@ public class SGTree {
 		return search(root.right, key);
 	}
 
+	// the city stored at key's coordinates, or null
+	public City find(City key) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		Node node = search(root, key);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.FIND, start);
+		return (node == null) ? null : node.key;
+	}
+
+	// cities from low to high (inclusive) in (x, y) order
+	public ArrayList<City> rangeInOrder(City low, City high) {
+		LatencyRecorder recorder = latency;
+		long start = (recorder == null) ? 0 : System.nanoTime();
+		ArrayList<City> list = new ArrayList<City>();
+		rangeInOrder(root, low, high, list);
+		if (recorder != null)
+			recorder.record(LatencyRecorder.Operation.RANGE_SEARCH, start);
+		return list;
+	}
+
+	// Time insert, delete, find, rangeInOrder, printXML and rebuilds into
+	// recorder (see LatencyRecorder); null stops recording.
+	public void setLatencyRecorder(LatencyRecorder recorder) {
+		latency = recorder;
+	}
+
+	public LatencyRecorder getLatencyRecorder() {
+		return latency;
+	}
+
+	private void rangeInOrder(Node node, City low, City high, ArrayList<City> list) {
+		if (node == null) {
+			return;
+		} else if (node.tag.equals("external")) {
+			if (compare(low, node.key) <= 0 && compare(node.key, high) <= 0)
+				list.add(node.key);
+		} else {
+			if (compare(low, node.key) <= 0) // left holds keys up to the splitter
+				rangeInOrder(node.left, low, high, list);
+			if (compare(node.key, high) < 0)
+				rangeInOrder(node.right, low, high, list);
+		}
+	}
+
+	// lexicographic (x, y) order, the order of the tree
+	private static int compare(City a, City b) {
+		if (a.getX() != b.getX())
+			return Integer.compare(a.getX(), b.getX());
+		return Integer.compare(a.getY(), b.getY());
+	}
+
+	// -----------------------------------------------------------------
+	// Columnar export
+	// -----------------------------------------------------------------
+
+	// every city in (x, y) order
+	public ArrayList<City> entryList() {
+		ArrayList<City> list = new ArrayList<City>();
+		entryList(root, list);
+		return list;
+	}
+
+	private void entryList(Node node, ArrayList<City> list) {
+		if (node == null) {
+			return;
+		} else if (node.tag.equals("external")) {
+			list.add(node.key);
+		} else {
+			entryList(node.left, list);
+			entryList(node.right, list);
+		}
+	}
+
+	// Write every city in (x, y) order as a CityColumns stream and close out.
+	// The cities are the ones inOrderXML prints, colors and radii included.
+	public void exportColumns(OutputStream out) throws IOException {
+		CityColumns.Writer writer = new CityColumns.Writer(out);
+		exportColumns(root, writer);
+		writer.close();
+	}
+
+	private void exportColumns(Node node, CityColumns.Writer writer) throws IOException {
+		if (node == null) {
+			return;
+		} else if (node.tag.equals("external")) {
+			City c = node.key;
+			writer.add(c.getName(), c.getX(), c.getY(), c.getR(), c.getColor());
+		} else {
+			exportColumns(node.left, writer);
+			exportColumns(node.right, writer);
+		}
+	}
+
+	// replace the contents with the cities of a CityColumns stream (see
+	// bulkLoad) and close in
+	public void importColumns(InputStream in) throws IOException {
+		CityColumns.Reader reader = new CityColumns.Reader(in);
+		ArrayList<City> cities = new ArrayList<City>();
+		while (reader.next())
+			cities.add(new City(reader.getName(), reader.getX(), reader.getY(), reader.getR(), reader.getColor()));
+		reader.close();
+		bulkLoad(cities);
+	}
+
+	// Replace the contents with cities, which must have distinct coordinates,
+	// in O(n) if they are in (x, y) order (as exportColumns writes them) and
+	// O(n log n) otherwise. The tree is the one a rebuild of the root would
+	// make, perfectly balanced, instead of the n inserts and their rebuilds.
+	public void bulkLoad(List<City> cities) {
+		jobs.clear();
+		path.clear();
+		RebuildJob build = new RebuildJob(null);
+		build.keys.addAll(cities);
+		for (int i = 1; i < cities.size(); i++) {
+			if (compare(cities.get(i - 1), cities.get(i)) > 0) {
+				build.keys.sort(SGTree::compare);
+				break;
+			}
+		}
+		if (!build.keys.isEmpty())
+			build.slots.add(new Slot(0, build.keys.size(), null, true));
+		rebuildSteps(build, Integer.MAX_VALUE);
+		root = build.copy;
+		n = m = build.keys.size();
+		height = (root == null) ? 0 : root.nodeHeight - 1;
+	}
+
+	// Estimated memory of the tree (see MemoryReport), in one traversal. Every
+	// tag is one of the string constants "internal" and "external", so tags
+	// cost a reference per node plus the two constants. Wasted: the child
+	// links of external nodes, which are always null.
+	public MemoryReport memoryReport() {
+		long[] count = new long[4]; // internal nodes, external nodes, point bytes, print cache bytes
+		memoryReport(root, count);
+		long nodeBytes = (count[0] + count[1]) * NODE_BYTES;
+		long tagBytes = MemoryReport.stringBytes("internal") + MemoryReport.stringBytes("external");
+		long wasted = count[1] * 2 * MemoryReport.REFERENCE;
+		return new MemoryReport("SGTree", count[0], count[1], nodeBytes, count[2], tagBytes, 0, count[3], wasted);
+	}
+
+	// header, key, left, right, parent, tag, xml, outer instance, nodeSize, nodeHeight
+	private static final long NODE_BYTES = MemoryReport
+			.align(MemoryReport.HEADER + 7 * MemoryReport.REFERENCE + 2 * 4);
+	// header, x, y, r, name, color
+	private static final long CITY_BYTES = MemoryReport.align(MemoryReport.HEADER + 3 * 4 + 2 * MemoryReport.REFERENCE);
+
+	private void memoryReport(Node node, long[] count) {
+		if (node == null)
+			return;
+		if (node.tag.equals("external")) {
+			count[1]++;
+			count[2] += CITY_BYTES + MemoryReport.stringBytes(node.key.getName());
+		} else {
+			count[0]++;
+		}
+		if (node.xml != null)
+			count[3] += MemoryReport.align(MemoryReport.ARRAY_HEADER + node.xml.length);
+		memoryReport(node.left, count);
+		memoryReport(node.right, count);
+	}
+
 	// size of internal nodes + external nodes
 	public int totalNodes(Node node) {
 		if (node == null)
@@ -528,118 +1134,4 @@ public class SGTree {
 			displayR(sb, c + d, r + 2, d / 2, w, n.right, "\\ ");
 		}
 	}
-
-//	public static void main(String argv[]) {
-////      SGTree tree = new SGTree(); 
-////      tree.insert(new City("Edinburgh",100,500,0,""));
-////      tree.insert(new City("Lisbon",100,100,0,"")); 
-////      tree.insert(new City("Varna",100,800,0,"")); 
-////      tree.insert(new City("London",150,250,0,""));  
-////      tree.insert(new City("Prague",150,700,0,""));
-////      tree.insert(new City("Madrid",200,100,0,""));
-////      tree.insert(new City("Paris",250,300,0,""));
-////      tree.insert(new City("Copenhagen",250,500,0,""));
-////      tree.insert(new City("Marseilles",350,100,0,""));
-////      tree.insert(new City("Vienna",350,700,0,"orange"));
-////      tree.insert(new City("Amsterdam" ,400,300,0,"yellow"));
-////	  	tree.insert(new City("Munich" ,400,200,0,"green"));
-////	  	tree.insert(new City("Milan" ,500,50,0,"blue"));
-////	  	tree.insert(new City("Rome" ,500,450,0,"purple"));
-////	  	tree.insert(new City("Naples" ,450,650,0,"black"));
-////	  	tree.insert(new City("Geneva" ,300,200,0,"orange"));
-////	  	tree.insert(new City("Geneva_Duplicate",300 ,200,1,"black"));
-//
-////      tree.insert(new City("x13",13,0,0,"black"));
-////      System.out.println(tree.search(tree.root, new City("x15",15,0,0,"black")));
-////      tree.insert(new City("x15",15,0,0,"black"));
-////      tree.insert(new City("x17",17,0,0,"black"));
-////      tree.insert(new City("x12",12,0,0,"black"));
-////      tree.insert(new City("x20",20,0,0,"black"));
-////      tree.insert(new City("x09",9,0,0,"black"));
-////      tree.insert(new City("x02",2,0,0,"black"));
-////      tree.insert(new City("x07",7,0,0,"black"));
-////      tree.insert(new City("x01",1,0,0,"black"));
-////      tree.insert(new City("x14",14,0,0,"black"));
-////      tree.insert(new City("x16",16,0,0,"black"));
-////      tree.insert(new City("x00",0,0,0,"black"));
-////      tree.insert(new City("x04",4,0,0,"black"));
-////      tree.insert(new City("x05",5,0,0,"black"));
-//
-////      tree.insert(new City("13",13,0,0,"black"));
-////      tree.insert(new City("15",15,0,0,"black"));
-////      tree.insert(new City("17",17,0,0,"black"));
-////      tree.insert(new City("12",12,0,0,"black"));
-////      tree.insert(new City("20",20,0,0,"black"));
-////      tree.insert(new City("9",9,0,0,"black"));
-////      tree.insert(new City("2",2,0,0,"black"));
-////      tree.insert(new City("7",7,0,0,"black"));
-////      tree.insert(new City("1",1,0,0,"black"));
-////      tree.insert(new City("14",14,0,0,"black"));
-////      tree.insert(new City("16",16,0,0,"black"));
-////      tree.insert(new City("0",0,0,0,"black"));
-////      tree.insert(new City("4",4,0,0,"black"));
-////      tree.insert(new City("5",5,0,0,"black"));
-//
-////      tree.display();
-////      System.out.printf("total nodes %d\n", tree.totalNodes(tree.root));
-////      System.out.println("Preorder traversal of binary tree is "); 
-////      tree.traversePreOrder(); 
-////      System.out.println("");
-////      
-////      
-////      tree.delete(new City("London",150,250,0,""));
-////      System.out.printf("total nodes %d\n", tree.totalNodes(tree.root));
-////      System.out.println("Preorder traversal of binary tree is "); 
-////      tree.traversePreOrder(); 
-//
-////      ArrayList<Node> arr = new ArrayList<Node>();
-////      arr = tree.collectAllNodes(tree.root, arr);
-////      System.out.println("");
-////      System.out.println(tree.root.tag + tree.root.key.getName());
-////      System.out.println("");
-////      System.out.printf("%d \n", tree.totalNodes(tree.root));
-////      ArrayList<String> arrString = new ArrayList<String>();
-////      for (int i = 0; i < arr.size(); i++) {
-////    	  arrString.add(arr.get(i).key.getName() + "-" + arr.get(i).tag);
-////      }
-////      System.out.println("");
-////      ArrayList<String> arrString = new ArrayList<String>();
-////      for (int i = 0; i < tree.totalNodes(tree.root); i++) {
-////    	  System.out.println(arr.get(i).key.getName() + arr.get(i).tag);
-////    	  if (arr.get(i).parent != null) {
-////    		  System.out.println("--->" + arr.get(i).parent.key.getName() + arr.get(i).parent.tag);
-////    	  }
-////    	  else {
-////    		  System.out.println("---> no parent"); 
-////    	  }
-////      }
-////      
-////      System.out.println(Arrays.toString(arrString.toArray()));
-//	     
-//	    FileWriter fileWriter = null;
-//		try {
-//			fileWriter = new FileWriter("D:/Documents/University of Maryland - CP/Maryland Fall 2019/CMSC420/MeeshQuest-Skeleton/textinput.txt");
-//		} catch (IOException e) {
-//			// TODO Auto-generated catch block
-//			e.printStackTrace();
-//		}
-//	    PrintWriter printWriter = new PrintWriter(fileWriter);
-//	    printWriter.println("<commands\r\n" + "	xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\r\n"
-//				+ "	xsi:noNamespaceSchemaLocation=\"part1in.xsd\"\r\n"
-//				+ "	spatialWidth=\"1024\" spatialHeight=\"1024\">");
-//		for (int i = 0; i < 10000; i++) {
-//			String x = Integer.toString((int) ((Math.random() * ((100 - 0) + 1)) + 0));
-//			String y = Integer.toString((int) ((Math.random() * ((100 - 0) + 1)) + 0));
-//			String s = "s" + (x) + (y);
-//			printWriter.println(
-//					"<createCity name=\"" + s + "\" x=\"" + x + "\" y=\"" + y + "\" radius=\"0\" color=\"black\"/>");
-//			printWriter.println("<deleteCity name=\"" + s + "\"/>");
-//			printWriter.println("<deleteCity name=\"" + s + "\"/>");
-//			printWriter.println(
-//					"<createCity name=\"" + s + "\" x=\"" + x + "\" y=\"" + y + "\" radius=\"0\" color=\"black\"/>");
-//			printWriter.println("<printSGTree/>");
-//		}
-//		printWriter.println("</commands>");
-//	    printWriter.close();
-//	}
 }
@@ -0,0 +1,524 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Growth of every tree operation over doubling sizes, checked against brute force
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.ScalingBenchmark [log2 smallest] [log2 largest] [seed] [tolerance]
+ *
+ * Runs each operation of the SG KD-Tree and the SG Tree on random cities at
+ * sizes 2^smallest, 2^(smallest + 1), ... 2^largest (default 2^11 to 2^17),
+ * and divides its time by the cost its class allows:
+ *
+ * build - n inserts into an empty tree, O(n log n)
+ * rebuild - rebuilding the whole tree, O(n log n)
+ * find, nearest, delete - per operation, O(log n) (amortized for delete)
+ * range - per query, O(sqrt(n) + k) for the kd tree and O(log n + k) for the
+ * SG Tree, k the number of points reported
+ *
+ * A tree of 2^17 nodes no longer fits in cache and is several times slower
+ * per node visited than one of 2^11, so the cost is measured in steps of a
+ * baseline: a search in a plain balanced binary tree of the same cities, its
+ * nodes allocated in random order, which misses the cache the way the trees'
+ * walks do. Its time per level at each size is the unit. A least squares
+ * line through log(time / (cost * unit)) against log(n) should then be flat;
+ * on a noisy machine the slopes of sound operations stay within about 0.2
+ * of it. If a slope is above the tolerance (default 0.25) the operation
+ * grows faster than its class, and the run ends with an exception naming
+ * every such operation. An O(log n) operation that has become O(sqrt(n))
+ * gives a slope near 0.4; a whole-tree pass per operation, an extra factor
+ * of n, gives a slope near 1.
+ *
+ * Every answer is checked against a brute-force scan of the same points
+ * before its timing is reported. Each size is timed ROUNDS times, queries in
+ * PASSES passes over the same queries, and the fastest run counts; the whole
+ * suite runs once at 8 times the smallest size first so the JIT has compiled
+ * it.
+ */
+
+public class ScalingBenchmark {
+	private static final int MAP_SIZE = 1 << 20;
+	private static final int QUERIES = 4096;
+	private static final int PASSES = 8; // timed passes over the queries per run
+	private static final int ROUNDS = 5; // timed runs per size, the fastest counts
+	private static final double RANGE_POINTS = 16; // expected points per range query
+
+	private enum Cost {
+		LOG, N_LOG_N, SQRT_PLUS_K, LOG_PLUS_K
+	}
+
+	// one operation across all sizes
+	private static class Series {
+		final Cost cost;
+		final ArrayList<Integer> sizes = new ArrayList<Integer>();
+		final ArrayList<Double> nanos = new ArrayList<Double>(); // per operation (or per build)
+		final ArrayList<Double> ratios = new ArrayList<Double>(); // nanos / (cost * unit)
+
+		Series(Cost cost) {
+			this.cost = cost;
+		}
+
+		// unit is the baseline's time per step at size n
+		void add(int n, double ns, double k, double unit) {
+			double log = Math.log(n) / Math.log(2);
+			double c;
+			switch (cost) {
+			case LOG:
+				c = log;
+				break;
+			case N_LOG_N:
+				c = n * log;
+				break;
+			case SQRT_PLUS_K:
+				c = Math.sqrt(n) + k;
+				break;
+			default: // LOG_PLUS_K
+				c = log + k;
+			}
+			sizes.add(n);
+			nanos.add(ns);
+			ratios.add(ns / (c * unit));
+		}
+
+		// least squares slope of log2(ratio) against log2(n)
+		double slope() {
+			int m = sizes.size();
+			double sx = 0, sy = 0, sxx = 0, sxy = 0;
+			for (int i = 0; i < m; i++) {
+				double x = Math.log(sizes.get(i)) / Math.log(2), y = Math.log(ratios.get(i)) / Math.log(2);
+				sx += x;
+				sy += y;
+				sxx += x * x;
+				sxy += x * y;
+			}
+			return (m * sxy - sx * sy) / (m * sxx - sx * sx);
+		}
+	}
+
+	private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+	private double unit; // baseline nanoseconds per step at the current size
+	private final long seed;
+	private final double tolerance; // largest slope of log(time / cost) against log(n)
+
+	private ScalingBenchmark(long seed, double tolerance) {
+		this.seed = seed;
+		this.tolerance = tolerance;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int smallest = (args.length > 0) ? Integer.parseInt(args[0]) : 11;
+		int largest = (args.length > 1) ? Integer.parseInt(args[1]) : 17;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 420;
+		double tolerance = (args.length > 3) ? Double.parseDouble(args[3]) : 0.25;
+
+		new ScalingBenchmark(seed, tolerance).run(1 << Math.min(smallest + 3, largest)); // warm-up, not reported
+		ScalingBenchmark bench = new ScalingBenchmark(seed, tolerance);
+		for (int log = smallest; log <= largest; log++) {
+			bench.run(1 << log);
+			System.out.printf("n = %d checked%n", 1 << log);
+		}
+		bench.report();
+	}
+
+	private void run(int n) throws Exception {
+		Random random = new Random(seed + n);
+		List<City> cities = cities(random, n);
+		City[] probes = new City[QUERIES]; // every other one is stored
+		HashSet<Long> stored = new HashSet<Long>();
+		for (City c : cities)
+			stored.add(key(c));
+		for (int i = 0; i < QUERIES; i++) {
+			if (i % 2 == 0) {
+				probes[i] = cities.get(random.nextInt(n));
+			} else {
+				do {
+					probes[i] = new City(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), "p" + i, "Black", 0);
+				} while (stored.contains(key(probes[i])));
+			}
+		}
+		runBaseline(n, random, cities, probes);
+		runKD(n, random, cities, probes);
+		runSG(n, random, cities, probes);
+	}
+
+	// A plain balanced binary search tree of the cities, its nodes allocated
+	// in random order like the nodes of a tree built by random inserts
+	private static class BaseNode {
+		final City city;
+		BaseNode left, right;
+
+		BaseNode(City city) {
+			this.city = city;
+		}
+	}
+
+	// the probes searched in the baseline tree
+	private void runBaseline(int n, Random random, List<City> cities, City[] probes) throws Exception {
+		City[] sorted = cities.toArray(new City[n]);
+		Arrays.sort(sorted, new CompareXY<City>());
+		BaseNode[] nodes = new BaseNode[n];
+		for (int i : shuffled(random, n))
+			nodes[i] = new BaseNode(sorted[i]);
+		BaseNode root = link(nodes, 0, n);
+		boolean[] found = new boolean[QUERIES];
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < QUERIES; i++)
+					found[i] = search(root, probes[i]);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (int i = 0; i < QUERIES; i++)
+			check(found[i] == (i % 2 == 0), "baseline search", n);
+		double log = Math.log(n) / Math.log(2);
+		unit = (double) best / (PASSES * QUERIES * log);
+		add("baseline", Cost.LOG, n, (double) best / (PASSES * QUERIES), 0);
+	}
+
+	private static int[] shuffled(Random random, int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1), t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		return order;
+	}
+
+	private static BaseNode link(BaseNode[] nodes, int lo, int hi) {
+		if (lo >= hi)
+			return null;
+		int mid = (lo + hi) >>> 1;
+		nodes[mid].left = link(nodes, lo, mid);
+		nodes[mid].right = link(nodes, mid + 1, hi);
+		return nodes[mid];
+	}
+
+	private static boolean search(BaseNode node, City q) {
+		while (node != null) {
+			City c = node.city;
+			if (c.getX() == q.getX() && c.getY() == q.getY())
+				return true;
+			node = (q.getX() < c.getX() || (q.getX() == c.getX() && q.getY() < c.getY())) ? node.left : node.right;
+		}
+		return false;
+	}
+
+	// -----------------------------------------------------------------
+	// SG KD-Tree
+	// -----------------------------------------------------------------
+
+	private void runKD(int n, Random random, List<City> cities, City[] probes) throws Exception {
+		long best = Long.MAX_VALUE;
+		SGKDTree<City> tree = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			tree = newKD();
+			long start = System.nanoTime();
+			for (City c : cities)
+				tree.insert(c);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		check(tree.size() == n && tree.entryList().size() == n, "kd build", n);
+		add("kd build", Cost.N_LOG_N, n, best, 0);
+
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			tree.rebuild();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		check(tree.entryList().size() == n, "kd rebuild", n);
+		add("kd rebuild", Cost.N_LOG_N, n, best, 0);
+
+		City[] found = new City[QUERIES];
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < QUERIES; i++)
+					found[i] = tree.find(probes[i]);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (int i = 0; i < QUERIES; i++)
+			check(found[i] == ((i % 2 == 0) ? probes[i] : null), "kd find", n);
+		add("kd find", Cost.LOG, n, (double) best / (PASSES * QUERIES), 0);
+
+		City[] nearest = new City[QUERIES];
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < QUERIES; i++)
+					nearest[i] = tree.nearestNeighbor(probes[i]);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (int i = 0; i < QUERIES; i++)
+			check(distance2(probes[i], nearest[i]) == nearestDistance2(cities, probes[i]), "kd nearest", n);
+		add("kd nearest", Cost.LOG, n, (double) best / (PASSES * QUERIES), 0);
+
+		Rectangle[] regions = new Rectangle[QUERIES];
+		int half = (int) Math.ceil(MAP_SIZE * Math.sqrt(RANGE_POINTS / n) / 2);
+		for (int i = 0; i < QUERIES; i++) {
+			City c = probes[i];
+			regions[i] = new Rectangle(new Point2D(c.getX() - half, c.getY() - half),
+					new Point2D(c.getX() + half, c.getY() + half));
+		}
+		int[] counts = new int[QUERIES];
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < QUERIES; i++)
+					counts[i] = tree.rangeSearch(regions[i]).size();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		long reported = 0;
+		for (int i = 0; i < QUERIES; i++) {
+			Rectangle r = regions[i];
+			HashSet<City> answer = new HashSet<City>(tree.rangeSearch(r));
+			int expected = 0;
+			for (City c : cities) {
+				if (c.getX() >= r.getLow().getX() && c.getX() <= r.getHigh().getX() && c.getY() >= r.getLow().getY()
+						&& c.getY() <= r.getHigh().getY()) {
+					expected++;
+					check(answer.contains(c), "kd range", n);
+				}
+			}
+			check(counts[i] == expected && answer.size() == expected, "kd range", n);
+			reported += expected;
+		}
+		add("kd range", Cost.SQRT_PLUS_K, n, (double) best / (PASSES * QUERIES), (double) reported / QUERIES);
+
+		// a quarter of the points, without reaching the whole-tree rebuild
+		List<City> deletes = new ArrayList<City>(cities);
+		Collections.shuffle(deletes, random);
+		deletes = deletes.subList(0, n / 4);
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			tree = newKD();
+			for (City c : cities)
+				tree.insert(c);
+			long start = System.nanoTime();
+			for (City c : deletes)
+				tree.delete(c);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		HashSet<City> deleted = new HashSet<City>(deletes);
+		check(tree.size() == n - deletes.size() && tree.entryList().size() == tree.size(), "kd delete", n);
+		for (City c : cities)
+			check(tree.find(c) == (deleted.contains(c) ? null : c), "kd delete", n);
+		add("kd delete", Cost.LOG, n, (double) best / deletes.size(), 0);
+	}
+
+	private static SGKDTree<City> newKD() {
+		return new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(), new CompareYX<City>(), MAP_SIZE,
+				MAP_SIZE);
+	}
+
+	// -----------------------------------------------------------------
+	// SG Tree
+	// -----------------------------------------------------------------
+
+	private void runSG(int n, Random random, List<City> cities, City[] probes) throws Exception {
+		ArrayList<cmsc420.meeshquest.part1.City> points = new ArrayList<cmsc420.meeshquest.part1.City>();
+		for (City c : cities)
+			points.add(sgCity(c));
+		cmsc420.meeshquest.part1.City[] sgProbes = new cmsc420.meeshquest.part1.City[QUERIES];
+		for (int i = 0; i < QUERIES; i++)
+			sgProbes[i] = sgCity(probes[i]);
+
+		long best = Long.MAX_VALUE;
+		SGTree tree = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			tree = new SGTree();
+			long start = System.nanoTime();
+			for (cmsc420.meeshquest.part1.City c : points)
+				tree.insert(c);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		check(tree.size() == n, "sg build", n);
+		add("sg build", Cost.N_LOG_N, n, best, 0);
+
+		cmsc420.meeshquest.part1.City[] found = new cmsc420.meeshquest.part1.City[QUERIES];
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				for (int i = 0; i < QUERIES; i++)
+					found[i] = tree.find(sgProbes[i]);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		for (int i = 0; i < QUERIES; i++) {
+			if (i % 2 == 0)
+				check(found[i] != null && found[i].getName().equals(sgProbes[i].getName()), "sg find", n);
+			else
+				check(found[i] == null, "sg find", n);
+		}
+		add("sg find", Cost.LOG, n, (double) best / (PASSES * QUERIES), 0);
+
+		// (x, y) order: every point with x in [probe.x, probe.x + width]
+		ArrayList<cmsc420.meeshquest.part1.City> sorted = new ArrayList<cmsc420.meeshquest.part1.City>(points);
+		Comparator<cmsc420.meeshquest.part1.City> order = Comparator
+				.comparingInt(cmsc420.meeshquest.part1.City::getX).thenComparingInt(cmsc420.meeshquest.part1.City::getY);
+		Collections.sort(sorted, order);
+		int width = (int) Math.ceil(MAP_SIZE * RANGE_POINTS / n);
+		cmsc420.meeshquest.part1.City[] lows = new cmsc420.meeshquest.part1.City[QUERIES];
+		cmsc420.meeshquest.part1.City[] highs = new cmsc420.meeshquest.part1.City[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			lows[i] = new cmsc420.meeshquest.part1.City("low", sgProbes[i].getX(), 0, 0, "Black");
+			highs[i] = new cmsc420.meeshquest.part1.City("high", sgProbes[i].getX() + width, MAP_SIZE, 0, "Black");
+		}
+		List<List<cmsc420.meeshquest.part1.City>> answers = new ArrayList<List<cmsc420.meeshquest.part1.City>>();
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int pass = 0; pass < PASSES; pass++) {
+				answers.clear();
+				for (int i = 0; i < QUERIES; i++)
+					answers.add(tree.rangeInOrder(lows[i], highs[i]));
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		long reported = 0;
+		for (int i = 0; i < QUERIES; i++) {
+			int from = lowerBound(sorted, lows[i], order), to = lowerBound(sorted, highs[i], order);
+			if (to < sorted.size() && order.compare(sorted.get(to), highs[i]) == 0)
+				to++;
+			check(answers.get(i).equals(sorted.subList(from, to)), "sg range", n);
+			reported += to - from;
+		}
+		add("sg range", Cost.LOG_PLUS_K, n, (double) best / (PASSES * QUERIES), (double) reported / QUERIES);
+
+		List<cmsc420.meeshquest.part1.City> deletes = new ArrayList<cmsc420.meeshquest.part1.City>(points);
+		Collections.shuffle(deletes, random);
+		deletes = deletes.subList(0, n / 4);
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			tree = new SGTree();
+			for (cmsc420.meeshquest.part1.City c : points)
+				tree.insert(c);
+			long start = System.nanoTime();
+			for (cmsc420.meeshquest.part1.City c : deletes)
+				tree.delete(c);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		check(tree.size() == n - deletes.size(), "sg delete", n);
+		HashSet<cmsc420.meeshquest.part1.City> deleted = new HashSet<cmsc420.meeshquest.part1.City>(deletes);
+		for (cmsc420.meeshquest.part1.City c : points)
+			check((tree.find(c) == null) == deleted.contains(c), "sg delete", n);
+		add("sg delete", Cost.LOG, n, (double) best / deletes.size(), 0);
+	}
+
+	private static cmsc420.meeshquest.part1.City sgCity(City c) {
+		return new cmsc420.meeshquest.part1.City(c.getName(), (int) c.getX(), (int) c.getY(), 0, "Black");
+	}
+
+	// first index of sorted whose city is not below key
+	private static int lowerBound(List<cmsc420.meeshquest.part1.City> sorted, cmsc420.meeshquest.part1.City key,
+			Comparator<cmsc420.meeshquest.part1.City> order) {
+		int lo = 0, hi = sorted.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (order.compare(sorted.get(mid), key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	// -----------------------------------------------------------------
+	// Utilities
+	// -----------------------------------------------------------------
+
+	private void add(String name, Cost cost, int n, double nanos, double k) {
+		Series s = series.get(name);
+		if (s == null) {
+			s = new Series(cost);
+			series.put(name, s);
+		}
+		s.add(n, nanos, k, unit);
+	}
+
+	private void report() throws Exception {
+		System.out.printf("%n  %-12s %-12s", "operation", "class");
+		for (int n : series.values().iterator().next().sizes)
+			System.out.printf(" %11s", "n=" + n);
+		System.out.printf(" %7s%n", "slope");
+
+		ArrayList<String> failed = new ArrayList<String>();
+		for (Map.Entry<String, Series> e : series.entrySet()) {
+			Series s = e.getValue();
+			System.out.printf("  %-12s %-12s", e.getKey(), s.cost.name().toLowerCase());
+			for (double ns : s.nanos)
+				System.out.printf(" %11s", format(ns));
+			double slope = s.slope();
+			System.out.printf(" %7.2f%s%n", slope, (slope > tolerance) ? "  FAIL" : "");
+			if (slope > tolerance)
+				failed.add(e.getKey());
+		}
+		System.out.println("  (times are per operation, per query for range and in total for build and rebuild)");
+		if (!failed.isEmpty())
+			throw new Exception("grows faster than its class: " + failed);
+	}
+
+	private static String format(double ns) {
+		if (ns >= 1e6)
+			return String.format("%.1f ms", ns / 1e6);
+		else if (ns >= 1e3)
+			return String.format("%.1f us", ns / 1e3);
+		return String.format("%.0f ns", ns);
+	}
+
+	private static void check(boolean ok, String operation, int n) throws Exception {
+		if (!ok)
+			throw new Exception(operation + " disagrees with brute force at n = " + n);
+	}
+
+	private static List<City> cities(Random random, int n) {
+		ArrayList<City> list = new ArrayList<City>(n);
+		HashSet<Long> used = new HashSet<Long>();
+		while (list.size() < n) {
+			City c = new City(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), "c" + list.size(), "Black", 0);
+			if (used.add(key(c)))
+				list.add(c);
+		}
+		return list;
+	}
+
+	private static long key(City c) {
+		return ((long) c.getX() << 32) | (long) c.getY();
+	}
+
+	private static double distance2(City a, City b) {
+		double dx = a.getX() - b.getX(), dy = a.getY() - b.getY();
+		return dx * dx + dy * dy;
+	}
+
+	private static double nearestDistance2(List<City> cities, City q) {
+		double best = Double.POSITIVE_INFINITY;
+		for (City c : cities)
+			best = Math.min(best, distance2(q, c));
+		return best;
+	}
+}
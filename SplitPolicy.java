@@ -0,0 +1,72 @@
+package cmsc420.meeshquest.part2;
+
+// Nathanael Brian
+// Where the SG KD-Tree splits a subtree when it rebuilds it
+
+/*
+ * When a subtree of k points is rebuilt, the tree sorts them lexicographically
+ * along the longer side of their minimum rectangle (ties go to x) and asks the
+ * policy how many of them go to the left subtree; the last of those becomes
+ * the splitter. The splitting dimension itself is not up to the policy, since
+ * the tree relies on it being the longer side.
+ *
+ * The tree clamps the answer to [k - floor(2k/3), floor(2k/3)], so neither
+ * child gets more than 2/3 of the points. A rebuilt subtree is then never its
+ * own scapegoat and keeps the log_{3/2} height bound, whatever the policy.
+ *
+ * MEDIAN - ceil(k / 2) points on the left, the original rule
+ * SLIDING_MIDPOINT - cut at the middle of the rectangle's longer side, slid
+ * to the nearest point if one side would be empty
+ * aspectCapped(r) - the median, but moved toward the middle as far as needed
+ * to keep both halves of the rectangle no more than r times
+ * as long as they are wide
+ */
+
+public interface SplitPolicy {
+
+	// coords: the points' coordinates along the splitting dimension, ascending
+	// (k >= 2 of them); otherSide: the rectangle's extent along the other
+	// dimension. Returns the left subtree size, between 1 and k - 1.
+	int leftSize(double[] coords, double otherSide);
+
+	static final SplitPolicy MEDIAN = (coords, otherSide) -> (coords.length + 1) / 2;
+
+	static final SplitPolicy SLIDING_MIDPOINT = (coords, otherSide) -> {
+		int k = coords.length;
+		double mid = (coords[0] + coords[k - 1]) / 2;
+		return Math.max(1, Math.min(k - 1, countAtMost(coords, mid)));
+	};
+
+	static SplitPolicy aspectCapped(final double maxAspect) {
+		if (maxAspect < 1) {
+			throw new IllegalArgumentException("aspect ratio cap must be at least 1");
+		}
+		return (coords, otherSide) -> {
+			int k = coords.length;
+			int m = (k + 1) / 2;
+			double lo = coords[0], hi = coords[k - 1];
+			double margin = Math.min(otherSide / maxAspect, (hi - lo) / 2); // thinnest allowed half
+			double cut = coords[m - 1];
+			if (cut < lo + margin) { // left half too thin: slide right
+				m = countAtMost(coords, lo + margin);
+			} else if (cut > hi - margin) { // right half too thin: slide left
+				m = countAtMost(coords, hi - margin);
+			}
+			return Math.max(1, Math.min(k - 1, m));
+		};
+	}
+
+	// number of coords <= value (coords ascending)
+	static int countAtMost(double[] coords, double value) {
+		int low = 0, high = coords.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (coords[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,137 @@
+package cmsc420.meeshquest.part2;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+// Nathanael Brian
+// Query cost of the SG KD-Tree split policies on uniform and clustered cities
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.SplitPolicyBenchmark [points] [queries] [seed]
+ *
+ * For each data set (uniform, and tight gaussian clusters) and each policy,
+ * inserts the points (the policy applies to every scapegoat rebuild), then
+ * rebuilds the whole tree so that all of it follows the policy. Reports the
+ * insert time, the height, the average number of nodes an exact best-first
+ * nearest neighbor search visits, and the time per nearest neighbor and per
+ * range query. Queries follow the same distribution as the data. All policies
+ * must give the same nearest neighbor distances and range counts.
+ */
+
+public class SplitPolicyBenchmark {
+	private static final int MAP_SIZE = 1 << 16;
+	private static final int ROUNDS = 3; // timed rounds, the first ones are warm-up
+
+	private static final String[] NAMES = { "median", "sliding-midpoint", "aspect-capped(4)" };
+	private static final SplitPolicy[] POLICIES = { SplitPolicy.MEDIAN, SplitPolicy.SLIDING_MIDPOINT,
+			SplitPolicy.aspectCapped(4) };
+
+	public static void main(String[] args) throws Exception {
+		int points = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int queries = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 420;
+
+		for (String dist : new String[] { "uniform", "clustered" }) {
+			Random random = new Random(seed);
+			List<City> cities = generate(random, dist, points, true);
+			List<City> q = generate(random, dist, queries, false);
+			System.out.printf("%s: %d points, %d queries%n", dist, cities.size(), q.size());
+			System.out.printf("  %-18s %10s %7s %12s %10s %10s%n", "policy", "insert ms", "height", "nodes/NN",
+					"NN ns", "range ns");
+
+			double[] reference = null;
+			for (int p = 0; p < POLICIES.length; p++) {
+				SGKDTree<City> tree = new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(),
+						new CompareYX<City>(), MAP_SIZE, MAP_SIZE, POLICIES[p]);
+				long start = System.nanoTime();
+				for (City c : cities)
+					tree.insert(c);
+				long insert = System.nanoTime() - start;
+				tree.rebuild();
+
+				double[] answers = answers(tree, q);
+				if (reference == null) {
+					reference = answers;
+				} else {
+					for (int i = 0; i < answers.length; i++) {
+						if (answers[i] != reference[i])
+							throw new Exception(NAMES[p] + " disagrees with " + NAMES[0] + " on query " + i);
+					}
+				}
+
+				long visited = 0;
+				for (City c : q)
+					visited += tree.approximateNearestNeighbor(c, 0).getNodesVisited();
+				long nn = 0, range = 0;
+				for (int round = 0; round < ROUNDS; round++) {
+					nn = timeNearest(tree, q);
+					range = timeRange(tree, q);
+				}
+				System.out.printf("  %-18s %10.1f %7d %12.1f %10.0f %10.0f%n", NAMES[p], insert / 1e6,
+						tree.getHeight(), (double) visited / q.size(), (double) nn / q.size(),
+						(double) range / q.size());
+			}
+		}
+	}
+
+	// distinct cities (or query points) from the named distribution
+	private static List<City> generate(Random random, String dist, int n, boolean distinct) {
+		ArrayList<City> list = new ArrayList<City>(n);
+		HashSet<Long> used = new HashSet<Long>();
+		double[][] centers = new double[16][];
+		for (int i = 0; i < centers.length; i++)
+			centers[i] = new double[] { random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE) };
+		while (list.size() < n) {
+			int x, y;
+			if (dist.equals("uniform")) {
+				x = random.nextInt(MAP_SIZE);
+				y = random.nextInt(MAP_SIZE);
+			} else { // narrow clusters, some stretched along one axis
+				double[] c = centers[random.nextInt(centers.length)];
+				double sx = (c[0] < MAP_SIZE / 2) ? 40 : 400, sy = (c[1] < MAP_SIZE / 2) ? 40 : 400;
+				x = (int) Math.round(c[0] + sx * random.nextGaussian());
+				y = (int) Math.round(c[1] + sy * random.nextGaussian());
+				if (x < 0 || y < 0 || x >= MAP_SIZE || y >= MAP_SIZE)
+					continue;
+			}
+			if (distinct && !used.add(((long) x << 32) | y))
+				continue;
+			list.add(new City(x, y, "c" + list.size(), "Black", 0));
+		}
+		return list;
+	}
+
+	// nearest distance and range count of every query, to compare policies
+	private static double[] answers(SGKDTree<City> tree, List<City> q) {
+		double[] a = new double[2 * q.size()];
+		for (int i = 0; i < q.size(); i++) {
+			a[2 * i] = tree.distance2(q.get(i), tree.nearestNeighbor(q.get(i)));
+			a[2 * i + 1] = tree.rangeSearch(q.get(i), MAP_SIZE / 256).size();
+		}
+		return a;
+	}
+
+	private static long timeNearest(SGKDTree<City> tree, List<City> q) {
+		long start = System.nanoTime();
+		int sink = 0;
+		for (City c : q)
+			sink += tree.nearestNeighbor(c).getName().length();
+		long t = System.nanoTime() - start;
+		if (sink == 0)
+			System.out.print("");
+		return t;
+	}
+
+	private static long timeRange(SGKDTree<City> tree, List<City> q) {
+		long start = System.nanoTime();
+		int sink = 0;
+		for (City c : q)
+			sink += tree.rangeSearch(c, MAP_SIZE / 256).size();
+		long t = System.nanoTime() - start;
+		if (sink == 0)
+			System.out.print("");
+		return t;
+	}
+}
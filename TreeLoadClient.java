@@ -0,0 +1,171 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Nathanael Brian
+// Load generator for the TreeServer
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.TreeLoadClient [options]
+ *
+ * -host h server host (default 127.0.0.1)
+ * -port p server port (default 4200)
+ * -connections c concurrent connections (default 1000)
+ * -requests n requests per connection (default 1000)
+ * -pipeline d requests in flight per connection (default 1)
+ * -mix name read (NEAREST/KNN/RANGE/FIND) or write (half INSERT/DELETE)
+ * -size w,h coordinate range (default 1024,1024)
+ * -seed s random seed (default 420)
+ *
+ * Each connection runs on its own virtual thread when available (see
+ * TreeServer.newPerTaskExecutor), writes up to d requests ahead of the
+ * responses it has read, and records the round trip of each request from
+ * when it was written to when its response line arrived. The report is the
+ * overall throughput and the latency percentiles over all requests.
+ */
+
+public class TreeLoadClient {
+	private String host = "127.0.0.1";
+	private int port = 4200;
+	private int connections = 1000, requests = 1000, pipeline = 1;
+	private boolean writes;
+	private int width = 1024, height = 1024;
+	private long seed = 420;
+
+	// one connection: returns its latencies in nanoseconds, or null if it failed
+	private long[] run(int id) throws Exception {
+		Random random = new Random(seed + id);
+		long[] latency = new long[requests];
+		long[] sent = new long[pipeline]; // send times of the requests in flight, as a ring
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 8192);
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+					8192);
+			int written = 0, read = 0;
+			while (read < requests) {
+				while (written < requests && written - read < pipeline) {
+					out.write(request(random, id, written));
+					out.write('\n');
+					sent[written++ % pipeline] = System.nanoTime();
+				}
+				out.flush();
+				String response = in.readLine();
+				if (response == null)
+					throw new Exception("connection closed after " + read + " responses");
+				latency[read] = System.nanoTime() - sent[read % pipeline];
+				read++;
+			}
+		}
+		return latency;
+	}
+
+	private String request(Random random, int id, int i) {
+		int x = random.nextInt(width), y = random.nextInt(height);
+		if (writes && i % 2 == 0)
+			return "INSERT l" + id + "_" + i + " " + x + " " + y;
+		if (writes)
+			return "DELETE " + x + " " + y; // usually misses, which is still a write-locked lookup
+		switch (random.nextInt(4)) {
+		case 0:
+			return "NEAREST " + x + " " + y;
+		case 1:
+			return "KNN " + x + " " + y + " 8";
+		case 2:
+			return "RANGE " + x + " " + y + " " + (1 + random.nextInt(Math.max(1, width / 32)));
+		default:
+			return "FIND " + x + " " + y;
+		}
+	}
+
+	public void run() throws Exception {
+		ExecutorService executor = TreeServer.newPerTaskExecutor();
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			final int id = i;
+			results.add(executor.submit(() -> run(id)));
+		}
+		long[] all = new long[connections * requests];
+		int n = 0, failed = 0;
+		for (Future<long[]> result : results) {
+			try {
+				long[] latency = result.get();
+				System.arraycopy(latency, 0, all, n, latency.length);
+				n += latency.length;
+			} catch (Exception e) {
+				if (failed++ == 0)
+					System.err.println("TreeLoadClient: connection failed: " + e.getCause());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		long[] sorted = Arrays.copyOf(all, n);
+		Arrays.sort(sorted);
+		System.out.printf("%d connections, %d requests in %.1f ms (%.0f req/s), %d connections failed%n",
+				connections, n, elapsed / 1e6, n / (elapsed / 1e9), failed);
+		if (n > 0)
+			System.out.printf("  latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+					percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), sorted[n - 1] / 1e3);
+	}
+
+	// nearest-rank percentile of a sorted array, in microseconds
+	private static double percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(0, rank - 1)] / 1e3;
+	}
+
+	public static void main(String[] args) throws Exception {
+		TreeLoadClient client = new TreeLoadClient();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-host":
+				client.host = args[i + 1];
+				break;
+			case "-port":
+				client.port = Integer.parseInt(args[i + 1]);
+				break;
+			case "-connections":
+				client.connections = Integer.parseInt(args[i + 1]);
+				break;
+			case "-requests":
+				client.requests = Integer.parseInt(args[i + 1]);
+				break;
+			case "-pipeline":
+				client.pipeline = Math.max(1, Integer.parseInt(args[i + 1]));
+				break;
+			case "-mix":
+				client.writes = args[i + 1].equals("write");
+				break;
+			case "-size":
+				String[] wh = args[i + 1].split(",");
+				client.width = Integer.parseInt(wh[0]);
+				client.height = Integer.parseInt(wh[1]);
+				break;
+			case "-seed":
+				client.seed = Long.parseLong(args[i + 1]);
+				break;
+			default:
+				throw new Exception("unknown option " + args[i]);
+			}
+		}
+		client.run();
+	}
+}
@@ -0,0 +1,353 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import cmsc420.meeshquest.part1.SGTree;
+
+// Nathanael Brian
+// Loopback TCP server for tree queries
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.TreeServer [port] [width] [height]
+ *
+ * A line protocol on 127.0.0.1, one request per line and one response line
+ * per request, in order:
+ *
+ * INSERT name x y -> OK | ERR duplicateCityCoordinates
+ * DELETE x y -> OK | ERR cityDoesNotExist
+ * FIND x y -> OK name x y | NONE
+ * NEAREST x y -> OK name x y | NONE
+ * KNN x y k -> OK n name x y ... (closest first)
+ * RANGE x y radius -> OK n name x y ...
+ * RECT x1 y1 x2 y2 -> OK n name x y ...
+ * SGFIND x y -> OK name x y | NONE (SG tree)
+ * SGRANGE x1 y1 x2 y2 -> OK n name x y ... (SG tree, in (x, y) order)
+ * SIZE -> OK n
+ * PING -> OK
+ *
+ * INSERT and DELETE go to both trees. Any other request gets ERR badRequest.
+ * An error is always one token: a tree failure other than the two above (a
+ * bug) gets ERR internalError, and the exception goes to standard error.
+ *
+ * Each connection runs on its own virtual thread when the JVM has them (Java
+ * 21+), found by reflection so the code still compiles and runs on older
+ * JVMs, where a cached pool of platform threads is used instead. There every
+ * open connection holds a thread with a 256 KB stack, so the server is good
+ * for a few thousand concurrent connections (4096 per GB of stack, and no
+ * more than the OS allows threads); beyond that new connections fail to get
+ * a thread and are dropped. Use Java 21 for more. Clients may
+ * pipeline: responses are buffered and flushed only once no more input is
+ * waiting, so a burst of requests costs one write.
+ *
+ * The trees are not thread-safe. Queries share a read lock and updates take
+ * the write lock, one lock per tree. An update holds the write locks of both
+ * trees (the kd-tree's first) for its whole length, so concurrent updates
+ * reach the two trees in the same order and the trees never disagree.
+ */
+
+public class TreeServer implements Closeable {
+	private final SGKDTree<City> kdTree;
+	private final SGTree sgTree; // may be null
+	private final ReentrantReadWriteLock kdLock = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock sgLock = new ReentrantReadWriteLock();
+
+	private ServerSocket server;
+	private ExecutorService connections;
+	private Thread acceptor;
+
+	public TreeServer(SGKDTree<City> kdTree, SGTree sgTree) {
+		this.kdTree = kdTree;
+		this.sgTree = sgTree;
+	}
+
+	// one virtual thread per task if available, otherwise a cached thread pool
+	static ExecutorService newPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(null, r, "tree-connection", 256 * 1024);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	// listen on 127.0.0.1 (port 0 picks a free port) and return the port
+	public int start(int port) throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1 << 16);
+		connections = newPerTaskExecutor();
+		acceptor = new Thread(this::accept, "tree-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				try {
+					connections.execute(() -> serve(socket));
+				} catch (RejectedExecutionException | OutOfMemoryError e) { // no thread for it
+					System.err.println("TreeServer: connection dropped: " + e);
+					socket.close();
+				}
+			} catch (IOException e) {
+				if (!server.isClosed())
+					System.err.println("TreeServer: accept failed: " + e);
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), 8192);
+				Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8),
+						8192)) {
+			String line;
+			StringBuilder response = new StringBuilder(64);
+			while ((line = in.readLine()) != null) {
+				response.setLength(0);
+				handle(line, response);
+				response.append('\n');
+				out.append(response);
+				if (!in.ready())
+					out.flush(); // end of the pipelined burst
+			}
+		} catch (SocketException e) {
+			// client went away
+		} catch (IOException e) {
+			System.err.println("TreeServer: connection failed: " + e);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Requests
+	// -----------------------------------------------------------------
+
+	void handle(String line, StringBuilder out) {
+		String[] arg = line.trim().split("\\s+");
+		try {
+			switch (arg[0].toUpperCase()) {
+			case "PING":
+				out.append("OK");
+				break;
+			case "SIZE":
+				kdLock.readLock().lock();
+				try {
+					out.append("OK ").append(kdTree.size());
+				} finally {
+					kdLock.readLock().unlock();
+				}
+				break;
+			case "INSERT":
+				insert(arg[1], Integer.parseInt(arg[2]), Integer.parseInt(arg[3]), out);
+				break;
+			case "DELETE":
+				delete(Integer.parseInt(arg[1]), Integer.parseInt(arg[2]), out);
+				break;
+			case "FIND":
+			case "NEAREST":
+			case "KNN":
+			case "RANGE":
+			case "RECT":
+				query(arg, out);
+				break;
+			case "SGFIND":
+			case "SGRANGE":
+				querySGTree(arg, out);
+				break;
+			default:
+				out.append("ERR badRequest");
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			out.setLength(0);
+			out.append("ERR badRequest");
+		} catch (RuntimeException e) {
+			out.setLength(0); // a tree bug: report it instead of dropping the connection
+			out.append("ERR ").append(errorToken(e));
+		}
+	}
+
+	// the one-token name for a tree's exception: the errors the protocol
+	// documents pass through, anything else (whose message may be null or
+	// several words) is logged and becomes internalError
+	static String errorToken(Exception e) {
+		String name = e.getMessage();
+		if ("cityDoesNotExist".equals(name) || "duplicateCityCoordinates".equals(name))
+			return name;
+		System.err.println("TreeServer: request failed: " + e);
+		return "internalError";
+	}
+
+	private void insert(String name, int x, int y, StringBuilder out) {
+		City city = new City(x, y, name, "black", 0);
+		lockUpdate();
+		try {
+			if (kdTree.find(city) != null) {
+				out.append("ERR duplicateCityCoordinates");
+				return;
+			}
+			kdTree.insert(city);
+			if (sgTree != null)
+				sgTree.insert(new cmsc420.meeshquest.part1.City(name, x, y, 0, "black"));
+		} catch (Exception e) {
+			out.append("ERR ").append(errorToken(e));
+			return;
+		} finally {
+			unlockUpdate();
+		}
+		out.append("OK");
+	}
+
+	private void delete(int x, int y, StringBuilder out) {
+		lockUpdate();
+		try {
+			City stored = kdTree.find(new City(x, y, "", "", 0));
+			if (stored == null) {
+				out.append("ERR cityDoesNotExist");
+				return;
+			}
+			kdTree.delete(stored);
+			if (sgTree != null)
+				sgTree.delete(new cmsc420.meeshquest.part1.City(stored.getName(), x, y, 0, "black"));
+		} catch (Exception e) {
+			out.append("ERR ").append(errorToken(e));
+			return;
+		} finally {
+			unlockUpdate();
+		}
+		out.append("OK");
+	}
+
+	// the write locks of both trees, always in this order
+	private void lockUpdate() {
+		kdLock.writeLock().lock();
+		if (sgTree != null)
+			sgLock.writeLock().lock();
+	}
+
+	private void unlockUpdate() {
+		if (sgTree != null)
+			sgLock.writeLock().unlock();
+		kdLock.writeLock().unlock();
+	}
+
+	private void query(String[] arg, StringBuilder out) {
+		City q = new City(Integer.parseInt(arg[1]), Integer.parseInt(arg[2]), "", "", 0);
+		kdLock.readLock().lock();
+		try {
+			switch (arg[0].toUpperCase()) {
+			case "FIND":
+				append(kdTree.find(q), out);
+				break;
+			case "NEAREST":
+				append(kdTree.nearestNeighbor(q), out);
+				break;
+			case "KNN":
+				append(kdTree.nearestNeighbors(q, Integer.parseInt(arg[3])), out);
+				break;
+			case "RANGE":
+				append(kdTree.rangeSearch(q, Integer.parseInt(arg[3])), out);
+				break;
+			default: // RECT
+				Rectangle region = new Rectangle(new Point2D(q.getX(), q.getY()),
+						new Point2D(Integer.parseInt(arg[3]), Integer.parseInt(arg[4])));
+				append(kdTree.rangeSearch(region), out);
+			}
+		} finally {
+			kdLock.readLock().unlock();
+		}
+	}
+
+	private void querySGTree(String[] arg, StringBuilder out) {
+		if (sgTree == null) {
+			out.append("ERR noSGTree");
+			return;
+		}
+		cmsc420.meeshquest.part1.City low = new cmsc420.meeshquest.part1.City("", Integer.parseInt(arg[1]),
+				Integer.parseInt(arg[2]), 0, "");
+		sgLock.readLock().lock();
+		try {
+			if (arg[0].equalsIgnoreCase("SGFIND")) {
+				cmsc420.meeshquest.part1.City city = sgTree.find(low);
+				if (city == null)
+					out.append("NONE");
+				else
+					out.append("OK ").append(city.getName()).append(' ').append(city.getX()).append(' ')
+							.append(city.getY());
+			} else {
+				cmsc420.meeshquest.part1.City high = new cmsc420.meeshquest.part1.City("", Integer.parseInt(arg[3]),
+						Integer.parseInt(arg[4]), 0, "");
+				List<cmsc420.meeshquest.part1.City> cities = sgTree.rangeInOrder(low, high);
+				out.append("OK ").append(cities.size());
+				for (cmsc420.meeshquest.part1.City city : cities)
+					out.append(' ').append(city.getName()).append(' ').append(city.getX()).append(' ')
+							.append(city.getY());
+			}
+		} finally {
+			sgLock.readLock().unlock();
+		}
+	}
+
+	private static void append(City city, StringBuilder out) {
+		if (city == null) {
+			out.append("NONE");
+		} else {
+			out.append("OK ");
+			appendCity(city, out);
+		}
+	}
+
+	private static void append(List<City> cities, StringBuilder out) {
+		out.append("OK ").append(cities.size());
+		for (City city : cities) {
+			out.append(' ');
+			appendCity(city, out);
+		}
+	}
+
+	private static void appendCity(City city, StringBuilder out) {
+		out.append(city.getName()).append(' ').append((int) city.getX()).append(' ').append((int) city.getY());
+	}
+
+	public void close() throws IOException {
+		if (server != null)
+			server.close();
+		if (connections != null)
+			connections.shutdownNow();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : 4200;
+		int width = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+		int height = (args.length > 2) ? Integer.parseInt(args[2]) : 1024;
+		SGKDTree<City> kdTree = new SGKDTree<City>(new CompareXY<City>(), null, new CompareXY<City>(),
+				new CompareYX<City>(), width, height);
+		TreeServer server = new TreeServer(kdTree, new SGTree());
+		System.out.println("TreeServer listening on 127.0.0.1:" + server.start(port));
+		Thread.currentThread().join(); // serve until killed
+	}
+}
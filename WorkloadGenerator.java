@@ -0,0 +1,260 @@
+package cmsc420.meeshquest.part2;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+// Nathanael Brian
+// Synthetic MeeshQuest workloads
+
+/*
+ * Usage: java cmsc420.meeshquest.part2.WorkloadGenerator output.xml [options]
+ *
+ * -n count number of commands (default 100000)
+ * -dist name uniform, gaussian, sorted, reverse or diagonal (default uniform)
+ * -mix name insert, balanced, churn, read, or weights like
+ * create=50,delete=20,nearest=20,range=10,print=0 (default balanced)
+ * -clusters k cluster centers for gaussian (default 8)
+ * -size w,h spatial width and height (default 1024,1024)
+ * -seed s random seed (default 420)
+ *
+ * Writes a command file in the MeeshQuest input format that the
+ * CommandPipeline and the ReplayHarness read. The coordinate distributions:
+ *
+ * uniform - independent uniform x and y
+ * gaussian - normal clusters around random centers (sigma = width / 64)
+ * sorted - increasing in (x, y) order, so every insert goes to the rightmost
+ * leaf; this is the order that makes the scapegoat rebuilds explode
+ * reverse - decreasing in (x, y) order
+ * diagonal - increasing along the main diagonal, then along its shifted copies
+ *
+ * Coordinates of live cities never repeat, names never repeat, and deletes
+ * always name a live city, so every command is meant to succeed.
+ */
+
+public class WorkloadGenerator {
+	private static final String[] COMMANDS = { "createCity", "deleteCity", "nearestCity", "rangeCities",
+			"printKdTree" };
+
+	private final Random random;
+	private final int width, height;
+	private String distribution = "uniform";
+	private int[] weights = { 50, 20, 20, 10, 0 }; // per entry of COMMANDS
+	private int clusters = 8;
+
+	private double[][] centers; // gaussian cluster centers
+	private long nextSorted; // position in the sorted orders
+	private final ArrayList<String> liveNames = new ArrayList<String>(); // live cities, for deletes
+	private final ArrayList<Long> liveCoordinates = new ArrayList<Long>(); // parallel to liveNames
+	private final HashSet<Long> used = new HashSet<Long>(); // coordinates of live cities
+	private int nextName;
+
+	public WorkloadGenerator(long seed, int width, int height) {
+		this.random = new Random(seed);
+		this.width = width;
+		this.height = height;
+	}
+
+	public void setDistribution(String distribution) throws Exception {
+		switch (distribution) {
+		case "uniform":
+		case "gaussian":
+		case "sorted":
+		case "reverse":
+		case "diagonal":
+			this.distribution = distribution;
+			break;
+		default:
+			throw new Exception("unknown distribution " + distribution);
+		}
+	}
+
+	// a preset name or create=..,delete=..,nearest=..,range=..,print=..
+	public void setMix(String mix) throws Exception {
+		switch (mix) {
+		case "insert":
+			weights = new int[] { 100, 0, 0, 0, 0 };
+			break;
+		case "balanced":
+			weights = new int[] { 50, 20, 20, 10, 0 };
+			break;
+		case "churn":
+			weights = new int[] { 45, 45, 5, 5, 0 };
+			break;
+		case "read":
+			weights = new int[] { 10, 5, 70, 15, 0 };
+			break;
+		default:
+			weights = new int[COMMANDS.length];
+			for (String part : mix.split(",")) {
+				String[] kv = part.split("=");
+				int i = indexOf(kv[0].trim());
+				if (kv.length != 2 || i < 0)
+					throw new Exception("bad mix entry " + part);
+				weights[i] = Integer.parseInt(kv[1].trim());
+			}
+		}
+	}
+
+	private static int indexOf(String key) {
+		String[] keys = { "create", "delete", "nearest", "range", "print" };
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].equals(key))
+				return i;
+		}
+		return -1;
+	}
+
+	public void setClusters(int clusters) {
+		this.clusters = clusters;
+	}
+
+	// write a full command file with count commands
+	public void write(PrintWriter out, int count) throws Exception {
+		out.println("<commands xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+		out.println("\txsi:noNamespaceSchemaLocation=\"part2in.xsd\"");
+		out.println("\tspatialWidth=\"" + width + "\" spatialHeight=\"" + height + "\">");
+
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		if (total == 0)
+			throw new Exception("empty mix");
+
+		for (int i = 0; i < count; i++) {
+			int pick = random.nextInt(total), command = 0;
+			while (pick >= weights[command]) {
+				pick -= weights[command++];
+			}
+			if (command == 1 && liveNames.isEmpty())
+				command = 0; // nothing to delete yet
+
+			switch (command) {
+			case 0:
+				long c = nextCoordinates();
+				if (c < 0)
+					throw new Exception("map is full after " + liveNames.size() + " cities");
+				String name = "c" + nextName++;
+				liveNames.add(name);
+				liveCoordinates.add(c);
+				out.println("<createCity name=\"" + name + "\" x=\"" + (c >> 32) + "\" y=\"" + (int) c
+						+ "\" radius=\"0\" color=\"black\"/>");
+				break;
+			case 1:
+				int victim = random.nextInt(liveNames.size());
+				int last = liveNames.size() - 1;
+				out.println("<deleteCity name=\"" + liveNames.get(victim) + "\"/>");
+				used.remove(liveCoordinates.get(victim));
+				liveNames.set(victim, liveNames.get(last)); // swap-remove
+				liveCoordinates.set(victim, liveCoordinates.get(last));
+				liveNames.remove(last);
+				liveCoordinates.remove(last);
+				break;
+			case 2:
+				out.println("<nearestCity x=\"" + random.nextInt(width) + "\" y=\"" + random.nextInt(height) + "\"/>");
+				break;
+			case 3:
+				out.println("<rangeCities x=\"" + random.nextInt(width) + "\" y=\"" + random.nextInt(height)
+						+ "\" radius=\"" + (1 + random.nextInt(Math.max(1, width / 32))) + "\"/>");
+				break;
+			default:
+				out.println("<" + COMMANDS[command] + "/>");
+			}
+		}
+		out.println("</commands>");
+		out.flush();
+	}
+
+	// next unused (x, y) packed as x << 32 | y, or -1 if none is left
+	private long nextCoordinates() {
+		if (used.size() >= (long) width * height)
+			return -1;
+		while (true) {
+			long x, y;
+			switch (distribution) {
+			case "gaussian":
+				if (centers == null) {
+					centers = new double[clusters][];
+					for (int i = 0; i < clusters; i++)
+						centers[i] = new double[] { random.nextInt(width), random.nextInt(height) };
+				}
+				double[] center = centers[random.nextInt(clusters)];
+				double sigma = width / 64.0;
+				x = clamp(Math.round(center[0] + sigma * random.nextGaussian()), width);
+				y = clamp(Math.round(center[1] + sigma * random.nextGaussian()), height);
+				break;
+			case "sorted":
+			case "reverse":
+				long k = nextSorted++ % ((long) width * height);
+				if (distribution.equals("reverse"))
+					k = (long) width * height - 1 - k;
+				x = k / height;
+				y = k % height;
+				break;
+			case "diagonal":
+				long d = nextSorted++ % ((long) width * height);
+				x = d % width; // pass d / width runs along the diagonal shifted up by that much
+				y = (d % width + d / width) % height;
+				break;
+			default:
+				x = random.nextInt(width);
+				y = random.nextInt(height);
+			}
+			long c = (x << 32) | y;
+			if (used.add(c))
+				return c;
+		}
+	}
+
+	private static long clamp(long v, int limit) {
+		return Math.max(0, Math.min(limit - 1, v));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: WorkloadGenerator output.xml [-n count] [-dist name] [-mix name|weights]"
+					+ " [-clusters k] [-size w,h] [-seed s]");
+			return;
+		}
+		int count = 100000, width = 1024, height = 1024, clusters = 8;
+		long seed = 420;
+		String dist = "uniform", mix = "balanced";
+		for (int i = 1; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-n":
+				count = Integer.parseInt(args[i + 1]);
+				break;
+			case "-dist":
+				dist = args[i + 1];
+				break;
+			case "-mix":
+				mix = args[i + 1];
+				break;
+			case "-clusters":
+				clusters = Integer.parseInt(args[i + 1]);
+				break;
+			case "-size":
+				String[] wh = args[i + 1].split(",");
+				width = Integer.parseInt(wh[0]);
+				height = Integer.parseInt(wh[1]);
+				break;
+			case "-seed":
+				seed = Long.parseLong(args[i + 1]);
+				break;
+			default:
+				throw new Exception("unknown option " + args[i]);
+			}
+		}
+
+		WorkloadGenerator generator = new WorkloadGenerator(seed, width, height);
+		generator.setDistribution(dist);
+		generator.setMix(mix);
+		generator.setClusters(clusters);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(args[0]), 1 << 16));
+		generator.write(out, count);
+		out.close();
+	}
+}